@@ -3,21 +3,48 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, grouped by any number of columns, are
+ * computed in one pass over the child; see {@link MultiAggregator}.
+ * <p>
+ * Groups are held in memory up to a memory budget. Once the budget is full,
+ * rows of groups already in memory are still aggregated there, while rows of
+ * new groups are hash partitioned to temporary files; each partition is then
+ * aggregated on its own, partitioning again if it is still too large. A
+ * partition that is still too large after {@link #MAX_SPILL_DEPTH} rounds
+ * is aggregated by sorting it on the group-by fields instead.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
     private DbIterator m_tupleIterator;
-    private int m_aggregateFieldIndex;
-    private int m_groupByFieldIndex;
-    private Aggregator.Op m_op;
+    private int[] m_aggregateFields;
+    private int[] m_groupByFields;
+    private Aggregator.Op[] m_ops;
+    private TupleDesc m_td;
     
     private Aggregator m_aggregator;
     private DbIterator m_aggregateIterator;
+    private transient BatchIterator m_resultBatches;
+
+    /**
+     * Default number of bytes of group state held in memory before groups
+     * are partitioned to disk.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    /** Rounds of partitioning after which a partition is aggregated by sorting. */
+    static final int MAX_SPILL_DEPTH = 3;
+
+    /** Number of partitions the rows of groups that do not fit are split into. */
+    static final int FANOUT = 16;
+
+    private long m_memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private final int m_depth;                 // 0 unless aggregating a spilled partition
+    private transient SpillFile[] m_partitions; // non-null once groups spilled
+    private transient int m_nextPartition;
+    private transient int[] m_missing;
     /**
      * Constructor.
      * 
@@ -38,31 +65,100 @@ public class Aggregate extends Operator {
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
 	// some code goes here
+    	this(child, new int[] {afield}, new Aggregator.Op[] {aop},
+    			gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] {gfield});
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group key. The
+     * output tuples hold the group-by fields followed by the aggregates.
+     * 
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param aops
+     *            The aggregation operator of each of afields
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @throws IllegalArgumentException
+     *             if an operator is not supported for its column
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+    	this(child, afields, aops, gfields, DEFAULT_MEMORY_BUDGET, 0);
+    }
+
+    /**
+     * Constructor for the aggregation of one spilled partition.
+     *
+     * @param depth the number of times the rows have been partitioned
+     */
+    Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields,
+    		long memoryBudget, int depth) {
+    	m_memoryBudget = memoryBudget;
+    	m_depth = depth;
     	m_tupleIterator = child;
-    	m_aggregateFieldIndex = afield;
-    	m_groupByFieldIndex = gfield;
-    	m_op = aop;
+    	m_aggregateFields = afields;
+    	m_groupByFields = gfields;
+    	m_ops = aops;
     	m_aggregateIterator = null;
-    	
-    	Type groupByType;
-    	
-    	if (m_groupByFieldIndex == Aggregator.NO_GROUPING)
-    		groupByType = null;
-    	else 
-    		groupByType = m_tupleIterator.getTupleDesc().getFieldType(m_groupByFieldIndex);
-    	
-    	Type aggregateType = m_tupleIterator.getTupleDesc().getFieldType(m_aggregateFieldIndex);
-    	switch(aggregateType)
+
+    	// also checks that every operator is supported for its field
+    	m_td = new MultiAggregator(child.getTupleDesc(), gfields, afields, aops).getResultTupleDesc();
+    	m_aggregator = newAggregator();
+    }
+
+    /**
+     * A single aggregate without grouping is left to the specialized
+     * aggregators; anything grouped uses a MultiAggregator, which can tell
+     * which groups it already holds once the memory budget is full.
+     */
+    private Aggregator newAggregator() {
+    	TupleDesc childTd = m_tupleIterator.getTupleDesc();
+    	if (m_aggregateFields.length == 1 && m_groupByFields.length == 0)
     	{
-    		case INT_TYPE: 
-    			m_aggregator = new IntegerAggregator(m_groupByFieldIndex, groupByType, m_aggregateFieldIndex, m_op);
-    			break;
-    		case STRING_TYPE:
-    			m_aggregator = new StringAggregator(m_groupByFieldIndex, groupByType, m_aggregateFieldIndex, m_op);
-    			break;
-    		default:
-    			assert(false);
+    		if (childTd.getFieldType(m_aggregateFields[0]) == Type.INT_TYPE)
+    			return new IntegerAggregator(Aggregator.NO_GROUPING, null, m_aggregateFields[0], m_ops[0]);
+    		return new StringAggregator(Aggregator.NO_GROUPING, null, m_aggregateFields[0], m_ops[0]);
     	}
+    	return new MultiAggregator(childTd, m_groupByFields, m_aggregateFields, m_ops);
+    }
+
+    /**
+     * Set how many bytes of group state the aggregation may hold in memory.
+     */
+    public void setMemoryBudget(long bytes) {
+    	m_memoryBudget = bytes;
+    }
+
+    /**
+     * @return the number of bytes of group state the aggregation may hold
+     *         in memory
+     */
+    public long getMemoryBudget() {
+    	return m_memoryBudget;
+    }
+
+    /**
+     * @return true if the groups did not fit the memory budget and some of
+     *         them are being aggregated from partitions on disk
+     */
+    public boolean isSpilling() {
+    	return m_partitions != null;
+    }
+
+    /**
+     * @return the estimated number of bytes of heap a group takes: its key
+     *         columns (an int, or a reference to a String and its bytes),
+     *         one int per aggregate and its row count, and its hash and
+     *         hash table slots; doubled, as the arrays grow by doubling
+     */
+    private long bytesPerGroup() {
+    	long bytes = 4 * (m_aggregateFields.length + 1) + 12;
+    	for (int i = 0; i < m_groupByFields.length; i++)
+    		bytes += m_td.getFieldType(i) == Type.INT_TYPE ? 4 : 44 + Type.STRING_LEN;
+    	return 2 * bytes;
     }
 
     /**
@@ -72,7 +168,15 @@ public class Aggregate extends Operator {
      * */
     public int groupField() {
 	// some code goes here
-    	return m_groupByFieldIndex;
+    	return m_groupByFields.length == 0 ? Aggregator.NO_GROUPING : m_groupByFields[0];
+    }
+
+    /**
+     * @return the group-by fields in the <b>INPUT</b> tuples; empty if there
+     *         is no grouping
+     */
+    public int[] groupFields() {
+    	return m_groupByFields;
     }
 
     /**
@@ -91,7 +195,14 @@ public class Aggregate extends Operator {
      * */
     public int aggregateField() {
 	// some code goes here
-    	return m_aggregateFieldIndex;
+    	return m_aggregateFields[0];
+    }
+
+    /**
+     * @return the aggregated fields in the <b>INPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+    	return m_aggregateFields;
     }
 
     /**
@@ -108,7 +219,14 @@ public class Aggregate extends Operator {
      * */
     public Aggregator.Op aggregateOp() {
 	// some code goes here
-    	return m_op;
+    	return m_ops[0];
+    }
+
+    /**
+     * @return the aggregate operator of each aggregated field
+     */
+    public Aggregator.Op[] aggregateOps() {
+    	return m_ops;
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -119,15 +237,137 @@ public class Aggregate extends Operator {
 	    TransactionAbortedException {
 	// some code goes here
     	super.open();
+    	dropPartitions();
     	m_tupleIterator.open();
-    	while (m_tupleIterator.hasNext())
+    	m_aggregator = newAggregator();
+    	// consume the child a batch at a time; children that cannot produce
+    	// batches are adapted
+    	BatchIterator input = DbIteratorBatchAdapter.of(m_tupleIterator);
+    	TupleBatch batch;
+    	while ((batch = input.nextBatch()) != null)
     	{
-    		m_aggregator.mergeTupleIntoGroup(m_tupleIterator.next());
+    		if (m_partitions != null)
+    			spillBatch(batch);
+    		else
+    		{
+    			m_aggregator.mergeBatchIntoGroup(batch);
+    			if (m_groupByFields.length > 0
+    					&& ((MultiAggregator) m_aggregator).numGroups() * bytesPerGroup() > m_memoryBudget)
+    				startSpilling();
+    		}
     	}
     	m_aggregateIterator = m_aggregator.iterator();
     	m_aggregateIterator.open();
     }
 
+    private void startSpilling() throws DbException {
+    	m_partitions = new SpillFile[FANOUT];
+    	m_nextPartition = 0;
+    	try {
+    		for (int i = 0; i < FANOUT; i++)
+    			m_partitions[i] = new SpillFile(m_tupleIterator.getTupleDesc());
+    	} catch (java.io.IOException e) {
+    		dropPartitions();
+    		throw new DbException("could not create aggregate partition: " + e.getMessage());
+    	}
+    }
+
+    /**
+     * Aggregate the rows of a batch whose groups are in memory, and write
+     * the others to the partition of their group.
+     */
+    private void spillBatch(TupleBatch batch) throws DbException {
+    	if (m_missing == null || m_missing.length < batch.size())
+    		m_missing = new int[Math.max(batch.size(), TupleBatch.DEFAULT_CAPACITY)];
+    	int n = ((MultiAggregator) m_aggregator).mergeBatchIfPresent(batch, m_missing);
+    	try {
+    		for (int i = 0; i < n; i++)
+    		{
+    			int row = m_missing[i];
+    			m_partitions[partitionOf(batch, row)].add(batch.getTuple(row));
+    		}
+    	} catch (java.io.IOException e) {
+    		throw new DbException("IO Exception writing aggregate partition: " + e.getMessage());
+    	}
+    }
+
+    /**
+     * @return the partition of the group key of a row
+     */
+    private int partitionOf(TupleBatch batch, int row) {
+    	int h = 0;
+    	for (int f : m_groupByFields)
+    	{
+    		if (m_tupleIterator.getTupleDesc().getFieldType(f) == Type.INT_TYPE)
+    			h = h * 31 + batch.getInts(f)[row];
+    		else
+    			h = h * 31 + batch.getStrings(f)[row].hashCode();
+    	}
+    	return partitionOf(h, m_depth);
+    }
+
+    /**
+     * Map the hash of a group key to a partition with a seed that depends on
+     * the depth. The seed is XORed in before the murmur3 finalizer, which
+     * mixes every bit of its input into every bit of its output, so the
+     * keys of one partition are spread over all partitions again when it is
+     * partitioned one level deeper.
+     */
+    static int partitionOf(int keyHash, int depth) {
+    	int h = keyHash ^ (depth * 0x61C88647);
+    	h ^= h >>> 16;
+    	h *= 0x85EBCA6B;
+    	h ^= h >>> 13;
+    	h *= 0xC2B2AE35;
+    	h ^= h >>> 16;
+    	return h & (FANOUT - 1);
+    }
+
+    /**
+     * Move on to the results of the next non-empty spilled partition.
+     *
+     * @return false if there are no more partitions
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+    	if (m_partitions == null)
+    		return false;
+    	while (m_nextPartition < FANOUT)
+    	{
+    		m_aggregateIterator.close();
+    		if (m_nextPartition > 0)
+    			m_partitions[m_nextPartition - 1].delete();
+    		SpillFile part = m_partitions[m_nextPartition++];
+    		if (part.size() == 0)
+    			continue;
+    		DbIterator rows;
+    		try {
+    			rows = part.iterator();
+    		} catch (java.io.IOException e) {
+    			throw new DbException("IO Exception reading aggregate partition: " + e.getMessage());
+    		}
+    		if (m_depth + 1 < MAX_SPILL_DEPTH)
+    			m_aggregateIterator = new Aggregate(rows, m_aggregateFields, m_ops, m_groupByFields,
+    					m_memoryBudget, m_depth + 1);
+    		else
+    			m_aggregateIterator = new SortAggregate(rows);
+    		m_aggregateIterator.open();
+    		return true;
+    	}
+    	return false;
+    }
+
+    private void dropPartitions() {
+    	if (m_partitions != null)
+    	{
+    		for (SpillFile f : m_partitions)
+    		{
+    			if (f != null)
+    				f.delete();
+    		}
+    		m_partitions = null;
+    	}
+    }
+
     /**
      * Returns the next tuple. If there is a group by field, then the first
      * field is the field by which we are grouping, and the second field is the
@@ -137,19 +377,43 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// some code goes here
-    	return m_aggregateIterator.hasNext() ? m_aggregateIterator.next() : null;
+    	do
+    	{
+    		if (m_aggregateIterator.hasNext())
+    			return m_aggregateIterator.next();
+    	} while (nextPartition());
+    	return null;
+    }
+
+    /**
+     * Returns the next batch of aggregate results.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+    	do
+    	{
+    		m_resultBatches = DbIteratorBatchAdapter.of(m_aggregateIterator, m_resultBatches);
+    		TupleBatch batch = m_resultBatches.nextBatch();
+    		if (batch != null)
+    			return batch;
+    	} while (nextPartition());
+    	return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
 	// some code goes here
+    	if (m_partitions != null)
+    	{
+    		// the partitions are deleted as they are consumed; aggregate again
+    		close();
+    		open();
+    		return;
+    	}
     	m_aggregateIterator.rewind();
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * followed by one column per aggregate.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -158,14 +422,16 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
 	// some code goes here
-    	return m_tupleIterator.getTupleDesc();
+    	return m_td;
     }
 
     public void close() {
 	// some code goes here
     	super.close();
     	m_tupleIterator.close();
-    	m_aggregateIterator.close();
+    	if (m_aggregateIterator != null)
+    		m_aggregateIterator.close();
+    	dropPartitions();
     }
 
     @Override
@@ -179,5 +445,94 @@ public class Aggregate extends Operator {
 	// some code goes here
     	m_aggregateIterator = children[0];
     }
-    
-}
\ No newline at end of file
+
+    /**
+     * Sort-based aggregation of a spilled partition: the rows are sorted on
+     * the group-by fields with an {@link ExternalSort}, so that each group's
+     * rows are adjacent and only one group is aggregated at a time.
+     */
+    private class SortAggregate extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DbIterator rows;
+        private transient ExternalSort sort;
+        private transient DbIterator sorted;
+        private transient Tuple pending;  // first row of the next group
+
+        SortAggregate(DbIterator rows) {
+            this.rows = rows;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            sort = new ExternalSort(rows.getTupleDesc(), m_groupByFields, true, m_memoryBudget);
+            rows.open();
+            while (rows.hasNext())
+                sort.add(rows.next());
+            rows.close();
+            sorted = sort.finish();
+            sorted.open();
+            pending = sorted.hasNext() ? sorted.next() : null;
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            if (sorted != null)
+                sorted.close();
+            if (sort != null)
+                sort.delete();
+            sorted = null;
+            sort = null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            sorted.rewind();
+            pending = sorted.hasNext() ? sorted.next() : null;
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (pending == null)
+                return null;
+            MultiAggregator group = new MultiAggregator(rows.getTupleDesc(), m_groupByFields,
+                    m_aggregateFields, m_ops);
+            Tuple first = pending;
+            group.mergeTupleIntoGroup(first);
+            pending = null;
+            while (sorted.hasNext()) {
+                Tuple t = sorted.next();
+                if (!sameGroup(first, t)) {
+                    pending = t;
+                    break;
+                }
+                group.mergeTupleIntoGroup(t);
+            }
+            DbIterator result = group.iterator();
+            result.open();
+            Tuple t = result.next();
+            result.close();
+            return t;
+        }
+
+        private boolean sameGroup(Tuple a, Tuple b) {
+            for (int f : m_groupByFields) {
+                if (!a.getField(f).equals(b.getField(f)))
+                    return false;
+            }
+            return true;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return m_td;
+        }
+
+        @Override
+        public DbIterator[] getChildren() {
+            return new DbIterator[] {rows};
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+        }
+    }
+}
@@ -76,6 +76,15 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every row of a batch into the aggregate; equivalent to calling
+     * mergeTupleIntoGroup on each of them.
+     *
+     * @param batch the rows containing an aggregate field and a group-by
+     *              field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha). Resident pages are split
+ * between T1 (seen once recently) and T2 (seen at least twice); ghost lists
+ * B1 and B2 remember the ids of pages recently evicted from each. A miss
+ * that hits a ghost list shifts the target size of T1 towards recency or
+ * frequency, so the policy tunes itself to the workload.
+ */
+public class ArcEvictionPolicy implements EvictionPolicy {
+
+    private final int capacity;
+    private int p = 0; // target size of T1
+    private final LinkedHashSet<PageId> t1 = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> t2 = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> b1 = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> b2 = new LinkedHashSet<PageId>();
+
+    /**
+     * @param capacity the number of pages in the buffer pool
+     */
+    public ArcEvictionPolicy(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (t1.contains(pid) || t2.contains(pid)) {
+            pageHit(pid);
+        } else if (b1.remove(pid)) {
+            p = Math.min(capacity, p + Math.max(b2.size() / Math.max(1, b1.size()), 1));
+            t2.add(pid);
+        } else if (b2.remove(pid)) {
+            p = Math.max(0, p - Math.max(b1.size() / Math.max(1, b2.size()), 1));
+            t2.add(pid);
+        } else {
+            t1.add(pid);
+        }
+        trimGhosts();
+    }
+
+    public synchronized void pageHit(PageId pid) {
+        if (t1.remove(pid) || t2.remove(pid))
+            t2.add(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        t1.remove(pid);
+        t2.remove(pid);
+    }
+
+    public synchronized PageId evict(Evictable evictable) {
+        PageId victim;
+        if (!t1.isEmpty() && (t1.size() > p || t2.isEmpty())) {
+            victim = evictFrom(t1, b1, evictable);
+            if (victim == null)
+                victim = evictFrom(t2, b2, evictable);
+        } else {
+            victim = evictFrom(t2, b2, evictable);
+            if (victim == null)
+                victim = evictFrom(t1, b1, evictable);
+        }
+        trimGhosts();
+        return victim;
+    }
+
+    private PageId evictFrom(LinkedHashSet<PageId> list, LinkedHashSet<PageId> ghost, Evictable evictable) {
+        Iterator<PageId> it = list.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.canEvict(pid)) {
+                it.remove();
+                ghost.add(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    // keep |T1| + |B1| <= c and the whole directory <= 2c
+    private void trimGhosts() {
+        while (!b1.isEmpty() && t1.size() + b1.size() > capacity)
+            removeOldest(b1);
+        while (!b2.isEmpty() && t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity)
+            removeOldest(b2);
+    }
+
+    private static void removeOldest(LinkedHashSet<PageId> list) {
+        Iterator<PageId> it = list.iterator();
+        it.next();
+        it.remove();
+    }
+}
@@ -25,6 +25,7 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private final int keyField;
+    private final PageChannel channel;
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -39,6 +40,7 @@ public class BTreeFile implements DbFile {
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.channel = new PageChannel(f);
     }
 
     /**
@@ -79,34 +81,17 @@ public class BTreeFile implements DbFile {
      */
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
-        BufferedInputStream bis = null;
 
         try {
-            bis = new BufferedInputStream(new FileInputStream(f));
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read " + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
+                channel.read(0, pageBuf);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
                 BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
                 return p;
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.pageNumber() - 1) * BufferPool.getPageSize()) != BTreeRootPtrPage.getPageSize() + (long) (id.pageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read " + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
+                channel.read(pageOffset(id.pageNumber()), pageBuf);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
                     BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
@@ -119,15 +104,10 @@ public class BTreeFile implements DbFile {
                     return p;
                 }
             }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Read past end of table");
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            // Close the file on success or error
-            try {
-                if (bis != null) bis.close();
-            } catch (IOException ioe) {
-                // Ignore failures closing the file
-            }
         }
     }
 
@@ -141,17 +121,26 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
+            channel.write(0, data);
         } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().pageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            channel.write(pageOffset(page.getId().pageNumber()), data);
         }
     }
 
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return the file offset of the (non root pointer) page with the given
+     *         page number; page numbers start at 1 after the root pointer page
+     */
+    private static long pageOffset(int pageNumber) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pageNumber - 1) * BufferPool.getPageSize();
+    }
+
     /**
      * Returns the number of pages in this BTreeFile.
      */
@@ -1044,10 +1033,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        channel.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().discardPage(newPageId);
@@ -1175,6 +1161,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    ReadAhead readAhead;
 
     TransactionId tid;
     BTreeFile f;
@@ -1198,6 +1185,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         BTreePageId root = rootPtr.getRootId();
         curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
         it = curp.iterator();
+        readAhead = new ReadAhead();
     }
 
     /**
@@ -1216,6 +1204,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
                 curp = null;
             } else {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
+                readAhead.leafPageRead(curp);
                 it = curp.iterator();
                 if (!it.hasNext()) it = null;
             }
@@ -1251,6 +1240,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    ReadAhead readAhead;
 
     TransactionId tid;
     BTreeFile f;
@@ -1282,6 +1272,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
         }
         it = curp.iterator();
+        // searches bounded from above stop at a key, not at the end of the
+        // leaf chain, so reading ahead would fetch pages they never use
+        if (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ)
+            readAhead = new ReadAhead();
+        else
+            readAhead = null;
     }
 
     /**
@@ -1315,6 +1311,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
                 return null;
             } else {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
+                if (readAhead != null)
+                    readAhead.leafPageRead(curp);
                 it = curp.iterator();
             }
         }
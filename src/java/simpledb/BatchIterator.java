@@ -0,0 +1,25 @@
+package simpledb;
+
+/**
+ * BatchIterator is implemented by operators that can produce their output a
+ * {@link TupleBatch} at a time, in addition to the tuple-at-a-time
+ * {@link DbIterator} interface. Operators that consume batches wrap children
+ * that only implement DbIterator with {@link DbIteratorBatchAdapter#of}, and
+ * a batch pipeline is turned back into tuples with
+ * {@link BatchTupleIterator}.
+ * <p>
+ * Between an open (or rewind) and the end of the iteration, a consumer
+ * calls either nextBatch or hasNext/next, never both.
+ */
+public interface BatchIterator extends DbIterator {
+
+    /**
+     * Returns the next batch of tuples. The batch, and any column arrays
+     * taken from it, belong to this iterator and are only valid until the
+     * next call to nextBatch, rewind or close.
+     *
+     * @return a non-empty batch, or null if there are no more tuples
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
@@ -0,0 +1,63 @@
+package simpledb;
+
+/**
+ * Presents a {@link BatchIterator} as a tuple-at-a-time DbIterator, so that
+ * a batch pipeline can feed operators that only consume tuples. The child
+ * is driven exclusively through nextBatch.
+ */
+public class BatchTupleIterator extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private transient TupleBatch batch;
+    private transient int row;
+
+    /**
+     * @param child the batch iterator to read from
+     */
+    public BatchTupleIterator(BatchIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || row >= batch.size()) {
+            batch = child.nextBatch();
+            row = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(row++);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] {child};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = DbIteratorBatchAdapter.of(children[0]);
+    }
+}
@@ -7,7 +7,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -32,17 +34,46 @@ public class BufferPool {
      */
     private static final int PAGE_SIZE = 4096;
     private static int pageSize = PAGE_SIZE;
+    /**
+     * Number of threads expected to update the page table at once. Since
+     * Java 8 this is only a sizing hint to ConcurrentHashMap, whose reads
+     * take no lock and whose writes lock single bins.
+     */
+    private static final int PAGE_TABLE_CONCURRENCY = 16;
     final int numPages;   // number of pages -- currently, not enforced
     final ConcurrentHashMap<PageId, Page> pages; // hash table storing current pages in memory
+    final EvictionPolicy policy; // decides which page to give up when the pool is full; called under the pool monitor
+    final HitBuffer hits; // cache hits not yet replayed into the policy
+    final ConcurrentHashMap<PageId, CompletableFuture<Page>> loading; // page reads currently in flight
+    private volatile long flushCount = 0; // bumped under the pool monitor whenever a page is written out
+    final LockManager lockManager; // page-level shared/exclusive locks held by transactions
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, evicting the
+     * least recently used page when it is full.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new LruEvictionPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to choose which page to evict when it is full.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy   the page replacement policy, e.g. a
+     *                 {@link ClockEvictionPolicy} or {@link ArcEvictionPolicy}
+     *                 sized for numPages
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
         this.numPages = numPages;
-        this.pages = new ConcurrentHashMap<PageId, Page>();
+        this.pages = new ConcurrentHashMap<PageId, Page>(numPages, 0.75f, PAGE_TABLE_CONCURRENCY);
+        this.loading = new ConcurrentHashMap<PageId, CompletableFuture<Page>>();
+        this.lockManager = new LockManager();
+        this.policy = policy;
+        this.hits = new HitBuffer();
     }
 
     public static int getPageSize() {
@@ -75,23 +106,128 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
-        // XXX Yuan points out that HashMap is not synchronized, so this is buggy.
-        // XXX TODO(ghuo): do we really know enough to implement NO STEAL here?
-        //     won't we still evict pages?
-        Page p;
+        if (tid != null)
+            lockManager.acquire(tid, pid, perm);
+
+        // hits never take a lock: the page table is a ConcurrentHashMap,
+        // whose reads are lock-free, and the hit is only recorded in a
+        // HitBuffer, which the policy catches up with under the pool monitor
+        Page p = pages.get(pid);
+        if (p != null) {
+            hits.record(pid);
+            return p;
+        }
+        return loadPage(pid, false);
+    }
+
+    /**
+     * Read a page into the pool ahead of its use by a sequential scan. Unlike
+     * {@link #getPage} this takes no lock and never blocks on one, and it
+     * gives up rather than fail if the pool is full of dirty pages.
+     *
+     * @param pid the id of the page to read
+     * @return the cached page, or null if there was no room for it
+     * @see ReadAhead
+     */
+    Page prefetchPage(PageId pid) throws DbException {
+        return loadPage(pid, true);
+    }
+
+    /**
+     * Bring a page that missed in the page table into the pool. Concurrent
+     * misses on the same page share one read through a per-PageId future;
+     * misses on different pages only serialize while making room, never
+     * while reading from disk.
+     *
+     * @param readAhead true if the caller holds no lock on the page and only
+     *                  wants it cached if there is room
+     * @return the page, or null if readAhead is set and there was no room
+     */
+    private Page loadPage(PageId pid, boolean readAhead) throws DbException {
+        while (true) {
+            Page p = pages.get(pid);
+            if (p != null) {
+                if (!readAhead)
+                    hits.record(pid);
+                return p;
+            }
+            CompletableFuture<Page> load = new CompletableFuture<Page>();
+            CompletableFuture<Page> inFlight = loading.putIfAbsent(pid, load);
+            if (inFlight != null) {
+                p = awaitLoad(inFlight);
+                if (p != null || readAhead)
+                    return p;
+                continue; // a read-ahead gave up on this page; load it ourselves
+            }
+
+            try {
+                // another thread may have finished loading between our lookup
+                // and registering the future
+                p = pages.get(pid);
+                if (p == null)
+                    p = readAndInstall(pid, readAhead);
+                load.complete(p);
+                return p;
+            } catch (DbException e) {
+                load.completeExceptionally(e);
+                throw e;
+            } catch (RuntimeException e) {
+                load.completeExceptionally(e);
+                throw e;
+            } finally {
+                loading.remove(pid, load);
+            }
+        }
+    }
+
+    /**
+     * Make room for a page, read it from its DbFile and add it to the page
+     * table. If any page is flushed while the read is in progress the page is
+     * read again, so a reader that holds no lock on it (read-ahead) can never
+     * install a version older than what is on disk.
+     */
+    private Page readAndInstall(PageId pid, boolean readAhead) throws DbException {
         synchronized (this) {
-            p = pages.get(pid);
-            if (p == null) {
-                if (pages.size() >= numPages) {
+            while (pages.size() >= numPages) {
+                try {
                     evictPage();
+                } catch (DbException e) {
+                    if (readAhead)
+                        return null;
+                    throw e;
                 }
-
-                p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                pages.put(pid, p);
             }
         }
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        long stamp = flushCount;
+        while (true) {
+            Page p = file.readPage(pid);
+            synchronized (this) {
+                if (stamp == flushCount) {
+                    // a modification may have cached a newer version meanwhile
+                    Page cached = pages.putIfAbsent(pid, p);
+                    if (cached != null)
+                        return cached;
+                    hits.drainTo(policy);
+                    policy.pageLoaded(pid);
+                    return p;
+                }
+                stamp = flushCount;
+            }
+        }
+    }
 
-        return p;
+    private static Page awaitLoad(CompletableFuture<Page> load) throws DbException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for page read");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new DbException("page read failed: " + e.getCause());
+        }
     }
 
     /**
@@ -104,8 +240,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2|lab3
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -114,35 +249,54 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2|lab3
+        transactionComplete(tid, true);
     }
 
     /**
      * Return true if the specified transaction has a lock on the specified page
      */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2|lab3
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * On commit the pages dirtied by the transaction are forced to disk; on
+     * abort they are dropped from the pool so the next reader sees the
+     * committed version on disk (the pool never writes out uncommitted
+     * pages, see {@link #evictPage}), and heap files are told that the
+     * dropped pages may have room again.
      *
      * @param tid    the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2|lab3
+        try {
+            if (commit) {
+                flushPages(tid);
+            } else {
+                for (PageId pid : lockManager.lockedPages(tid)) {
+                    Page p = pages.get(pid);
+                    if (p != null && tid.equals(p.isDirty())) {
+                        discardPage(pid);
+                        // the inserts the abort undoes may have filled it
+                        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                        if (file instanceof HeapFile)
+                            ((HeapFile) file).pageRolledBack(pid.pageNumber());
+                    }
+                }
+            }
+        } finally {
+            lockManager.releaseAll(tid);
+        }
     }
 
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other
-     * pages that are updated (Lock acquisition is not needed for lab2).
+     * pages that are updated.
      * May block if the lock(s) cannot be acquired.
      * <p>
      * Marks any pages that were dirtied by the operation as dirty by calling
@@ -159,8 +313,9 @@ public class BufferPool {
         ArrayList<Page> changedPages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t); //Get ArrayList of changed PAges after inserting tuple
 
         for (Page nextPage : changedPages) { //Loop Over changed Pages
+            lockManager.acquire(tid, nextPage.getId(), Permissions.READ_WRITE); // newly appended pages were never fetched
             nextPage.markDirty(true, tid); // Mark Page as Dirty using Helper function
-            this.pages.put(nextPage.getId(), nextPage); // Insert Dirty Page into Buffer pool
+            cachePage(nextPage); // Insert Dirty Page into Buffer pool
         }
     }
 
@@ -182,11 +337,24 @@ public class BufferPool {
         //Changed to be more Generic (should work with more than just Heap Files)
         ArrayList<Page> changedPages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t); //Get ArrayList of Changed pages after deletion
         for(Page nextPage : changedPages){ //Loop over changed pages
+            lockManager.acquire(tid, nextPage.getId(), Permissions.READ_WRITE);
             nextPage.markDirty(true, tid); //Mark as Dirty
-            this.pages.put(nextPage.getId(), nextPage); //Put into buffer pool
+            cachePage(nextPage); //Put into buffer pool
         }
     }
 
+    /**
+     * Install a page returned by a DbFile modification in the pool, replacing
+     * any cached version, and tell the eviction policy about it.
+     */
+    private synchronized void cachePage(Page p) {
+        hits.drainTo(policy);
+        if (pages.put(p.getId(), p) == null)
+            policy.pageLoaded(p.getId());
+        else
+            policy.pageHit(p.getId());
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -208,7 +376,10 @@ public class BufferPool {
      * are removed from the cache so they can be reused safely
      */
     public synchronized void discardPage(PageId pid) {
-        pages.remove(pid);
+        if (pages.remove(pid) != null) {
+            hits.drainTo(policy);
+            policy.pageRemoved(pid);
+        }
     }
 
     /**
@@ -222,6 +393,7 @@ public class BufferPool {
         if (pages.containsKey(pid)) {
             Page p = pages.get(pid);
             if (p.isDirty() != null) {
+                flushCount++;
                 Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
                 p.markDirty(false, null);
             }
@@ -236,31 +408,35 @@ public class BufferPool {
      * Write all pages of the specified transaction to disk.
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2|lab3
+        // a transaction can only have dirtied pages it holds locks on
+        for (PageId pid : lockManager.lockedPages(tid)) {
+            Page p = pages.get(pid);
+            if (p != null && tid.equals(p.isDirty())) {
+                flushPage(pid);
+                p.setBeforeImage();
+            }
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Only clean pages are evicted (NO STEAL), so uncommitted changes never
+     * reach disk and aborting a transaction only has to drop its pages.
      */
     private synchronized void evictPage() throws DbException {
         // note to self/team: Steal method is when the buffer manager replaces an existing page in the cache, that has been updated by a transaction not yet committed, by another page requested by another transaction.
         // page eviction does the opposite, we call it no-steal
 
-        PageId pidEvict = null; // Page ID to Evict
-        for (PageId pid : pages.keySet()) { // Loop over all pages in buffer pool
-            if (pidEvict == null) { // If we haven't found a page to evict yet
-                pidEvict = pid; // Set the page to evict to the first page in the buffer pool
-            } else { // If we have found a page to evict
-                if (pages.get(pid).isDirty() == null) { // If the page is not dirty
-                    pidEvict = pid; // Set the page to evict to the current page
-                }   // If the page is dirty, we don't want to evict it, so we keep the page we have already found
+        hits.drainTo(policy);
+        PageId pidEvict = policy.evict(new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                Page p = pages.get(pid);
+                return p == null || p.isDirty() == null;
             }
-        }
+        });
 
         if (pidEvict == null) { // If we haven't found a page to evict
-            throw new DbException("No evictable pages"); // Throw an exception
+            throw new DbException("No evictable pages: all pages in the buffer pool are dirty"); // Throw an exception
         } else {
             try {
                 flushPage(pidEvict);
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * Loads the tuples read from the child operator into a HeapFile through
+ * {@link HeapFile#bulkAppend}, the COPY path of SimpleDB. Unlike
+ * {@link Insert}, tuples do not go through the buffer pool: they are packed
+ * into fresh pages appended to the end of the table, which makes loading
+ * millions of rows a sequential write instead of a page search and a
+ * cached, dirty page per insert.
+ * <p>
+ * The appended pages are neither locked nor undone if the transaction
+ * aborts; see {@link HeapFile#bulkAppend}.
+ */
+public class BulkInsert extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    TransactionId transactionId;
+    DbIterator iter;
+    int tableId;
+    boolean inserted;
+    TupleDesc resultTupleDesc;
+    long tuplesPerSecond;
+
+    /**
+     * Constructor.
+     *
+     * @param t       The transaction running the load.
+     * @param child   The child operator from which to read tuples to be
+     *                loaded.
+     * @param tableid The table to load the tuples into.
+     * @throws DbException if the table is not a HeapFile, or the TupleDesc of
+     *                     child differs from the table's.
+     */
+    public BulkInsert(TransactionId t, DbIterator child, int tableid) throws DbException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile))
+            throw new DbException("bulk insert is only supported into heap files");
+        if (!file.getTupleDesc().equals(child.getTupleDesc()))
+            throw new DbException("TupleDesc of child differs from table " + tableid);
+        transactionId = t;
+        iter = child;
+        tableId = tableid;
+        inserted = false;
+
+        String[] names = new String[] {"Inserted", "TuplesPerSecond"};
+        Type[] types = new Type[] {Type.INT_TYPE, Type.INT_TYPE};
+        resultTupleDesc = new TupleDesc(types, names);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return resultTupleDesc;
+    }
+
+    /**
+     * @return the load rate of the last completed load, in tuples per second
+     */
+    public long getTuplesPerSecond() {
+        return tuplesPerSecond;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        iter.open();
+        inserted = false;
+    }
+
+    public void close() {
+        super.close();
+        iter.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        iter.rewind();
+    }
+
+    /**
+     * Appends all tuples read from child to the table specified by the
+     * constructor.
+     *
+     * @return A 2-field tuple containing the number of loaded records and the
+     *         load rate in tuples per second, or null if called more than
+     *         once.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (inserted)
+            return null;
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        long start = System.nanoTime();
+        int count;
+        try {
+            count = file.bulkAppend(iter);
+        } catch (IOException e) {
+            throw new DbException("IO Exception on bulk insert: " + e.getMessage());
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        tuplesPerSecond = count * 1000000000L / elapsed;
+
+        Tuple resultTuple = new Tuple(resultTupleDesc);
+        resultTuple.setField(0, new IntField(count));
+        resultTuple.setField(1, new IntField((int) Math.min(Integer.MAX_VALUE, tuplesPerSecond)));
+        inserted = true;
+        return resultTuple;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] {iter};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        iter = children[0];
+    }
+}
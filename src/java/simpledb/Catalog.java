@@ -51,9 +51,11 @@ public class Catalog {
 		// it means that you can no longer get at those tables by ID, but it saves
 		// some amount of memory.
 		if (name2id.containsKey(name)) {
-			id2table.remove( name2id.get(name) );
+			DbFile old = id2table.remove( name2id.get(name) );
 			id2tupledesc.remove( name2id.get(name) );
 			name2id.remove(name);
+			if (old != null && old != file)
+				closeFile(old);
 		}
 		
         id2tupledesc.put(file.getId(), file.getTupleDesc());
@@ -128,6 +130,7 @@ public class Catalog {
     
     /** Delete all tables from the catalog */
     public void clear() {
+        close();
         id2table.clear();
         id2tupledesc.clear();
         name2id.clear();
@@ -135,6 +138,23 @@ public class Catalog {
         pkey.clear();
     }
     
+    /**
+     * Close the files backing every table in the catalog. The tables stay in
+     * the catalog and reopen their files on next use.
+     */
+    public void close() {
+        for (DbFile file : id2table.values())
+            closeFile(file);
+    }
+
+    private static void closeFile(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
      * @param catalogFile
@@ -177,7 +197,8 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                // catalog tables are durable, so their free-space maps are too
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, true);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
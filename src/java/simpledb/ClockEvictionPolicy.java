@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) eviction. Resident pages sit in a circular array of
+ * frames, each with a reference bit that is set on every hit. The clock hand
+ * sweeps the frames, clearing reference bits, and evicts the first evictable
+ * page whose bit is already clear.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private PageId[] frames;
+    private boolean[] referenced;
+    private final HashMap<PageId, Integer> frameOf = new HashMap<PageId, Integer>();
+    private final ArrayDeque<Integer> freeFrames = new ArrayDeque<Integer>();
+    private int used = 0; // high-water mark of frames handed out
+    private int hand = 0;
+
+    /**
+     * @param capacity the number of pages in the buffer pool; the clock
+     *                 grows if more pages than this are ever resident
+     */
+    public ClockEvictionPolicy(int capacity) {
+        frames = new PageId[Math.max(1, capacity)];
+        referenced = new boolean[frames.length];
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null) {
+            frame = freeFrames.isEmpty() ? nextUnusedFrame() : freeFrames.pop();
+            frames[frame] = pid;
+            frameOf.put(pid, frame);
+        }
+        referenced[frame] = true;
+    }
+
+    public synchronized void pageHit(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null)
+            referenced[frame] = true;
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null)
+            release(frame);
+    }
+
+    public synchronized PageId evict(Evictable evictable) {
+        if (frameOf.isEmpty())
+            return null;
+        // two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * used; i++) {
+            int frame = hand;
+            hand = (hand + 1) % used;
+            PageId pid = frames[frame];
+            if (pid == null)
+                continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+            } else if (evictable.canEvict(pid)) {
+                frameOf.remove(pid);
+                release(frame);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void release(int frame) {
+        frames[frame] = null;
+        referenced[frame] = false;
+        freeFrames.push(frame);
+    }
+
+    private int nextUnusedFrame() {
+        if (used == frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+            referenced = Arrays.copyOf(referenced, referenced.length * 2);
+        }
+        return used++;
+    }
+}
@@ -88,4 +88,13 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Releases any open handles on the underlying file. Called by the
+     * {@link Catalog} when the table is dropped; a file that is used again
+     * after being closed should reopen itself.
+     *
+     * @throws IOException if the file can't be closed
+     */
+    public void close() throws IOException;
 }
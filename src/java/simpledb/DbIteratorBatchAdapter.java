@@ -0,0 +1,75 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Presents a tuple-at-a-time DbIterator as a {@link BatchIterator}, by
+ * collecting its tuples into batches.
+ */
+public class DbIteratorBatchAdapter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DbIterator child;
+    private transient TupleBatch batch;
+
+    /**
+     * @param child the iterator to read tuples from
+     */
+    public DbIteratorBatchAdapter(DbIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * @return it, if it can produce batches itself, or an adapter around it
+     */
+    public static BatchIterator of(DbIterator it) {
+        if (it instanceof BatchIterator)
+            return (BatchIterator) it;
+        return new DbIteratorBatchAdapter(it);
+    }
+
+    /**
+     * Like {@link #of(DbIterator)}, but reuses cached if it already adapts
+     * it, so that an operator does not allocate a new adapter (and batch)
+     * per call.
+     */
+    public static BatchIterator of(DbIterator it, BatchIterator cached) {
+        if (cached instanceof DbIteratorBatchAdapter && ((DbIteratorBatchAdapter) cached).child == it)
+            return cached;
+        return of(it);
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null)
+            batch = new TupleBatch(child.getTupleDesc());
+        batch.clear();
+        while (!batch.isFull() && child.hasNext())
+            batch.addTuple(child.next());
+        return batch.isEmpty() ? null : batch;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return child.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        return child.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,58 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which page the {@link BufferPool} should give up
+ * when it is full. The BufferPool reports every page that enters the pool,
+ * every cache hit and every page it drops on its own; the policy keeps
+ * whatever bookkeeping it needs to pick a victim in (amortized) constant
+ * time.
+ * <p>
+ * Implementations must be safe to call from several threads at once.
+ *
+ * @see BufferPool#BufferPool(int, EvictionPolicy)
+ * @see LruEvictionPolicy
+ * @see ClockEvictionPolicy
+ * @see TwoQueueEvictionPolicy
+ * @see ArcEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Callback used by {@link #evict} to ask the BufferPool whether a
+     * candidate page may be evicted right now (e.g., it is not dirty).
+     */
+    public interface Evictable {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Record that a page was read into the pool after a miss.
+     *
+     * @param pid the id of the page now resident in the pool
+     */
+    public void pageLoaded(PageId pid);
+
+    /**
+     * Record a cache hit on a page that is already resident in the pool.
+     *
+     * @param pid the id of the page that was accessed
+     */
+    public void pageHit(PageId pid);
+
+    /**
+     * Forget a page that the BufferPool dropped without asking the policy,
+     * e.g. through {@link BufferPool#discardPage}.
+     *
+     * @param pid the id of the page that left the pool
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose a victim among the resident pages and forget it.
+     *
+     * @param evictable tells the policy which candidates may be evicted
+     * @return the id of the page to evict, or null if no resident page may
+     *         be evicted
+     */
+    public PageId evict(Evictable evictable);
+}
@@ -0,0 +1,413 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exchange connects plan fragments that run on different threads. Each
+ * producer subtree given to an exchange is run by a thread of its own,
+ * which reads it a batch at a time and sends the batches down bounded
+ * queues to the exchange's outputs; each output is an Exchange operator
+ * that a consumer on another thread reads like any other child.
+ * <ul>
+ * <li>{@link #gather} merges the tuples of all producers into a single
+ * output, in no particular order.</li>
+ * <li>{@link #repartition} hashes every tuple on a field and sends it to one
+ * of n outputs, so that equal values always reach the same output; two
+ * inputs repartitioned the same way on their join fields can be joined
+ * partition by partition.</li>
+ * <li>{@link #broadcast} sends every tuple to all n outputs.</li>
+ * </ul>
+ * For instance, a GROUP BY runs on n cores as a gather of n Aggregates,
+ * each reading one output of a repartition of the input on the first group
+ * field.
+ * <p>
+ * The producers start when the first output is opened, and are stopped and
+ * closed once every output has been closed; rewinding an output reruns the
+ * producers for all of the outputs, so outputs of a repartition or a
+ * broadcast must be rewound together, as when a gather above them is
+ * rewound. Since producer threads block while the queues are full, they run
+ * on a pool that grows with demand rather than a fixed one.
+ */
+public class Exchange extends Operator implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** How an exchange distributes the tuples of its producers. */
+    public enum Mode {
+        GATHER, REPARTITION, BROADCAST
+    }
+
+    /** Number of batches each output queues before producers block. */
+    public static final int QUEUE_BATCHES = 8;
+
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-exchange");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** Marks the end of one producer's tuples in an output queue. */
+    private static final Object END = new Object();
+
+    private final Producers producers;
+    private final int output;
+    private transient boolean opened;
+    private transient TupleBatch batch;  // the batch fetchNext reads
+    private transient int nextRow;
+
+    private Exchange(Producers producers, int output) {
+        this.producers = producers;
+        this.output = output;
+    }
+
+    /**
+     * @return a single output returning the tuples of all producers
+     */
+    public static Exchange gather(DbIterator... children) {
+        return new Producers(children, Mode.GATHER, -1, 1).outputs[0];
+    }
+
+    /**
+     * @param field the field the tuples are hashed on
+     * @param n     the number of outputs
+     * @return n outputs that each return the tuples of the producers whose
+     *         field hashes to them
+     */
+    public static Exchange[] repartition(DbIterator[] children, int field, int n) {
+        return new Producers(children, Mode.REPARTITION, field, n).outputs;
+    }
+
+    /**
+     * @param n the number of outputs
+     * @return n outputs that each return every tuple of the producers
+     */
+    public static Exchange[] broadcast(DbIterator[] children, int n) {
+        return new Producers(children, Mode.BROADCAST, -1, n).outputs;
+    }
+
+    /**
+     * @return the output of a repartition to which a value is sent
+     */
+    public static int partitionOf(Field value, int n) {
+        int h = value instanceof IntField ? ((IntField) value).getValue()
+                : ((StringField) value).getValue().hashCode();
+        return partitionOf(h, n);
+    }
+
+    private static int partitionOf(int h, int n) {
+        h *= 0x9E3779B9;
+        h ^= h >>> 16;
+        return (int) (((h & 0xFFFFFFFFL) * n) >>> 32);
+    }
+
+    public Mode getMode() {
+        return producers.mode;
+    }
+
+    /**
+     * @return the field a repartition hashes on, or -1
+     */
+    public int getField() {
+        return producers.field;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return producers.td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (!opened)
+            producers.openOutput();
+        opened = true;
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (opened)
+            producers.closeOutput();
+        opened = false;
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        producers.restart();
+        batch = null;
+    }
+
+    /**
+     * Returns the next batch sent to this output; it belongs to this output
+     * and may be modified by the consumer.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return producers.take(output);
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (batch == null || nextRow == batch.size()) {
+            batch = nextBatch();
+            nextRow = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(nextRow++);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return producers.children.clone();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        producers.children = children.clone();
+    }
+
+    /**
+     * The producer side of an exchange, shared by its outputs. Each start
+     * of the producers is a new generation; producers of an older generation
+     * stop sending at their next batch.
+     */
+    private static final class Producers implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private DbIterator[] children;
+        private final Mode mode;
+        private final int field;
+        private final TupleDesc td;
+        private final Exchange[] outputs;
+
+        // the state of a run, which is not serialized: a deserialized
+        // exchange starts out stopped
+        private transient List<ArrayBlockingQueue<Object>> queues;
+        private transient int[] ended;   // producers that finished, per output
+        private transient int openOutputs;
+        private transient int running;   // producer threads not yet finished
+        private transient int generation;
+        private transient boolean stopped;
+
+        Producers(DbIterator[] children, Mode mode, int field, int n) {
+            if (children.length == 0)
+                throw new IllegalArgumentException("an exchange needs a producer");
+            if (n < 1)
+                throw new IllegalArgumentException("an exchange needs an output");
+            this.children = children.clone();
+            this.mode = mode;
+            this.field = field;
+            this.td = children[0].getTupleDesc();
+            this.outputs = new Exchange[n];
+            for (int i = 0; i < n; i++)
+                outputs[i] = new Exchange(this, i);
+            initRun();
+        }
+
+        private void initRun() {
+            queues = new ArrayList<ArrayBlockingQueue<Object>>(outputs.length);
+            for (int i = 0; i < outputs.length; i++)
+                queues.add(new ArrayBlockingQueue<Object>(QUEUE_BATCHES));
+            ended = new int[outputs.length];
+            stopped = true;
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            initRun();
+        }
+
+        synchronized void openOutput() {
+            if (openOutputs++ == 0)
+                start();
+        }
+
+        synchronized void closeOutput() {
+            if (openOutputs > 0 && --openOutputs == 0)
+                stop();
+        }
+
+        synchronized void restart() {
+            stop();
+            start();
+        }
+
+        private void start() {
+            if (!stopped)
+                return;
+            for (int i = 0; i < queues.size(); i++) {
+                queues.get(i).clear();
+                ended[i] = 0;
+            }
+            stopped = false;
+            final int gen = ++generation;
+            for (final DbIterator child : children) {
+                running++;
+                pool.execute(new Runnable() {
+                    public void run() {
+                        produce(child, gen);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Stop the producers, and wait until they have closed their
+         * subtrees: a producer notices at its next batch.
+         */
+        private void stop() {
+            stopped = true;
+            generation++;
+            for (ArrayBlockingQueue<Object> q : queues)
+                q.clear();
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            for (ArrayBlockingQueue<Object> q : queues)
+                q.clear();
+        }
+
+        private synchronized boolean isCurrent(int gen) {
+            return gen == generation;
+        }
+
+        private synchronized void producerDone() {
+            running--;
+            notifyAll();
+        }
+
+        /** Read one producer subtree and send its tuples to the outputs. */
+        private void produce(DbIterator child, int gen) {
+            int n = queues.size();
+            try {
+                child.open();
+                try {
+                    BatchIterator in = DbIteratorBatchAdapter.of(child);
+                    TupleBatch[] pending = new TupleBatch[n];
+                    TupleBatch b;
+                    while ((b = in.nextBatch()) != null && isCurrent(gen)) {
+                        if (mode == Mode.REPARTITION) {
+                            route(b, pending, gen);
+                        } else {
+                            for (int o = 0; o < n; o++)
+                                send(o, copy(b), gen);
+                        }
+                    }
+                    for (int o = 0; o < n; o++) {
+                        if (pending[o] != null && !pending[o].isEmpty())
+                            send(o, pending[o], gen);
+                    }
+                } finally {
+                    child.close();
+                }
+                for (int o = 0; o < n; o++)
+                    send(o, END, gen);
+            } catch (Throwable e) {
+                for (int o = 0; o < n; o++) {
+                    try {
+                        send(o, e, gen);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            } finally {
+                producerDone();
+            }
+        }
+
+        private void route(TupleBatch b, TupleBatch[] pending, int gen) throws InterruptedException {
+            int n = queues.size();
+            boolean ints = td.getFieldType(field) == Type.INT_TYPE;
+            int[] intKeys = ints ? b.getInts(field) : null;
+            String[] stringKeys = ints ? null : b.getStrings(field);
+            for (int row = 0; row < b.size(); row++) {
+                int o = partitionOf(ints ? intKeys[row] : stringKeys[row].hashCode(), n);
+                if (pending[o] == null)
+                    pending[o] = new TupleBatch(td);
+                pending[o].addRow(b, row);
+                if (pending[o].isFull()) {
+                    send(o, pending[o], gen);
+                    pending[o] = null;
+                }
+            }
+        }
+
+        private static TupleBatch copy(TupleBatch b) {
+            TupleBatch c = new TupleBatch(b.getTupleDesc(), b.size());
+            for (int row = 0; row < b.size(); row++)
+                c.addRow(b, row);
+            return c;
+        }
+
+        /** Queue an item for an output, unless the generation is over. */
+        private void send(int o, Object item, int gen) throws InterruptedException {
+            while (isCurrent(gen)) {
+                if (queues.get(o).offer(item, 10, TimeUnit.MILLISECONDS))
+                    return;
+            }
+        }
+
+        /**
+         * @return the next batch of an output, or null once every producer
+         *         has finished
+         */
+        TupleBatch take(int o) throws DbException, TransactionAbortedException {
+            while (true) {
+                synchronized (this) {
+                    if (stopped)
+                        throw new IllegalStateException("exchange is closed");
+                    if (ended[o] == children.length)
+                        return null;
+                }
+                Object item;
+                try {
+                    item = queues.get(o).poll(10, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted while reading an exchange");
+                }
+                if (item == null)
+                    continue;
+                if (item == END) {
+                    synchronized (this) {
+                        ended[o]++;
+                    }
+                } else if (item instanceof TupleBatch) {
+                    return (TupleBatch) item;
+                } else {
+                    rethrow((Throwable) item);
+                }
+            }
+        }
+    }
+
+    private static void rethrow(Throwable e) throws DbException, TransactionAbortedException {
+        if (e instanceof DbException)
+            throw (DbException) e;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        throw new RuntimeException(e);
+    }
+}
@@ -0,0 +1,342 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples on one or more fields within a
+ * memory budget.
+ * Tuples are buffered until the budget is reached; the buffer is then sorted
+ * and written to a {@link SpillFile} as a sorted run. {@link #finish} returns
+ * the sorted tuples: straight from memory if nothing was spilled, otherwise
+ * through a k-way merge of the runs that picks the next tuple with a loser
+ * tree. If there are more runs than can be merged at once, groups of runs
+ * are first merged into longer runs.
+ * <p>
+ * The sort is stable: tuples with equal keys come out in the order they
+ * were added.
+ */
+public class ExternalSort {
+
+    /** Read buffer each run being merged needs; bounds the merge fan-in. */
+    private static final int RUN_BUFFER_SIZE = 1 << 16;
+
+    /** Largest number of runs merged in one pass. */
+    static final int MAX_FANIN = 512;
+
+    private final TupleDesc td;
+    private final int[] fields;
+    private final boolean asc;
+    private final long memoryBudget;
+    private final int tupleBytes;   // heap estimate of a buffered tuple
+    private final boolean intKey;   // sorting on a single INT_TYPE field
+    private final Comparator<Tuple> comparator;
+
+    private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    private long buffered = 0;
+    private final ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private int runsWritten = 0;
+
+    /**
+     * Create an empty sort.
+     *
+     * @param td           the schema of the tuples to sort
+     * @param field        the field to sort on
+     * @param asc          true to sort in ascending order
+     * @param memoryBudget the number of bytes of tuples to hold in memory
+     *                     before writing a sorted run to disk, as
+     *                     estimated by {@link TupleDesc#getHeapSize}
+     */
+    public ExternalSort(TupleDesc td, int field, boolean asc, long memoryBudget) {
+        this(td, new int[] {field}, asc, memoryBudget);
+    }
+
+    /**
+     * Create an empty sort on several fields: tuples are ordered by the
+     * first field, then by the second among equal first fields, and so on.
+     *
+     * @param td           the schema of the tuples to sort
+     * @param fields       the fields to sort on
+     * @param asc          true to sort in ascending order
+     * @param memoryBudget the number of bytes of tuples to hold in memory
+     *                     before writing a sorted run to disk, as
+     *                     estimated by {@link TupleDesc#getHeapSize}
+     */
+    public ExternalSort(TupleDesc td, int[] fields, boolean asc, long memoryBudget) {
+        this.td = td;
+        this.fields = fields;
+        this.asc = asc;
+        this.memoryBudget = memoryBudget;
+        this.tupleBytes = td.getHeapSize();
+        this.intKey = fields.length == 1 && td.getFieldType(fields[0]) == Type.INT_TYPE;
+        this.comparator = new Comparator<Tuple>() {
+            public int compare(Tuple a, Tuple b) {
+                return compareKeys(a, b);
+            }
+        };
+    }
+
+    /**
+     * Add a tuple to the sort.
+     */
+    public void add(Tuple t) throws DbException {
+        if (!buffer.isEmpty() && buffered + tupleBytes > memoryBudget)
+            spillBuffer();
+        buffer.add(t);
+        buffered += tupleBytes;
+    }
+
+    /**
+     * @return the number of sorted runs written to disk so far, including
+     *         the runs produced by intermediate merge passes
+     */
+    public int numRuns() {
+        return runsWritten;
+    }
+
+    /**
+     * Stop accepting tuples and return an iterator over all of them in sorted
+     * order. The iterator supports rewind; it is valid until {@link #delete}.
+     */
+    public DbIterator finish() throws DbException, TransactionAbortedException {
+        if (runs.isEmpty()) {
+            Tuple[] sorted = sortBuffer();
+            buffer = null;
+            return new TupleIterator(td, Arrays.asList(sorted));
+        }
+        if (!buffer.isEmpty())
+            spillBuffer();
+        buffer = null;
+
+        int fanIn = (int) Math.max(2, Math.min(MAX_FANIN, memoryBudget / RUN_BUFFER_SIZE));
+        // each pass merges consecutive groups of runs into a run that takes
+        // their place, so the order of runs, and with it the order of equal
+        // keys, is preserved
+        while (runs.size() > fanIn) {
+            ArrayList<SpillFile> pass = new ArrayList<SpillFile>();
+            for (int start = 0; start < runs.size(); start += fanIn) {
+                List<SpillFile> group = runs.subList(start, Math.min(runs.size(), start + fanIn));
+                pass.add(group.size() == 1 ? group.get(0) : mergeRuns(group));
+            }
+            runs.clear();
+            runs.addAll(pass);
+        }
+        return new MergeIterator(runIterators(runs));
+    }
+
+    private SpillFile mergeRuns(List<SpillFile> group) throws DbException, TransactionAbortedException {
+        SpillFile merged = newRun();
+        MergeIterator it = new MergeIterator(runIterators(group));
+        it.open();
+        try {
+            while (it.hasNext())
+                merged.add(it.next());
+        } catch (IOException e) {
+            merged.delete();
+            throw new DbException("IO Exception writing sorted run: " + e.getMessage());
+        } finally {
+            it.close();
+        }
+        for (SpillFile f : group)
+            f.delete();
+        return merged;
+    }
+
+    /**
+     * Delete the runs written to disk.
+     */
+    public void delete() {
+        for (SpillFile f : runs)
+            f.delete();
+        runs.clear();
+        buffer = null;
+    }
+
+    private void spillBuffer() throws DbException {
+        Tuple[] sorted = sortBuffer();
+        SpillFile run = newRun();
+        try {
+            for (Tuple t : sorted)
+                run.add(t);
+        } catch (IOException e) {
+            run.delete();
+            throw new DbException("IO Exception writing sorted run: " + e.getMessage());
+        }
+        runs.add(run);
+        buffer.clear();
+        buffered = 0;
+    }
+
+    private SpillFile newRun() throws DbException {
+        try {
+            runsWritten++;
+            return new SpillFile(td);
+        } catch (IOException e) {
+            throw new DbException("could not create sorted run: " + e.getMessage());
+        }
+    }
+
+    private DbIterator[] runIterators(List<SpillFile> files) throws DbException {
+        DbIterator[] its = new DbIterator[files.size()];
+        try {
+            for (int i = 0; i < its.length; i++)
+                its[i] = files.get(i).iterator();
+        } catch (IOException e) {
+            throw new DbException("IO Exception reading sorted run: " + e.getMessage());
+        }
+        return its;
+    }
+
+    /**
+     * Sort the buffered tuples. A single integer key is packed with the
+     * tuple's position into a long[] and sorted as primitives, so no
+     * comparator runs at all; other keys are compared as ints and Strings,
+     * without going through Field.compare.
+     */
+    private Tuple[] sortBuffer() {
+        int n = buffer.size();
+        Tuple[] sorted = new Tuple[n];
+        if (intKey) {
+            long[] packed = new long[n];
+            for (int i = 0; i < n; i++)
+                packed[i] = (sortableKey(((IntField) buffer.get(i).getField(fields[0])).getValue(), asc) << 32) | i;
+            Arrays.sort(packed);
+            for (int i = 0; i < n; i++)
+                sorted[i] = buffer.get((int) packed[i]);
+        } else {
+            buffer.toArray(sorted);
+            // Arrays.sort on objects is stable
+            Arrays.sort(sorted, comparator);
+        }
+        return sorted;
+    }
+
+    /**
+     * Map an int key to an unsigned 32-bit value whose natural order is the
+     * sort order.
+     */
+    static long sortableKey(int key, boolean asc) {
+        long k = (key ^ Integer.MIN_VALUE) & 0xffffffffL;
+        return asc ? k : ~k & 0xffffffffL;
+    }
+
+    private int compareKeys(Tuple a, Tuple b) {
+        for (int f : fields) {
+            Field x = a.getField(f);
+            Field y = b.getField(f);
+            int c;
+            if (x instanceof IntField)
+                c = Integer.compare(((IntField) x).getValue(), ((IntField) y).getValue());
+            else
+                c = ((StringField) x).getValue().compareTo(((StringField) y).getValue());
+            if (c != 0)
+                return asc ? c : -c;
+        }
+        return 0;
+    }
+
+    /**
+     * Merges sorted runs with a loser tree: tree[0] holds the run with the
+     * smallest current tuple and every inner node the run that lost the
+     * comparison played there, so replacing the winner costs log2(k)
+     * comparisons against the losers on its path to the root.
+     */
+    private class MergeIterator extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DbIterator[] inputs;
+        private final int k;
+        private transient int[] tree;
+        private transient Tuple[] heads;   // current tuple of each run, null once exhausted
+        private transient long[] intKeys;
+
+        MergeIterator(DbIterator[] inputs) {
+            this.inputs = inputs;
+            this.k = inputs.length;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            tree = new int[k];
+            heads = new Tuple[k];
+            if (intKey)
+                intKeys = new long[k];
+            for (int i = 0; i < k; i++) {
+                inputs[i].open();
+                advance(i);
+            }
+            // start with every node holding the virtual run k, which beats
+            // all real runs, then play each run up the tree
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--)
+                replay(i);
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            for (DbIterator it : inputs)
+                it.close();
+            heads = null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            int w = tree[0];
+            Tuple t = heads[w];
+            if (t == null)
+                return null;
+            advance(w);
+            replay(w);
+            return t;
+        }
+
+        private void advance(int run) throws DbException, TransactionAbortedException {
+            DbIterator it = inputs[run];
+            Tuple t = it.hasNext() ? it.next() : null;
+            heads[run] = t;
+            if (t != null && intKey)
+                intKeys[run] = sortableKey(((IntField) t.getField(fields[0])).getValue(), asc);
+        }
+
+        /** Play run s from its leaf up to the root. */
+        private void replay(int s) {
+            for (int node = (s + k) >> 1; node > 0; node >>= 1) {
+                if (beats(tree[node], s)) {
+                    int winner = tree[node];
+                    tree[node] = s;
+                    s = winner;
+                }
+            }
+            tree[0] = s;
+        }
+
+        /** @return true if run a's current tuple comes before run b's */
+        private boolean beats(int a, int b) {
+            if (a == k || b == k)
+                return a == k;
+            if (heads[a] == null || heads[b] == null)
+                return heads[b] == null && (heads[a] != null || a < b);
+            int c = intKey ? Long.compare(intKeys[a], intKeys[b]) : compareKeys(heads[a], heads[b]);
+            // ties go to the older run, which keeps the sort stable
+            return c != 0 ? c < 0 : a < b;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        @Override
+        public DbIterator[] getChildren() {
+            return inputs;
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+        }
+    }
+}
@@ -5,11 +5,13 @@ import java.util.*;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     Predicate p;
     DbIterator child;
+    private transient int[] selection;
+    private transient BatchIterator childBatches;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -64,6 +66,27 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of tuples that pass the predicate, filtering
+     * the child's batches in place.
+     *
+     * @see Predicate#filter(TupleBatch, int[])
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        BatchIterator in = childBatches = DbIteratorBatchAdapter.of(child, childBatches);
+        TupleBatch batch;
+        while ((batch = in.nextBatch()) != null) {
+            if (selection == null || selection.length < batch.size())
+                selection = new int[Math.max(batch.size(), TupleBatch.DEFAULT_CAPACITY)];
+            int n = p.filter(batch, selection);
+            if (n > 0) {
+                batch.retain(selection, n);
+                return batch;
+            }
+        }
+        return null;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[]{child};
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a {@link HeapFile} may still have an
+ * empty slot, so that an insert can go straight to a page with room instead
+ * of reading the whole file.
+ * <p>
+ * The map is only a hint: the caller always checks the page itself and
+ * reports back what it found. Pages the map has never heard of (for example
+ * every page of a file opened without a sidecar) are assumed to have room,
+ * so the map is rebuilt lazily as inserts visit them, and each page is found
+ * to be full at most once until a delete frees one of its slots again.
+ * <p>
+ * If a sidecar file is given, the map is loaded from it on first use and
+ * written back by {@link #save}. A stale sidecar can at worst make an insert
+ * skip a page that regained room, never put a tuple on a full page.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private final File sidecar;
+    private final BitSet free = new BitSet();
+    private int known = 0;     // pages [0, known) have an entry in free
+    private int first = 0;     // no page below this one is marked free
+    private boolean loaded = false;
+
+    /**
+     * @param sidecar the file to persist the map in, or null to keep it in
+     *                memory only
+     */
+    public FreeSpaceMap(File sidecar) {
+        this.sidecar = sidecar;
+    }
+
+    /**
+     * Find a page that may have an empty slot.
+     *
+     * @param numPages the current number of pages in the file
+     * @return the number of such a page, or -1 if every page is known to be
+     *         full
+     */
+    public synchronized int findPage(int numPages) {
+        if (!loaded)
+            load();
+        if (known < numPages) {
+            free.set(known, numPages);
+            first = Math.min(first, known);
+            known = numPages;
+        }
+        int pgno = free.nextSetBit(first);
+        if (pgno < 0 || pgno >= numPages) {
+            first = numPages;
+            return -1;
+        }
+        first = pgno;
+        return pgno;
+    }
+
+    /**
+     * Record whether a page has at least one empty slot.
+     */
+    public synchronized void update(int pgno, boolean hasRoom) {
+        if (pgno >= known) {
+            // pages beyond known are implicitly free; make that explicit first
+            free.set(known, pgno);
+            known = pgno + 1;
+        }
+        free.set(pgno, hasRoom);
+        if (hasRoom && pgno < first)
+            first = pgno;
+    }
+
+    /**
+     * Write the map to its sidecar file, if it has one.
+     */
+    public synchronized void save() throws IOException {
+        if (sidecar == null || !loaded)
+            return;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)));
+        try {
+            long[] words = free.toLongArray();
+            out.writeInt(known);
+            out.writeInt(words.length);
+            for (long w : words)
+                out.writeLong(w);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void load() {
+        loaded = true;
+        if (sidecar == null || !sidecar.exists())
+            return;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+            try {
+                int k = in.readInt();
+                long[] words = new long[in.readInt()];
+                for (int i = 0; i < words.length; i++)
+                    words[i] = in.readLong();
+                free.or(BitSet.valueOf(words));
+                known = k;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // unreadable sidecar: start over and treat every page as a candidate
+            free.clear();
+            known = 0;
+        }
+    }
+}
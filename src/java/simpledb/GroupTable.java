@@ -0,0 +1,281 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * GroupTable numbers the distinct group-by keys an aggregator sees: each
+ * new key gets the next group number, 0, 1, 2, ..., so aggregators keep
+ * their per-group state in plain arrays indexed by group number. A key is
+ * one or more columns (GROUP BY a, b).
+ * <p>
+ * The table is open addressing with linear probing over an int[] of group
+ * numbers. Keys live column by column in dense arrays indexed by group
+ * number: an int[] for INT_TYPE columns, so looking up an integer key
+ * neither boxes nor allocates, and a String[] for STRING_TYPE columns. The
+ * hash of every key is cached for growing the table and to skip most
+ * unequal keys without comparing them. All the ways of looking up a key
+ * hash it the same way, so they can be mixed on one table.
+ */
+final class GroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Type[] keyTypes;
+    private int[] table;       // group number + 1 per slot, 0 if empty
+    private int mask;
+    private int size = 0;
+
+    private final Object[] keys;  // int[] or String[] per key column
+    private int[] hashes;         // hash of each group's key
+
+    /**
+     * @param keyType the type of the group-by values
+     */
+    GroupTable(Type keyType) {
+        this(new Type[] {keyType});
+    }
+
+    /**
+     * @param keyTypes the types of the group-by columns
+     */
+    GroupTable(Type[] keyTypes) {
+        this.keyTypes = keyTypes;
+        table = new int[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+        keys = new Object[keyTypes.length];
+        for (int c = 0; c < keys.length; c++)
+            keys[c] = keyTypes[c] == Type.INT_TYPE ? new int[INITIAL_CAPACITY / 2] : new String[INITIAL_CAPACITY / 2];
+        hashes = new int[INITIAL_CAPACITY / 2];
+    }
+
+    /**
+     * @return the number of groups
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the group number of a single-column INT_TYPE key, adding a
+     *         group if the key has not been seen
+     */
+    int groupOf(int key) {
+        return probe(key, true);
+    }
+
+    /**
+     * @return the group number of a single-column INT_TYPE key, or -1 if
+     *         the key has not been seen
+     */
+    int find(int key) {
+        return probe(key, false);
+    }
+
+    private int probe(int key, boolean insert) {
+        int[] column = (int[]) keys[0];
+        int h = mix(key);
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int g = table[slot] - 1;
+            if (g < 0) {
+                if (!insert)
+                    return -1;
+                g = add(slot, h);
+                ((int[]) keys[0])[g] = key;
+                return g;
+            }
+            if (column[g] == key)
+                return g;
+        }
+    }
+
+    /**
+     * @return the group number of a single-column STRING_TYPE key, adding a
+     *         group if the key has not been seen
+     */
+    int groupOf(String key) {
+        String[] column = (String[]) keys[0];
+        int h = mix(key.hashCode());
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int g = table[slot] - 1;
+            if (g < 0) {
+                g = add(slot, h);
+                ((String[]) keys[0])[g] = key;
+                return g;
+            }
+            if (hashes[g] == h && column[g].equals(key))
+                return g;
+        }
+    }
+
+    /**
+     * @return the group number of a single-column key given as a Field
+     */
+    int groupOf(Field key) {
+        if (keyTypes[0] == Type.INT_TYPE)
+            return groupOf(((IntField) key).getValue());
+        return groupOf(((StringField) key).getValue());
+    }
+
+    /**
+     * @return the group number of the key made of some fields of a tuple,
+     *         adding a group if the key has not been seen
+     */
+    int groupOf(Tuple t, int[] fields) {
+        int h = 0;
+        for (int c = 0; c < fields.length; c++)
+            h = h * 31 + hash(t.getField(fields[c]));
+        h = mix(h);
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int g = table[slot] - 1;
+            if (g < 0) {
+                g = add(slot, h);
+                for (int c = 0; c < fields.length; c++)
+                    setKey(g, c, t.getField(fields[c]));
+                return g;
+            }
+            if (hashes[g] == h && keyEquals(g, t, fields))
+                return g;
+        }
+    }
+
+    /**
+     * @return the group number of the key made of some columns of a row of
+     *         a batch, adding a group if the key has not been seen
+     */
+    int groupOf(TupleBatch batch, int row, int[] fields) {
+        return probe(batch, row, fields, true);
+    }
+
+    /**
+     * @return the group number of the key made of some columns of a row of
+     *         a batch, or -1 if the key has not been seen
+     */
+    int find(TupleBatch batch, int row, int[] fields) {
+        return probe(batch, row, fields, false);
+    }
+
+    private int probe(TupleBatch batch, int row, int[] fields, boolean insert) {
+        int h = 0;
+        for (int c = 0; c < fields.length; c++) {
+            if (keyTypes[c] == Type.INT_TYPE)
+                h = h * 31 + batch.getInts(fields[c])[row];
+            else
+                h = h * 31 + batch.getStrings(fields[c])[row].hashCode();
+        }
+        h = mix(h);
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int g = table[slot] - 1;
+            if (g < 0) {
+                if (!insert)
+                    return -1;
+                g = add(slot, h);
+                for (int c = 0; c < fields.length; c++) {
+                    if (keyTypes[c] == Type.INT_TYPE)
+                        ((int[]) keys[c])[g] = batch.getInts(fields[c])[row];
+                    else
+                        ((String[]) keys[c])[g] = batch.getStrings(fields[c])[row];
+                }
+                return g;
+            }
+            if (hashes[g] == h && keyEquals(g, batch, row, fields))
+                return g;
+        }
+    }
+
+    /**
+     * @return the key of a group of a single-column table as a Field
+     */
+    Field key(int group) {
+        return key(group, 0);
+    }
+
+    /**
+     * @return one column of the key of a group as a Field
+     */
+    Field key(int group, int column) {
+        if (keyTypes[column] == Type.INT_TYPE)
+            return new IntField(((int[]) keys[column])[group]);
+        return new StringField(((String[]) keys[column])[group], Type.STRING_LEN);
+    }
+
+    private static int hash(Field f) {
+        if (f instanceof IntField)
+            return ((IntField) f).getValue();
+        return ((StringField) f).getValue().hashCode();
+    }
+
+    private void setKey(int group, int column, Field f) {
+        if (keyTypes[column] == Type.INT_TYPE)
+            ((int[]) keys[column])[group] = ((IntField) f).getValue();
+        else
+            ((String[]) keys[column])[group] = ((StringField) f).getValue();
+    }
+
+    private boolean keyEquals(int group, Tuple t, int[] fields) {
+        for (int c = 0; c < fields.length; c++) {
+            Field f = t.getField(fields[c]);
+            if (keyTypes[c] == Type.INT_TYPE) {
+                if (((int[]) keys[c])[group] != ((IntField) f).getValue())
+                    return false;
+            } else if (!((String[]) keys[c])[group].equals(((StringField) f).getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean keyEquals(int group, TupleBatch batch, int row, int[] fields) {
+        for (int c = 0; c < fields.length; c++) {
+            if (keyTypes[c] == Type.INT_TYPE) {
+                if (((int[]) keys[c])[group] != batch.getInts(fields[c])[row])
+                    return false;
+            } else if (!((String[]) keys[c])[group].equals(batch.getStrings(fields[c])[row])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a group with the given hash in an empty slot; the caller fills in
+     * its key.
+     */
+    private int add(int slot, int h) {
+        int g = size++;
+        if (g == hashes.length) {
+            hashes = Arrays.copyOf(hashes, g * 2);
+            for (int c = 0; c < keys.length; c++) {
+                if (keys[c] instanceof int[])
+                    keys[c] = Arrays.copyOf((int[]) keys[c], g * 2);
+                else
+                    keys[c] = Arrays.copyOf((String[]) keys[c], g * 2);
+            }
+        }
+        hashes[g] = h;
+        table[slot] = g + 1;
+        // keep the table at most half full
+        if (size * 2 > table.length)
+            rehash();
+        return g;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        mask = table.length - 1;
+        for (int g = 0; g < size; g++) {
+            int slot = hashes[g] & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = g + 1;
+        }
+    }
+
+    /** Spread the bits of a hash code, so that sequential keys do not cluster. */
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,11 +1,12 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -16,6 +17,34 @@ public class HashEquiJoin extends Operator {
     private HashMap<Object, List<Tuple>> map;
     private Tuple t1;
     private Tuple t2;
+    private transient boolean loaded; // map holds child1, for the tuple path
+
+    /**
+     * Default number of bytes of build tuples (child1) held in memory before
+     * the join falls back to partitioning both inputs to disk.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    /** Recursion depth beyond which partitions are joined in memory regardless of size. */
+    static final int MAX_SPILL_DEPTH = 3;
+
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private final int depth;                          // 0 unless joining spilled partitions
+    private transient HashJoinPartitions partitions;  // non-null once the build side spilled
+    private transient boolean probeSpilled;           // child2 has been partitioned
+    private transient DbIterator partitionJoin;       // join of the current spilled partition pair
+
+    // state of the batch path: child1 is copied into build and indexed by
+    // chained hashing over int arrays; child2 is probed a batch at a time
+    private transient TupleBatch build;
+    private transient int[] buckets; // first build row of each bucket, or -1
+    private transient int[] chain;   // next build row in the same bucket, or -1
+    private transient BatchIterator probeBatches;
+    private transient TupleBatch probe;
+    private transient int probeRow;
+    private transient int match;     // next build row to compare with probeRow, or -1
+    private transient boolean probeDone;
+    private transient TupleBatch out;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -29,15 +58,53 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_BUDGET, 0);
+    }
+
+    /**
+     * Constructor for the join of one pair of spilled partitions.
+     *
+     * @param depth the number of times the inputs have been partitioned
+     */
+    HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, long memoryBudget, int depth) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryBudget = memoryBudget;
+        this.depth = depth;
 
         this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
 
         map = new HashMap<Object, List<Tuple>>();
     }
 
+    /**
+     * Set how many bytes of child1 tuples the join may hold in memory. If
+     * child1 is larger, the join becomes a hybrid hash join: both inputs are
+     * hash partitioned, one partition pair is joined in memory and the rest
+     * are written to temporary files and joined pair by pair afterwards,
+     * partitioning again if a pair is still too large.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the number of bytes of child1 tuples the join may hold in
+     *         memory
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return true if child1 did not fit the memory budget and the join is
+     *         running on partitions spilled to disk
+     */
+    public boolean isSpilling() {
+        return partitions != null;
+    }
+
     public JoinPredicate getJoinPredicate() {
         return this.pred;
     }
@@ -64,18 +131,37 @@ public class HashEquiJoin extends Operator {
             TransactionAbortedException {
         this.child1.open();
         this.child2.open();
-        loadHashMap();
+        // the hash table is built on first use, by whichever of fetchNext
+        // and nextBatch the consumer calls
+        loaded = false;
+        resetProbe();
+        super.open();
     }
 
     public void close() {
+        super.close();
         this.child1.close();
         this.child2.close();
         this.map.clear();
+        build = null;
+        buckets = null;
+        chain = null;
+        out = null;
+        dropPartitions();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         this.child1.rewind();
         this.child2.rewind();
+        listIt = null;
+        resetProbe();
+        if (partitions != null) {
+            // the in-memory tables are kept across a rewind, spilled
+            // partitions are rebuilt from the rewound children
+            dropPartitions();
+            loaded = false;
+            build = null;
+        }
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -83,13 +169,87 @@ public class HashEquiJoin extends Operator {
     //Loads Hashmap
     private void loadHashMap() throws DbException, TransactionAbortedException{
         map.clear();
+        long tupleBytes = child1.getTupleDesc().getHeapSize();
+        long bytes = 0;
         while(child1.hasNext()){
             t1 = child1.next();
             List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
             list.add(t1);
+            bytes += tupleBytes;
+            if (bytes > memoryBudget && depth < MAX_SPILL_DEPTH) {
+                spillBuild(map.values(), null);
+                map.clear();
+                return;
+            }
         }
     }
 
+    /**
+     * Switch to a hybrid hash join: partition the build tuples read so far
+     * and the rest of child1.
+     *
+     * @param rest if not null, the batches child1 is being read through
+     */
+    private void spillBuild(Collection<List<Tuple>> loadedSoFar, BatchIterator rest)
+            throws DbException, TransactionAbortedException {
+        partitions = new HashJoinPartitions(pred, child1.getTupleDesc(), child2.getTupleDesc(), memoryBudget, depth);
+        for (List<Tuple> list : loadedSoFar)
+            for (Tuple t : list)
+                partitions.addBuild(t);
+        if (rest != null) {
+            TupleBatch batch;
+            while ((batch = rest.nextBatch()) != null)
+                for (int i = 0; i < batch.size(); i++)
+                    partitions.addBuild(batch.getTuple(i));
+        } else {
+            while (child1.hasNext())
+                partitions.addBuild(child1.next());
+        }
+    }
+
+    /**
+     * fetchNext for a join whose build side was spilled: probe child2
+     * against the partition kept in memory, spilling the rest of child2, then
+     * join the spilled partition pairs one at a time.
+     */
+    private Tuple fetchSpilled() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (listIt != null && listIt.hasNext())
+                return parseList();
+            if (!probeSpilled) {
+                if (child2.hasNext()) {
+                    t2 = child2.next();
+                    List<Tuple> matches = partitions.probe(t2);
+                    listIt = matches == null ? null : matches.iterator();
+                    continue;
+                }
+                partitions.finishProbe();
+                probeSpilled = true;
+            }
+            if (partitionJoin != null) {
+                if (partitionJoin.hasNext())
+                    return partitionJoin.next();
+                partitionJoin.close();
+            }
+            partitionJoin = partitions.nextPartitionJoin();
+            if (partitionJoin == null)
+                return null;
+            partitionJoin.open();
+        }
+    }
+
+    private void dropPartitions() {
+        if (partitionJoin != null) {
+            partitionJoin.close();
+            partitionJoin = null;
+        }
+        if (partitions != null) {
+            partitions.delete();
+            partitions = null;
+        }
+        probeSpilled = false;
+    }
+
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -109,6 +269,12 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (!loaded) {
+            loadHashMap();
+            loaded = true;
+        }
+        if (partitions != null)
+            return fetchSpilled();
         if(listIt != null && listIt.hasNext())
             return parseList();
 
@@ -126,12 +292,6 @@ public class HashEquiJoin extends Operator {
             return parseList();
         }
 
-        //Rewind Child 2 and move to Child 1
-        child2.rewind();
-        if(child1.hasNext()){
-            loadHashMap();
-            return fetchNext();
-        }
         return null;
     }
 
@@ -151,6 +311,106 @@ public class HashEquiJoin extends Operator {
         return t;
     }
 
+    /**
+     * Returns the next batch of joined tuples. On the first call all of
+     * child1 is read, a batch at a time, into a columnar build table; child2
+     * is then probed a batch at a time, comparing keys straight from the
+     * column arrays.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (build == null)
+            buildTable();
+        if (out == null)
+            out = new TupleBatch(comboTD);
+        out.clear();
+        if (partitions != null) {
+            Tuple t;
+            while (!out.isFull() && (t = fetchSpilled()) != null)
+                out.addTuple(t);
+            return out.isEmpty() ? null : out;
+        }
+        int f2 = pred.getField2();
+        while (!out.isFull()) {
+            if (match < 0) {
+                if (probe == null || probeRow >= probe.size()) {
+                    if (probeDone)
+                        break;
+                    probeBatches = DbIteratorBatchAdapter.of(child2, probeBatches);
+                    probe = probeBatches.nextBatch();
+                    probeRow = 0;
+                    if (probe == null) {
+                        probeDone = true;
+                        break;
+                    }
+                }
+                match = buckets[hash(probe, probeRow, f2) & (buckets.length - 1)];
+                if (match < 0) {
+                    probeRow++;
+                    continue;
+                }
+            }
+            if (keysEqual(probe, probeRow, f2))
+                out.addJoinedRow(build, match, probe, probeRow);
+            match = chain[match];
+            if (match < 0)
+                probeRow++;
+        }
+        return out.isEmpty() ? null : out;
+    }
+
+    private void buildTable() throws TransactionAbortedException, DbException {
+        build = new TupleBatch(child1.getTupleDesc());
+        BatchIterator in = DbIteratorBatchAdapter.of(child1);
+        long maxRows = memoryBudget / child1.getTupleDesc().getHeapSize();
+        TupleBatch batch;
+        while ((batch = in.nextBatch()) != null) {
+            for (int i = 0; i < batch.size(); i++)
+                build.addRow(batch, i);
+            if (build.size() > maxRows && depth < MAX_SPILL_DEPTH) {
+                List<Tuple> loadedSoFar = new ArrayList<Tuple>(build.size());
+                for (int i = 0; i < build.size(); i++)
+                    loadedSoFar.add(build.getTuple(i));
+                build.clear();
+                spillBuild(Collections.singletonList(loadedSoFar), in);
+                return;
+            }
+        }
+
+        int n = build.size();
+        int nbuckets = Integer.highestOneBit(Math.max(1, n) * 2 - 1) * 2;
+        buckets = new int[nbuckets];
+        Arrays.fill(buckets, -1);
+        chain = new int[n];
+        int f1 = pred.getField1();
+        // insert back to front so every chain lists rows in input order
+        for (int i = n - 1; i >= 0; i--) {
+            int b = hash(build, i, f1) & (nbuckets - 1);
+            chain[i] = buckets[b];
+            buckets[b] = i;
+        }
+    }
+
+    private static int hash(TupleBatch batch, int row, int field) {
+        int h = batch.getTupleDesc().getFieldType(field) == Type.INT_TYPE
+                ? batch.getInts(field)[row] : batch.getStrings(field)[row].hashCode();
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private boolean keysEqual(TupleBatch probe, int row, int f2) {
+        int f1 = pred.getField1();
+        if (build.getTupleDesc().getFieldType(f1) == Type.INT_TYPE)
+            return build.getInts(f1)[match] == probe.getInts(f2)[row];
+        return build.getStrings(f1)[match].equals(probe.getStrings(f2)[row]);
+    }
+
+    private void resetProbe() {
+        probe = null;
+        probeRow = 0;
+        match = -1;
+        probeDone = false;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] {this.child1, this.child2};
@@ -163,3 +423,151 @@ public class HashEquiJoin extends Operator {
     }
 
 }
+
+/**
+ * Helper class that holds the partitions of a hybrid hash join whose build
+ * side does not fit in memory. Both inputs are split by a hash of the join
+ * key. Partition 0 is kept in memory as a hash table for as long as it fits
+ * the budget; every other partition goes to a pair of spill files and is
+ * joined later by a HashEquiJoin of its own.
+ */
+class HashJoinPartitions {
+
+    /** Number of partitions each input is split into. */
+    static final int FANOUT = 16;
+
+    private final JoinPredicate pred;
+    private final long memoryBudget;
+    private final int depth;
+    private final long tupleBytes;
+    private final SpillFile[] build;
+    private final SpillFile[] probe;
+    private HashMap<Field, List<Tuple>> resident = new HashMap<Field, List<Tuple>>();
+    private long residentBytes = 0;
+    private int next = 0; // next partition for nextPartitionJoin
+
+    HashJoinPartitions(JoinPredicate pred, TupleDesc buildTd, TupleDesc probeTd, long memoryBudget, int depth)
+            throws DbException {
+        this.pred = pred;
+        this.memoryBudget = memoryBudget;
+        this.depth = depth;
+        this.tupleBytes = buildTd.getHeapSize();
+        this.build = new SpillFile[FANOUT];
+        this.probe = new SpillFile[FANOUT];
+        try {
+            for (int i = 1; i < FANOUT; i++) {
+                build[i] = new SpillFile(buildTd);
+                probe[i] = new SpillFile(probeTd);
+            }
+        } catch (IOException e) {
+            delete();
+            throw new DbException("could not create spill files: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the partition of a join key; partitioning again at a deeper
+     *         level uses a different hash, so a spilled partition is split
+     *         evenly
+     */
+    private int partitionOf(Field key) {
+        int h = key.hashCode() ^ (depth * 0x9E3779B9);
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return (h & 0x7fffffff) % FANOUT;
+    }
+
+    void addBuild(Tuple t) throws DbException {
+        Field key = t.getField(pred.getField1());
+        int p = partitionOf(key);
+        if (p == 0 && resident != null) {
+            List<Tuple> list = resident.get(key);
+            if (list == null) {
+                list = new ArrayList<Tuple>();
+                resident.put(key, list);
+            }
+            list.add(t);
+            residentBytes += tupleBytes;
+            if (residentBytes > memoryBudget)
+                spillResident();
+            return;
+        }
+        write(build, p, t);
+    }
+
+    /**
+     * Partition 0 alone exceeds the budget: write it out like the others.
+     */
+    private void spillResident() throws DbException {
+        try {
+            build[0] = new SpillFile(build[1].getTupleDesc());
+            probe[0] = new SpillFile(probe[1].getTupleDesc());
+        } catch (IOException e) {
+            throw new DbException("could not create spill files: " + e.getMessage());
+        }
+        for (List<Tuple> list : resident.values())
+            for (Tuple t : list)
+                write(build, 0, t);
+        resident = null;
+    }
+
+    /**
+     * Probe the in-memory partition with a child2 tuple, or spill the tuple
+     * to its partition.
+     *
+     * @return the matching child1 tuples, or null if there are none yet
+     */
+    List<Tuple> probe(Tuple t) throws DbException {
+        Field key = t.getField(pred.getField2());
+        int p = partitionOf(key);
+        if (p == 0 && resident != null)
+            return resident.get(key);
+        if (build[p].size() > 0)
+            write(probe, p, t);
+        return null;
+    }
+
+    void finishProbe() {
+        resident = null;
+    }
+
+    /**
+     * @return a join of the next spilled partition pair with tuples on both
+     *         sides, or null if all have been returned. The files of the
+     *         previous pair are deleted.
+     */
+    DbIterator nextPartitionJoin() throws DbException {
+        while (next < FANOUT) {
+            int p = next++;
+            if (p > 0 && build[p - 1] != null) {
+                build[p - 1].delete();
+                probe[p - 1].delete();
+            }
+            if (build[p] == null || build[p].size() == 0 || probe[p].size() == 0)
+                continue;
+            try {
+                return new HashEquiJoin(pred, build[p].iterator(), probe[p].iterator(), memoryBudget, depth + 1);
+            } catch (IOException e) {
+                throw new DbException("could not read spill files: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private static void write(SpillFile[] files, int p, Tuple t) throws DbException {
+        try {
+            files[p].add(t);
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+    }
+
+    void delete() {
+        for (int i = 0; i < FANOUT; i++) {
+            if (build[i] != null)
+                build[i].delete();
+            if (probe[i] != null)
+                probe[i].delete();
+        }
+    }
+}
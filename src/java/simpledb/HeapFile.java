@@ -18,6 +18,15 @@ public class HeapFile implements DbFile {
     private final File f;
     private final TupleDesc td;
     private final int tableid;
+    private final PageChannel channel;
+    private final FreeSpaceMap freeSpace;
+    private final Object appendLock = new Object(); // serializes growing the file
+
+    /**
+     * Number of pages {@link #bulkAppend} fills in memory before writing
+     * them to the end of the file in one sequential write.
+     */
+    public static final int BULK_APPEND_PAGES = 64;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -26,9 +35,33 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f                the file that stores the on-disk backing store
+     *                         for this heap file.
+     * @param persistFreeSpace if true, the free-space map is kept in a
+     *                         sidecar file next to f (see
+     *                         {@link #freeSpaceFile}) and survives restarts;
+     *                         otherwise it is rebuilt lazily by inserts.
+     */
+    public HeapFile(File f, TupleDesc td, boolean persistFreeSpace) {
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
         this.td = td;
+        this.channel = new PageChannel(f);
+        this.freeSpace = new FreeSpaceMap(persistFreeSpace ? freeSpaceFile(f) : null);
+    }
+
+    /**
+     * @return the sidecar file that persists the free-space map of the heap
+     *         file stored in f
+     */
+    public static File freeSpaceFile(File f) {
+        return new File(f.getPath() + ".fsm");
     }
 
     /**
@@ -65,20 +98,13 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         try {
-            RandomAccessFile f = new RandomAccessFile(this.f, "r");
-            int offset = BufferPool.getPageSize() * pid.pageNumber();
+            long offset = (long) BufferPool.getPageSize() * pid.pageNumber();
+            long end = offset + BufferPool.getPageSize();
+            if (pid.pageNumber() < 0 || (end > channel.size() && end > channel.refreshSize()))
+                throw new IllegalArgumentException("Page " + pid.pageNumber() + " is past the end of " + f.getName());
             byte[] data = new byte[BufferPool.getPageSize()];
-            if (offset + BufferPool.getPageSize() > f.length()) {
-                System.err.println("Page offset exceeds max size, error!");
-                System.exit(1);
-            }
-            f.seek(offset);
-            f.readFully(data);
-            f.close();
+            channel.read(offset, data);
             return new HeapPage((HeapPageId) pid, data);
-        } catch (FileNotFoundException e) {
-            System.err.println("FileNotFoundException: " + e.getMessage());
-            throw new IllegalArgumentException();
         } catch (IOException e) {
             System.err.println("Caught IOException: " + e.getMessage());
             throw new IllegalArgumentException();
@@ -87,12 +113,14 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
+        long offset = (long) BufferPool.getPageSize() * page.getId().pageNumber();
+        channel.write(offset, page.getPageData());
+    }
 
-        RandomAccessFile f = new RandomAccessFile(this.f, "rw");
-        int offset = BufferPool.getPageSize() * page.getId().pageNumber();
-        f.seek(offset);
-        f.write(page.getPageData(), 0, BufferPool.getPageSize());
-        f.close();
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        freeSpace.save();
+        channel.close();
     }
 
     /**
@@ -104,33 +132,111 @@ public class HeapFile implements DbFile {
         return (int) (f.length() / BufferPool.getPageSize());
     }
 
+    /**
+     * Note that the uncommitted version of a page was dropped when its
+     * transaction aborted. The inserts that filled it are undone, so the
+     * free-space map offers the page again; if it is still full, the next
+     * insert that visits it marks it full again.
+     */
+    void pageRolledBack(int pgno) {
+        freeSpace.update(pgno, true);
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
-        // create a new tuple and insert it
-        // return the modified page
-        // if the table is empty, create a new page
-        // if the table is not empty, find the first page that has empty slot
-        // if no page has empty slot, create a new page
-        // if the table is not empty, find the first page that has empty slot
-        // if no page has empty slot, create a new page
+        // ask the free-space map for a page with an empty slot; it may be
+        // out of date, so check the page and correct the map if it is full
         ArrayList<Page> modifiedPages = new ArrayList<Page>();
-        for (int i = 0; i < numPages(); i++) {
-            HeapPageId pid = new HeapPageId(getId(), i);
+        int numPages = numPages();
+        int pgno;
+        while ((pgno = freeSpace.findPage(numPages)) >= 0) {
+            HeapPageId pid = new HeapPageId(getId(), pgno);
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
             if (page.getNumEmptySlots() > 0) {
                 page.insertTuple(t);
+                freeSpace.update(pgno, page.getNumEmptySlots() > 0);
                 modifiedPages.add(page);
                 return modifiedPages;
             }
+            freeSpace.update(pgno, false);
         }
 
         // if no page has empty slot, create a new page
-        HeapPageId pid = new HeapPageId(getId(), numPages());
-        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
-        page.insertTuple(t);
-        writePage(page);
-        modifiedPages.add(page);
-        return modifiedPages;
+        synchronized (appendLock) {
+            numPages = numPages();
+            HeapPageId pid = new HeapPageId(getId(), numPages);
+            HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+            page.insertTuple(t);
+            writePage(page);
+            freeSpace.update(numPages, page.getNumEmptySlots() > 0);
+            modifiedPages.add(page);
+            return modifiedPages;
+        }
+    }
+
+    /**
+     * Append every tuple of an iterator to the end of this file, bypassing
+     * the buffer pool. Fresh pages are filled in memory and written
+     * {@link #BULK_APPEND_PAGES} at a time with one sequential write, so
+     * loading a large table costs neither a free-space lookup per tuple nor
+     * a write per page.
+     * <p>
+     * The new pages are never cached, locked or logged: they become visible
+     * to scans as soon as they are written, and are not removed if the
+     * loading transaction aborts. Existing pages are left untouched, even if
+     * they have empty slots.
+     *
+     * @param tuples an open iterator over the tuples to load
+     * @return the number of tuples appended
+     * @throws DbException if a tuple does not match the TupleDesc of this
+     *                     file
+     */
+    public int bulkAppend(DbIterator tuples) throws DbException, TransactionAbortedException, IOException {
+        int pageSize = BufferPool.getPageSize();
+        byte[] batch = new byte[pageSize * BULK_APPEND_PAGES];
+        int count = 0;
+        synchronized (appendLock) {
+            int start = numPages();
+            int firstPage = start;
+            int pgno = start;
+            HeapPage page = null;
+            int room = 0;
+            while (tuples.hasNext()) {
+                if (room == 0) {
+                    if (page != null)
+                        pgno = stage(page, batch, firstPage, pgno);
+                    if (pgno - firstPage == BULK_APPEND_PAGES) {
+                        channel.write((long) firstPage * pageSize, batch);
+                        firstPage = pgno;
+                    }
+                    page = new HeapPage(new HeapPageId(getId(), pgno), HeapPage.createEmptyPageData());
+                    room = page.getNumEmptySlots();
+                }
+                page.insertTuple(tuples.next());
+                room--;
+                count++;
+            }
+            if (page != null) {
+                pgno = stage(page, batch, firstPage, pgno);
+                channel.write((long) firstPage * pageSize,
+                        Arrays.copyOf(batch, (pgno - firstPage) * pageSize));
+                for (int i = start; i < pgno - 1; i++)
+                    freeSpace.update(i, false);
+                freeSpace.update(pgno - 1, room > 0);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copy a filled page into its slot of the bulk append buffer.
+     *
+     * @return the number of the page after it
+     */
+    private static int stage(HeapPage page, byte[] batch, int firstPage, int pgno) {
+        byte[] data = page.getPageData();
+        System.arraycopy(data, 0, batch, (pgno - firstPage) * data.length, data.length);
+        return pgno + 1;
     }
 
     // see DbFile.java for javadocs
@@ -139,6 +245,7 @@ public class HeapFile implements DbFile {
         ArrayList<Page> pages = new ArrayList<Page>();
         heap_pg.deleteTuple(t);
         heap_pg.markDirty(true, tid);
+        freeSpace.update(heap_pg.getId().pageNumber(), true);
         pages.add(heap_pg);
         return pages;
     }
@@ -148,6 +255,22 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(this, tid);
     }
 
+    /**
+     * Returns a reader that fills {@link TupleBatch}es with the tuples of
+     * this file, decoding fields straight from the raw pages.
+     */
+    HeapFileBatchReader batchReader(TransactionId tid) {
+        return new HeapFileBatchReader(this, tid, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns a reader over the pages [firstPage, endPage) of this file
+     * only; parallel scans hand such page ranges to their workers.
+     */
+    HeapFileBatchReader batchReader(TransactionId tid, int firstPage, int endPage) {
+        return new HeapFileBatchReader(this, tid, firstPage, endPage);
+    }
+
 }
 
 /**
@@ -160,6 +283,7 @@ class HeapFileIterator extends AbstractDbFileIterator {
 
     TransactionId tid;
     HeapFile hf;
+    ReadAhead readAhead;
 
     public HeapFileIterator(HeapFile hf, TransactionId tid) {
         this.hf = hf;
@@ -168,15 +292,18 @@ class HeapFileIterator extends AbstractDbFileIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         curpgno = -1;
+        readAhead = new ReadAhead();
     }
 
     @Override
     protected Tuple readNext() throws TransactionAbortedException, DbException {
         if (it != null && !it.hasNext()) it = null;
 
-        while (it == null && curpgno < hf.numPages() - 1) {
+        int numPages = hf.numPages();
+        while (it == null && curpgno < numPages - 1) {
             curpgno++;
             HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
+            readAhead.heapPageRead(curpid, numPages);
             HeapPage curp = (HeapPage) Database.getBufferPool().getPage(tid, curpid, Permissions.READ_ONLY);
             it = curp.iterator();
             if (!it.hasNext()) it = null;
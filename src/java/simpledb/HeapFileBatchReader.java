@@ -0,0 +1,66 @@
+package simpledb;
+
+/**
+ * Helper class that reads the tuples of a HeapFile, or of a range of its
+ * pages, into TupleBatches, page by page, without materializing Tuple
+ * objects
+ */
+class HeapFileBatchReader {
+
+    final HeapFile hf;
+    final TransactionId tid;
+    final int firstPage;
+    final int endPage;
+    HeapPage curp = null;
+    int curpgno = -1;
+    int slot = 0;
+    ReadAhead readAhead;
+
+    HeapFileBatchReader(HeapFile hf, TransactionId tid, int firstPage, int endPage) {
+        this.hf = hf;
+        this.tid = tid;
+        this.firstPage = firstPage;
+        this.endPage = endPage;
+    }
+
+    void open() {
+        curp = null;
+        curpgno = firstPage - 1;
+        readAhead = new ReadAhead();
+    }
+
+    /**
+     * Append tuples to batch until it is full or the file is exhausted.
+     *
+     * @return false if there were no more tuples to read
+     */
+    boolean fill(TupleBatch batch) throws TransactionAbortedException, DbException {
+        int numPages = hf.numPages();
+        int end = Math.min(numPages, endPage);
+        while (!batch.isFull()) {
+            if (curp == null) {
+                if (curpgno >= end - 1)
+                    return !batch.isEmpty();
+                curpgno++;
+                HeapPageId pid = new HeapPageId(hf.getId(), curpgno);
+                readAhead.heapPageRead(pid, end);
+                curp = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                slot = 0;
+            }
+            int numSlots = curp.numSlots;
+            while (slot < numSlots && !batch.isFull()) {
+                if (curp.isSlotUsed(slot))
+                    batch.addRow(curp, slot);
+                slot++;
+            }
+            if (slot >= numSlots)
+                curp = null;
+        }
+        return true;
+    }
+
+    void close() {
+        curp = null;
+        curpgno = Integer.MAX_VALUE;
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -15,12 +16,19 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
+    // tuples decoded so far; null for empty or not yet decoded slots. Readers
+    // holding shared locks decode concurrently, so the slots are published
+    // atomically rather than through a plain array
+    final AtomicReferenceArray<Tuple> tuples;
     final int numSlots;
+    final int headerSize;
+    final int[] fieldOffsets; // byte offset of each field within a tuple
+
+    byte[] data;            // raw page image, header included; the source of truth
+    boolean shared;         // data is also the before-image, copy it before writing
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
     TransactionId dirt_tid;
 
     /**
@@ -35,6 +43,10 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps data as its representation and decodes tuples only
+     * when they are asked for, so the array must not be modified by the
+     * caller afterwards. It is never written to by the page: the first
+     * modification works on a copy, which leaves data as the before-image.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -43,24 +55,24 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        if (data.length < BufferPool.getPageSize())
+            throw new EOFException("page data is shorter than a page");
+
+        fieldOffsets = new int[td.numFields()];
+        int off = 0;
+        for (int j=0; j<fieldOffsets.length; j++) {
+            fieldOffsets[j] = off;
+            off += td.getFieldType(j).getLen();
         }
-        dis.close();
 
-        setBeforeImage();
+        tuples = new AtomicReferenceArray<Tuple>(numSlots);
+        this.data = data;
+        this.shared = true;
+        synchronized(oldDataLock)
+        {
+            oldData = data;
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -105,10 +117,30 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /**
+     * Make the current contents the before-image. The raw page is shared
+     * with the before-image rather than copied, and only copied again when
+     * the page is next modified.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = data;
+        shared = true;
+        }
+    }
+
+    /**
+     * Copy the raw page if it is still shared with the before-image, so
+     * that it can be modified in place.
+     */
+    private void prepareWrite() {
+        synchronized(oldDataLock)
+        {
+            if (shared) {
+                data = data.clone();
+                shared = false;
+            }
         }
     }
 
@@ -120,39 +152,57 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the byte offset of a tuple slot within the raw page
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
+    }
 
-        // read fields in the tuple
+    /**
+     * Decode the tuple in a used slot from the raw page.
+     */
+    private Tuple decodeTuple(int slotId) {
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int j=0; j<fieldOffsets.length; j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE)
+                t.setField(j, new IntField(getInt(slotId, j)));
+            else
+                t.setField(j, new StringField(getString(slotId, j), Type.STRING_LEN));
         }
-
         return t;
     }
 
+    /**
+     * Read an integer field straight from the raw page, without decoding
+     * the rest of the tuple.
+     *
+     * @param slotId a used slot of this page
+     * @param field  the index of an INT_TYPE field
+     */
+    public int getInt(int slotId, int field) {
+        byte[] d = data;
+        int off = slotOffset(slotId) + fieldOffsets[field];
+        return ((d[off] & 0xff) << 24) | ((d[off+1] & 0xff) << 16)
+                | ((d[off+2] & 0xff) << 8) | (d[off+3] & 0xff);
+    }
+
+    /**
+     * Read a string field straight from the raw page, without decoding the
+     * rest of the tuple.
+     *
+     * @param slotId a used slot of this page
+     * @param field  the index of a STRING_TYPE field
+     */
+    public String getString(int slotId, int field) {
+        byte[] d = data;
+        int off = slotOffset(slotId) + fieldOffsets[field];
+        int len = ((d[off] & 0xff) << 24) | ((d[off+1] & 0xff) << 16)
+                | ((d[off+2] & 0xff) << 8) | (d[off+3] & 0xff);
+        len = Math.max(0, Math.min(len, Type.STRING_LEN));
+        return new String(d, off + 4, len);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -165,64 +215,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data.clone();
     }
 
     /**
@@ -255,8 +248,10 @@ public class HeapPage implements Page {
         if (!isSlotUsed(slotId)) {
             throw new DbException("tuple slot is already empty");
         }
+        prepareWrite();
         markSlotUsed(slotId, false);
-        tuples[slotId] = null;
+        Arrays.fill(data, slotOffset(slotId), slotOffset(slotId + 1), (byte) 0);
+        tuples.set(slotId, null);
     }
 
     /**
@@ -267,21 +262,46 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        if (getNumEmptySlots() == 0) {
-            throw new DbException("page is full");
-        }
         if (!t.getTupleDesc().equals(td)) {
             throw new DbException("tupledesc is mismatch");
         }
-        int slotId = 0;
-        while (isSlotUsed(slotId)) {
-            slotId++;
+        int slotId = firstEmptySlot();
+        if (slotId < 0) {
+            throw new DbException("page is full");
         }
+
+        // encode the tuple into its slot right away, so the raw page stays
+        // the complete representation of this page
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("couldn't serialize tuple: " + e.getMessage());
+        }
+        prepareWrite();
+        System.arraycopy(baos.toByteArray(), 0, data, slotOffset(slotId), td.getSize());
         markSlotUsed(slotId, true);
-        tuples[slotId] = t;
+        tuples.set(slotId, t);
         t.setRecordId(new RecordId(pid, slotId));
     }
 
+    /**
+     * @return the lowest empty slot on this page, or -1 if it is full
+     */
+    private int firstEmptySlot() {
+        byte[] d = data;
+        for (int b=0; b<headerSize; b++) {
+            if (d[b] != (byte) 0xff) {
+                int slotId = b * 8 + Integer.numberOfTrailingZeros(~d[b] & 0xff);
+                return slotId < numSlots ? slotId : -1;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -301,11 +321,11 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int cnt = 0;
-        for(int i=0; i<numSlots; i++)
-            if(!isSlotUsed(i))
-                cnt++;
-        return cnt;
+        byte[] d = data;
+        int used = 0;
+        for (int b=0; b<headerSize; b++)
+            used += Integer.bitCount(d[b] & 0xff);
+        return numSlots - used;
     }
 
     /**
@@ -314,7 +334,7 @@ public class HeapPage implements Page {
     public boolean isSlotUsed(int i) {
         int headerbit = i % 8;
         int headerbyte = (i - headerbit) / 8;
-        return (header[headerbyte] & (1 << headerbit)) != 0;
+        return (data[headerbyte] & (1 << headerbit)) != 0;
     }
 
     /**
@@ -324,9 +344,9 @@ public class HeapPage implements Page {
         int headerbit = i % 8;
         int headerbyte = (i - headerbit) / 8;
         if (value)
-            header[headerbyte] |= (1 << headerbit);
+            data[headerbyte] |= (1 << headerbit);
         else
-            header[headerbyte] &= ~(1 << headerbit);
+            data[headerbyte] &= ~(1 << headerbit);
     }
 
     /**
@@ -341,7 +361,7 @@ public class HeapPage implements Page {
     // out of this page
     Tuple getTuple(int i) throws NoSuchElementException {
 
-        if (i >= tuples.length)
+        if (i >= tuples.length())
             throw new NoSuchElementException();
 
         try {
@@ -351,7 +371,14 @@ public class HeapPage implements Page {
             }
 
             Debug.log(1, "HeapPage.getTuple: returning tuple %d", i);
-            return tuples[i];
+            Tuple t = tuples.get(i);
+            if (t == null) {
+                // if another reader decoded the slot first, return its tuple
+                t = decodeTuple(i);
+                if (!tuples.compareAndSet(i, null, t))
+                    t = tuples.get(i);
+            }
+            return t;
 
         } catch (ArrayIndexOutOfBoundsException e) {
             throw new NoSuchElementException();
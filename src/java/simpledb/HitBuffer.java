@@ -0,0 +1,67 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * HitBuffer records BufferPool cache hits without taking a lock, so that
+ * hits never contend on the monitor of the {@link EvictionPolicy}. Each
+ * thread appends to one of several ring buffers with a single
+ * compare-and-set; the BufferPool replays the recorded hits into the policy
+ * whenever it calls the policy under its own monitor anyway, before a page
+ * is loaded, removed or evicted.
+ * <p>
+ * The buffer is lossy: a hit is dropped when its ring is full or another
+ * thread claimed the same slot first. A dropped hit only makes the policy's
+ * view of recency slightly older, never incorrect.
+ */
+class HitBuffer {
+
+    /** Number of hits each ring holds between two drains; a power of two. */
+    static final int RING_SIZE = 64;
+
+    private static final class Ring {
+        final AtomicLong tail = new AtomicLong();   // next slot to claim
+        volatile long head;                        // next slot to drain
+        final AtomicReferenceArray<PageId> slots = new AtomicReferenceArray<PageId>(RING_SIZE);
+    }
+
+    private final Ring[] rings;
+
+    HitBuffer() {
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        rings = new Ring[n];
+        for (int i = 0; i < n; i++)
+            rings[i] = new Ring();
+    }
+
+    /** Record a hit on a page; never blocks. */
+    void record(PageId pid) {
+        Ring r = rings[(int) Thread.currentThread().getId() & (rings.length - 1)];
+        long t = r.tail.get();
+        if (t - r.head >= RING_SIZE || !r.tail.compareAndSet(t, t + 1))
+            return;
+        r.slots.lazySet((int) t & (RING_SIZE - 1), pid);
+    }
+
+    /**
+     * Replay the recorded hits into the policy. Must only be called by one
+     * thread at a time, i.e. under the BufferPool monitor.
+     */
+    void drainTo(EvictionPolicy policy) {
+        for (Ring r : rings) {
+            long h = r.head;
+            long t = r.tail.get();
+            while (h < t) {
+                int i = (int) h & (RING_SIZE - 1);
+                PageId pid = r.slots.get(i);
+                if (pid == null)
+                    break; // claimed but not written yet; drained next time
+                r.slots.set(i, null);
+                policy.pageHit(pid);
+                h++;
+            }
+            r.head = h;
+        }
+    }
+}
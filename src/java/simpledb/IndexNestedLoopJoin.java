@@ -0,0 +1,228 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * IndexNestedLoopJoin joins the tuples of child1 with a table stored in a
+ * {@link BTreeFile} keyed on its join field. Instead of scanning the whole
+ * table for every child1 tuple, as {@link Join} does, the join probes the
+ * B+ tree with an {@link IndexPredicate} built from the child1 tuple's join
+ * field, and reads only the leaf pages that hold the matching keys.
+ * <p>
+ * The predicate may be an equality or a range comparison. Filters on the
+ * table's columns can be pushed into the join; they are applied to the
+ * tuples a probe returns. The output tuples are child1's fields followed by
+ * the table's, in the order of child1.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private DbIterator child1;
+    private final TransactionId tid;
+    private final int tableid;
+    private final String alias;
+    private final Predicate.Op indexOp;   // the predicate seen from the table's side
+    private final TupleDesc innerTd;
+    private final TupleDesc comboTD;
+    private final ArrayList<Predicate> filters = new ArrayList<Predicate>();
+
+    private transient Tuple outer;
+    private transient DbFileIterator probe;  // the matches of outer, or null
+
+    /**
+     * Constructor.
+     *
+     * @param p          the predicate to join on; an equality or a range
+     *                   comparison, whose field2 is the key field of the table
+     * @param child1     the outer input
+     * @param tid        the transaction the probes run as a part of
+     * @param tableid    the table to probe; must be a BTreeFile
+     * @param tableAlias the alias of the table, as in {@link SeqScan}
+     * @throws IllegalArgumentException if the table is not a BTreeFile keyed
+     *                                  on field2 of the predicate, or the
+     *                                  predicate cannot be looked up in it
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, TransactionId tid,
+            int tableid, String tableAlias) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof BTreeFile) || ((BTreeFile) file).keyField() != p.getField2())
+            throw new IllegalArgumentException("the table is not indexed on the join field");
+        if (!SortMergeJoin.supports(p.getOperator()))
+            throw new IllegalArgumentException("an index cannot be probed with " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.tid = tid;
+        this.tableid = tableid;
+        this.alias = tableAlias;
+        this.indexOp = swap(p.getOperator());
+
+        TupleDesc fileTd = file.getTupleDesc();
+        String[] names = new String[fileTd.numFields()];
+        Type[] types = new Type[fileTd.numFields()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = tableAlias + "." + fileTd.getFieldName(i);
+            types[i] = fileTd.getFieldType(i);
+        }
+        this.innerTd = new TupleDesc(types, names);
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), innerTd);
+    }
+
+    /**
+     * Build an index nested-loop join in place of a join of child1 with a
+     * scan of a B+ tree, possibly under filters, which are then applied to
+     * the probes.
+     *
+     * @return the join, or null if child2 is not a scan, under filters, of a
+     *         BTreeFile keyed on field2 of the predicate, or the predicate
+     *         cannot be looked up in it
+     */
+    public static IndexNestedLoopJoin overScan(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!SortMergeJoin.supports(p.getOperator()))
+            return null;
+        ArrayList<Predicate> filters = new ArrayList<Predicate>();
+        DbIterator it = child2;
+        while (it instanceof Filter) {
+            filters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        if (!(it instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan) it;
+        int tableid = Database.getCatalog().getTableId(scan.getTableName());
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof BTreeFile) || ((BTreeFile) file).keyField() != p.getField2())
+            return null;
+        IndexNestedLoopJoin j = new IndexNestedLoopJoin(p, child1, scan.getTransactionId(),
+                tableid, scan.getAlias());
+        for (Predicate f : filters)
+            j.addFilter(f);
+        return j;
+    }
+
+    /** @return the operator with its operands swapped: a op b iff b op' a */
+    static Predicate.Op swap(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return the name of the table this join probes in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the alias of the table this join probes
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * Drop the table tuples that fail a predicate before they are joined.
+     * The predicate's field is an index into the table's columns. Must be
+     * called before the join is opened.
+     */
+    public void addFilter(Predicate p) {
+        filters.add(p);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        outer = null;
+        probe = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeProbe();
+        child1.close();
+        outer = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeProbe();
+        child1.rewind();
+        outer = null;
+    }
+
+    private void closeProbe() {
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (probe != null) {
+                while (probe.hasNext()) {
+                    Tuple inner = probe.next();
+                    if (passes(inner) && pred.filter(outer, inner))
+                        return joined(outer, inner);
+                }
+                closeProbe();
+            }
+            if (!child1.hasNext()) {
+                outer = null;
+                return null;
+            }
+            outer = child1.next();
+            BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+            probe = file.indexIterator(tid, new IndexPredicate(indexOp, outer.getField(pred.getField1())));
+            probe.open();
+        }
+    }
+
+    private boolean passes(Tuple inner) {
+        for (Predicate f : filters) {
+            if (!f.filter(inner))
+                return false;
+        }
+        return true;
+    }
+
+    private Tuple joined(Tuple left, Tuple right) {
+        Tuple t = new Tuple(comboTD);
+        int n1 = left.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            t.setField(i, left.getField(i));
+        for (int i = 0; i < innerTd.numFields(); i++)
+            t.setField(n1 + i, right.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] {child1};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+    }
+}
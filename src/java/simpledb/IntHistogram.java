@@ -1,27 +1,88 @@
 package simpledb;
 
-/** A class to represent a fixed-width histogram over a single integer-based field.
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * A class to represent an equi-depth histogram over a single integer-based
+ * field, with separate counts for its most common values.
+ * <p>
+ * Values are added one at a time to a fine-grained equi-width count of
+ * {@link #FINE_BINS_PER_BUCKET} bins per bucket, and to a Space-Saving sketch
+ * of the {@link #MCV_SLOTS} most frequent values, so a single pass over the
+ * data in constant space is enough. The first estimate after values are
+ * added compresses the fine bins into buckets that each hold about the same
+ * number of values: values that are heavier than a bucket are kept with
+ * their own counts, and the rest are assumed to be spread evenly over the
+ * range of their bucket. Estimates then binary search the bucket bounds, so
+ * they take O(log buckets) time.
  */
 public class IntHistogram {
 
+    /** Number of equi-width bins the values are counted in per bucket before compression. */
+    static final int FINE_BINS_PER_BUCKET = 16;
+
+    /** Number of values the frequent-value sketch tracks. */
+    static final int MCV_SLOTS = 64;
+
+    private final int buckets;
+    private final int min;
+    private final int max;
+    private final long range;      // number of values in [min, max]
+    private final long[] fine;     // counts of the equi-width bins
+    private long total;
+
+    // Space-Saving sketch: the tracked values, their counts, and by how much
+    // each count may overstate the value's frequency
+    private final HashMap<Integer, Integer> slotOf = new HashMap<Integer, Integer>();
+    private final int[] slotValue = new int[MCV_SLOTS];
+    private final long[] slotCount = new long[MCV_SLOTS];
+    private final long[] slotError = new long[MCV_SLOTS];
+    private int slotsUsed;
+
+    // the compressed histogram, rebuilt on the first estimate after an add
+    private boolean built;
+    private int[] mcvValues;       // ascending
+    private long[] mcvCounts;
+    private long[] mcvBefore;      // total count of the mcvs before each one
+    private int[] bucketLow;       // bucket i holds [bucketLow[i], bucketHigh[i]]
+    private int[] bucketHigh;
+    private long[] bucketCounts;   // values in the bucket, other than mcvs
+    private long[] bucketBefore;   // total count of the buckets before each one
+
     /**
      * Create a new IntHistogram.
-     * 
+     *
      * This IntHistogram should maintain a histogram of integer values that it receives.
      * It should split the histogram into "buckets" buckets.
-     * 
+     *
      * The values that are being histogrammed will be provided one-at-a-time through the "addValue()" function.
-     * 
+     *
      * Your implementation should use space and have execution time that are both
-     * constant with respect to the number of values being histogrammed.  For example, you shouldn't 
+     * constant with respect to the number of values being histogrammed.  For example, you shouldn't
      * simply store every value that you see in a sorted list.
-     * 
+     *
      * @param buckets The number of buckets to split the input value into.
      * @param min The minimum integer value that will ever be passed to this class for histogramming
      * @param max The maximum integer value that will ever be passed to this class for histogramming
      */
     public IntHistogram(int buckets, int min, int max) {
-    	// some code goes here
+        this.buckets = Math.max(1, buckets);
+        this.min = min;
+        this.max = Math.max(min, max);
+        this.range = (long) this.max - min + 1;
+        this.fine = new long[(int) Math.min((long) this.buckets * FINE_BINS_PER_BUCKET, range)];
+    }
+
+    /** @return the fine bin of a value in [min, max] */
+    private int fineBin(int v) {
+        return (int) (((long) v - min) * fine.length / range);
+    }
+
+    /** @return the smallest value of fine bin j; j may be fine.length */
+    private long fineLow(int j) {
+        return min + ((long) j * range + fine.length - 1) / fine.length;
     }
 
     /**
@@ -29,44 +90,205 @@ public class IntHistogram {
      * @param v Value to add to the histogram
      */
     public void addValue(int v) {
-    	// some code goes here
+        v = Math.max(min, Math.min(max, v));
+        fine[fineBin(v)]++;
+        total++;
+        built = false;
+
+        Integer slot = slotOf.get(v);
+        if (slot != null) {
+            slotCount[slot]++;
+        } else if (slotsUsed < MCV_SLOTS) {
+            track(slotsUsed++, v, 1, 0);
+        } else {
+            // replace the least frequent value, whose count v may have had
+            int least = 0;
+            for (int i = 1; i < MCV_SLOTS; i++) {
+                if (slotCount[i] < slotCount[least])
+                    least = i;
+            }
+            slotOf.remove(slotValue[least]);
+            track(least, v, slotCount[least] + 1, slotCount[least]);
+        }
+    }
+
+    private void track(int slot, int v, long count, long error) {
+        slotOf.put(v, slot);
+        slotValue[slot] = v;
+        slotCount[slot] = count;
+        slotError[slot] = error;
+    }
+
+    /**
+     * Compress the fine bins into equi-depth buckets, after taking out the
+     * values that occur more often than a bucket's share of all values.
+     */
+    private void build() {
+        long[] counts = fine.clone();
+
+        // a tracked value occurs at least count - error times
+        long heavy = Math.max(1, total / buckets);
+        int n = 0;
+        Integer[] order = new Integer[slotsUsed];
+        for (int i = 0; i < slotsUsed; i++) {
+            if (slotCount[i] - slotError[i] >= heavy)
+                order[n++] = i;
+        }
+        Arrays.sort(order, 0, n, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(slotValue[a], slotValue[b]);
+            }
+        });
+        mcvValues = new int[n];
+        mcvCounts = new long[n];
+        mcvBefore = new long[n + 1];
+        long rest = total;
+        for (int i = 0; i < n; i++) {
+            int slot = order[i];
+            mcvValues[i] = slotValue[slot];
+            mcvCounts[i] = slotCount[slot] - slotError[slot];
+            mcvBefore[i + 1] = mcvBefore[i] + mcvCounts[i];
+            counts[fineBin(mcvValues[i])] -= mcvCounts[i];
+            rest -= mcvCounts[i];
+        }
+
+        int[] lows = new int[buckets];
+        int[] highs = new int[buckets];
+        long[] bcounts = new long[buckets];
+        int nb = 0;
+        int j = 0;
+        while (j < counts.length) {
+            // close the bucket once it holds its share of the values left
+            long share = Math.max(1, rest / (buckets - nb));
+            int first = j;
+            long c = 0;
+            while (j < counts.length && (c < share || nb == buckets - 1))
+                c += counts[j++];
+            lows[nb] = (int) fineLow(first);
+            highs[nb] = (int) (fineLow(j) - 1);
+            bcounts[nb++] = c;
+            rest -= c;
+        }
+        bucketLow = Arrays.copyOf(lows, nb);
+        bucketHigh = Arrays.copyOf(highs, nb);
+        bucketCounts = Arrays.copyOf(bcounts, nb);
+        bucketBefore = new long[nb + 1];
+        for (int i = 0; i < nb; i++)
+            bucketBefore[i + 1] = bucketBefore[i] + bucketCounts[i];
+        built = true;
+    }
+
+    /** @return the estimated number of values equal to v */
+    private double countEqual(int v) {
+        if (v < min || v > max)
+            return 0;
+        int m = Arrays.binarySearch(mcvValues, v);
+        if (m >= 0)
+            return mcvCounts[m];
+        int b = bucketOf(v);
+        return (double) bucketCounts[b] / ((long) bucketHigh[b] - bucketLow[b] + 1);
+    }
+
+    /** @return the estimated number of values less than v */
+    private double countLess(int v) {
+        if (v <= min)
+            return 0;
+        if (v > max)
+            return total;
+        int m = Arrays.binarySearch(mcvValues, v);
+        double c = mcvBefore[m >= 0 ? m : -m - 1];
+        int b = bucketOf(v);
+        long width = (long) bucketHigh[b] - bucketLow[b] + 1;
+        return c + bucketBefore[b] + (double) bucketCounts[b] * ((long) v - bucketLow[b]) / width;
+    }
+
+    /** @return the bucket of a value in [min, max] */
+    private int bucketOf(int v) {
+        int b = Arrays.binarySearch(bucketHigh, v);
+        return b >= 0 ? b : -b - 1;
     }
 
     /**
      * Estimate the selectivity of a particular predicate and operand on this table.
-     * 
-     * For example, if "op" is "GREATER_THAN" and "v" is 5, 
+     *
+     * For example, if "op" is "GREATER_THAN" and "v" is 5,
      * return your estimate of the fraction of elements that are greater than 5.
-     * 
+     *
      * @param op Operator
      * @param v Value
      * @return Predicted selectivity of this particular operator and value
      */
     public double estimateSelectivity(Predicate.Op op, int v) {
-
-    	// some code goes here
-        return -1.0;
+        if (total == 0)
+            return 0;
+        if (!built)
+            build();
+        double s;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            s = countEqual(v);
+            break;
+        case NOT_EQUALS:
+            s = total - countEqual(v);
+            break;
+        case LESS_THAN:
+            s = countLess(v);
+            break;
+        case LESS_THAN_OR_EQ:
+            s = countLess(v) + countEqual(v);
+            break;
+        case GREATER_THAN:
+            s = total - countLess(v) - countEqual(v);
+            break;
+        default:
+            s = total - countLess(v);
+            break;
+        }
+        return Math.max(0, Math.min(1, s / total));
     }
-    
+
     /**
      * @return
      *     the average selectivity of this histogram.
-     *     
+     *
      *     This is not an indispensable method to implement the basic
      *     join optimization. It may be needed if you want to
      *     implement a more efficient optimization
+     *
+     *     It is the expected selectivity of an equality with one of the
+     *     values added, which is the sum of the squared frequencies of the
+     *     values.
      * */
     public double avgSelectivity()
     {
-        // some code goes here
-        return 1.0;
+        if (total == 0)
+            return 1.0;
+        if (!built)
+            build();
+        double sum = 0;
+        for (long c : mcvCounts)
+            sum += (double) c * c;
+        for (int b = 0; b < bucketCounts.length; b++)
+            sum += (double) bucketCounts[b] * bucketCounts[b]
+                    / ((long) bucketHigh[b] - bucketLow[b] + 1);
+        return Math.min(1.0, sum / ((double) total * total));
     }
-    
+
     /**
      * @return A string describing this histogram, for debugging purposes
      */
     public String toString() {
-        // some code goes here
-        return null;
+        if (total > 0 && !built)
+            build();
+        StringBuilder sb = new StringBuilder("IntHistogram(" + total + " values");
+        if (total > 0) {
+            for (int i = 0; i < mcvValues.length; i++)
+                sb.append(", ").append(mcvValues[i]).append(": ").append(mcvCounts[i]);
+            for (int b = 0; b < bucketCounts.length; b++)
+                sb.append(", [").append(bucketLow[b]).append(", ").append(bucketHigh[b])
+                        .append("]: ").append(bucketCounts[b]);
+        }
+        return sb.append(")").toString();
     }
 }
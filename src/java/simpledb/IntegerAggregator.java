@@ -1,10 +1,14 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Groups are numbered by a {@link GroupTable}, and the running aggregate and
+ * row count of every group are kept in int arrays indexed by group number,
+ * so merging a row does not box or allocate.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -14,9 +18,11 @@ public class IntegerAggregator implements Aggregator {
     private Type gfiType;
     private int aggregateFieldIndex;
     private Op op;
-    private HashMap<Field,Integer> aggregateData;
-    private HashMap<Field,Integer> count;
-    
+    private GroupTable groups;  // null if there is no grouping
+    private int[] aggregateData = new int[16];
+    private int[] count = new int[16];
+    private int numGroups = 0;
+
     
     /**
      * Aggregate constructor
@@ -39,8 +45,7 @@ public class IntegerAggregator implements Aggregator {
     	gfiType = gbfieldtype;
     	aggregateFieldIndex = afield;
     	op = what;
-    	aggregateData = new HashMap<Field, Integer>();
-    	count = new HashMap<Field, Integer>();
+    	groups = (gbfield == Aggregator.NO_GROUPING) ? null : new GroupTable(gbfieldtype);
     }
 
     private int initialData()
@@ -63,40 +68,97 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-    	Field tupleGroupByField = (gfi == Aggregator.NO_GROUPING) ? null : tup.getField(gfi);
-    	
-    	if (!aggregateData.containsKey(tupleGroupByField))
+    	int group = (gfi == Aggregator.NO_GROUPING) ? 0 : groups.groupOf(tup.getField(gfi));
+    	int tupleValue = ((IntField) tup.getField(aggregateFieldIndex)).getValue();
+    	mergeIntoGroup(group, tupleValue, 1);
+    }
+
+    /**
+     * Merge a batch of rows into the aggregate. Without grouping, the
+     * aggregate column is folded in a single loop over its int[] and merged
+     * into the result once per batch.
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+    	int n = batch.size();
+    	int[] values = batch.getInts(aggregateFieldIndex);
+    	if (gfi != Aggregator.NO_GROUPING)
     	{
-    		aggregateData.put(tupleGroupByField, initialData());
-    		count.put(tupleGroupByField, 0);
+    		if (gfiType == Type.INT_TYPE)
+    		{
+    			int[] keys = batch.getInts(gfi);
+    			for (int i = 0; i < n; i++)
+    				mergeIntoGroup(groups.groupOf(keys[i]), values[i], 1);
+    		}
+    		else
+    		{
+    			String[] keys = batch.getStrings(gfi);
+    			for (int i = 0; i < n; i++)
+    				mergeIntoGroup(groups.groupOf(keys[i]), values[i], 1);
+    		}
+    		return;
     	}
-    	
-    	int tupleValue = ((IntField) tup.getField(aggregateFieldIndex)).getValue();
-    	int currentValue = aggregateData.get(tupleGroupByField);
-    	int currentCount = count.get(tupleGroupByField);
+    	if (n == 0)
+    		return;
+    	int partial = initialData();
+    	switch(op)
+    	{
+    		case MIN:
+    			for (int i = 0; i < n; i++) partial = Math.min(partial, values[i]);
+    			break;
+    		case MAX:
+    			for (int i = 0; i < n; i++) partial = Math.max(partial, values[i]);
+    			break;
+    		case SUM: case AVG:
+    			for (int i = 0; i < n; i++) partial += values[i];
+    			break;
+			default:
+				break;
+    	}
+    	mergeIntoGroup(0, partial, n);
+    }
+
+    /**
+     * Merge the partial aggregate of rows rows of one group into its result.
+     * For MIN, MAX and SUM/AVG partial is the min, max or sum of their
+     * values; COUNT only uses rows.
+     */
+    private void mergeIntoGroup(int group, int partial, int rows)
+    {
+    	if (group == numGroups)
+    	{
+    		if (group == aggregateData.length)
+    		{
+    			aggregateData = Arrays.copyOf(aggregateData, group * 2);
+    			count = Arrays.copyOf(count, group * 2);
+    		}
+    		aggregateData[group] = initialData();
+    		count[group] = 0;
+    		numGroups++;
+    	}
+    	int currentValue = aggregateData[group];
     	int newValue = currentValue;
     	switch(op)
     	{
     		case MIN: 
-    			newValue = (tupleValue > currentValue) ? currentValue : tupleValue;
+    			newValue = (partial > currentValue) ? currentValue : partial;
     			break;
     		case MAX:
-    			newValue = (tupleValue < currentValue) ? currentValue : tupleValue;
+    			newValue = (partial < currentValue) ? currentValue : partial;
     			break;
     		case SUM: case AVG:
     			// can't calculate average until all the tuples are in
     			// In the mean time, keep track of sum and count and 
     			// calculate the averages in the iterator
-    			count.put(tupleGroupByField, currentCount+1);
-    			newValue = tupleValue + currentValue;
+    			newValue = partial + currentValue;
     			break;
     		case COUNT:
-    			newValue = currentValue + 1;
+    			newValue = currentValue + rows;
     			break;
 			default:
 				break;
     	}
-    	aggregateData.put(tupleGroupByField, newValue);
+    	aggregateData[group] = newValue;
+    	count[group] += rows;
     }
 
     private TupleDesc createGroupByTupleDesc()
@@ -129,23 +191,23 @@ public class IntegerAggregator implements Aggregator {
     	ArrayList<Tuple> tuples = new ArrayList<Tuple>();
     	TupleDesc tupledesc = createGroupByTupleDesc();
     	Tuple addMe;
-    	for (Field group : aggregateData.keySet())
+    	for (int group = 0; group < numGroups; group++)
     	{
     		int aggregateVal;
     		if (op == Op.AVG)
     		{
-    			aggregateVal = aggregateData.get(group) / count.get(group);
+    			aggregateVal = aggregateData[group] / count[group];
     		}
     		else
     		{
-    			aggregateVal = aggregateData.get(group);
+    			aggregateVal = aggregateData[group];
     		}
     		addMe = new Tuple(tupledesc);
     		if (gfi == Aggregator.NO_GROUPING){
     			addMe.setField(0, new IntField(aggregateVal));
     		}
     		else {
-        		addMe.setField(0, group);
+        		addMe.setField(0, groups.key(group));
         		addMe.setField(1, new IntField(aggregateVal));    			
     		}
     		tuples.add(addMe);
@@ -1,19 +1,57 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation as a block
+ * nested-loop join. child2, the inner relation, is read once when the join
+ * is opened and kept in a buffer, so it is not re-run for every outer tuple:
+ * in memory when it fits in half the memory budget, otherwise in a
+ * {@link SpillFile}. With the inner relation in memory, child1 is read once
+ * and each of its tuples is compared with the buffered join fields. With it
+ * on disk, child1 is read in blocks that fill the other half of the budget,
+ * and the spill file is read once per block, each of its tuples being
+ * compared with the whole block.
+ * <p>
+ * Any predicate can be joined on, which makes this the join for comparisons
+ * that cannot be hashed or merged. Results come in the order of child1,
+ * except that a spilled inner relation orders them by block first and then
+ * by inner tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Default number of bytes of tuples the join holds in memory: the
+     * buffered inner relation and a block of outer tuples get half each.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
     JoinPredicate joinpred;
     DbIterator child1;
     DbIterator child2;
-    Tuple tup;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private transient TupleDesc td;
 
+    // the inner relation: in memory, with its join fields, or spilled
+    private transient ArrayList<Tuple> inner;
+    private transient Field[] innerKeys;
+    private transient SpillFile innerFile;
+    private transient DbIterator innerIt;
+
+    // in memory: the outer tuple being joined and the next inner tuple to
+    // compare it with
+    private transient Tuple tup;
+    private transient Field tupKey;
+    private transient int innerPos;
+
+    // spilled: the block of outer tuples being joined, the inner tuple read
+    // last and the next block tuple to compare it with
+    private transient ArrayList<Tuple> block;
+    private transient Tuple innerTup;
+    private transient int blockPos;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -54,36 +92,123 @@ public class Join extends Operator {
         return child2.getTupleDesc().getFieldName(joinpred.getField2());
     }
 
+    /**
+     * Set how many bytes of tuples the join may hold in memory. Must be
+     * called before the join is opened.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the number of bytes of tuples the join may hold in memory
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return true if the inner relation did not fit in memory and is read
+     *         from a spill file once per block of outer tuples
+     */
+    public boolean isSpilling() {
+        return innerFile != null;
+    }
+
     /**
      * @see simpledb.TupleDesc#merge(TupleDesc, TupleDesc) for possible
      *      implementation logic.
      */
     public TupleDesc getTupleDesc() {
-        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        if (td == null)
+            td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        dropInner();
         child1.open();
         child2.open();
+        bufferInner();
+        child2.close();
+        tup = null;
+        block = new ArrayList<Tuple>();
+        super.open();
+    }
+
+    /**
+     * Read child2 into memory, or into a spill file once it outgrows half
+     * the memory budget.
+     */
+    private void bufferInner() throws DbException, TransactionAbortedException {
+        long tupleSize = child2.getTupleDesc().getHeapSize();
+        inner = new ArrayList<Tuple>();
+        try {
+            while (child2.hasNext()) {
+                Tuple t = child2.next();
+                if (innerFile == null && (inner.size() + 1) * tupleSize > memoryBudget / 2) {
+                    innerFile = new SpillFile(child2.getTupleDesc());
+                    for (Tuple b : inner)
+                        innerFile.add(b);
+                    inner = null;
+                }
+                if (innerFile != null)
+                    innerFile.add(t);
+                else
+                    inner.add(t);
+            }
+            if (innerFile != null) {
+                innerIt = innerFile.iterator();
+                return;
+            }
+        } catch (IOException e) {
+            dropInner();
+            throw new DbException("IO Exception spilling the inner relation: " + e.getMessage());
+        }
+        innerKeys = new Field[inner.size()];
+        for (int i = 0; i < innerKeys.length; i++)
+            innerKeys[i] = inner.get(i).getField(joinpred.getField2());
+    }
+
+    private void dropInner() {
+        if (innerIt != null) {
+            innerIt.close();
+            innerIt = null;
+        }
+        if (innerFile != null) {
+            innerFile.delete();
+            innerFile = null;
+        }
+        inner = null;
+        innerKeys = null;
+        innerTup = null;
+        block = null;
     }
 
     public void close() {
         child1.close();
         child2.close();
+        dropInner();
+        tup = null;
         super.close();
     }
 
+    /**
+     * Restart the join from the first outer tuple; the buffered inner
+     * relation is kept.
+     */
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
-        child2.rewind();
+        tup = null;
+        block.clear();
+        innerTup = null;
     }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -98,44 +223,71 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // add exceptions
-        if (child1 == null || child2 == null) {
-            throw new DbException("child1 or child2 is null");
-        }
-        if (joinpred == null) {
-            throw new DbException("join predicate is null");
-        }
-        if (tup == null) {
-            if (child1.hasNext()) {
+        if (block == null)
+            return null;
+        return innerFile == null ? nextInMemory() : nextBlock();
+    }
+
+    private Tuple nextInMemory() throws TransactionAbortedException, DbException {
+        Predicate.Op op = joinpred.getOperator();
+        while (true) {
+            if (tup == null) {
+                if (!child1.hasNext())
+                    return null;
                 tup = child1.next();
-            } else {
-                return null;
+                tupKey = tup.getField(joinpred.getField1());
+                innerPos = 0;
+            }
+            while (innerPos < innerKeys.length) {
+                int i = innerPos++;
+                if (tupKey.compare(op, innerKeys[i]))
+                    return merge(tup, inner.get(i));
             }
+            // forget the outer tuple, so that calls past the end do not
+            // join it again
+            tup = null;
         }
-        while (child2.hasNext()) {
-            Tuple tup2 = child2.next();
-            if (joinpred.filter(tup, tup2)) {
-                TupleDesc td = getTupleDesc();
-                Tuple newTup = new Tuple(td);
-                int i = 0;
-                for (int j = 0; j < tup.getTupleDesc().numFields(); j++) {
-                    newTup.setField(i, tup.getField(j));
-                    i++;
+    }
+
+    private Tuple nextBlock() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (block.isEmpty()) {
+                long tupleSize = child1.getTupleDesc().getHeapSize();
+                while ((block.size() + 1) * tupleSize <= memoryBudget / 2 || block.isEmpty()) {
+                    if (!child1.hasNext())
+                        break;
+                    block.add(child1.next());
                 }
-                for (int j = 0; j < tup2.getTupleDesc().numFields(); j++) {
-                    newTup.setField(i, tup2.getField(j));
-                    i++;
+                if (block.isEmpty())
+                    return null;
+                innerIt.close();
+                innerIt.open();
+                innerTup = null;
+            }
+            if (innerTup != null) {
+                while (blockPos < block.size()) {
+                    Tuple t = block.get(blockPos++);
+                    if (joinpred.filter(t, innerTup))
+                        return merge(t, innerTup);
                 }
-                return newTup;
+            }
+            if (innerIt.hasNext()) {
+                innerTup = innerIt.next();
+                blockPos = 0;
+            } else {
+                block.clear();
             }
         }
-        child2.rewind();
-        if (child1.hasNext()) {
-            tup = child1.next();
-            return fetchNext();
-        } else {
-            return null;
-        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(getTupleDesc());
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(n1 + i, t2.getField(i));
+        return t;
     }
 
     @Override
@@ -14,6 +14,17 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /** Fraction of the cross product a range join is estimated to return. */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
+    /**
+     * Largest number of joins ordered by dynamic programming over all their
+     * connected subsets; the joins of larger queries are added greedily. A
+     * star of this many joins, whose subsets are all connected, is planned
+     * in well under a second.
+     */
+    static final int MAX_DP_JOINS = 12;
+
     /**
      * Constructor
      * 
@@ -28,13 +39,109 @@ public class JoinOptimizer {
     }
 
     /**
-     * Return best iterator for computing a given logical join, given the
-     * specified statistics, and the provided left and right subplans. Note that
-     * there is insufficient information to determine which plan should be the
-     * inner/outer here -- because DbIterator's don't provide any cardinality
-     * estimates, and stats only has information about the base tables. For this
-     * reason, the plan1
-     * 
+     * The physical join algorithms a logical join can be instantiated with.
+     */
+    public enum Algorithm {
+        /** {@link Join}: every outer tuple is compared with the buffered inner input */
+        NESTED_LOOP,
+        /** {@link HashEquiJoin}: the smaller input is hashed and probed with the other */
+        HASH,
+        /** {@link SortMergeJoin}: both inputs are merged in join order */
+        SORT_MERGE,
+        /** {@link IndexNestedLoopJoin}: a B+ tree is probed once per outer tuple */
+        INDEX_NESTED_LOOP
+    }
+
+    /**
+     * What the cost model knows about one input of a join: its estimated
+     * cardinality, the cost of producing it once, the size of its tuples in
+     * bytes, and whether it comes in join order or can be probed through a
+     * B+ tree keyed on its join field.
+     */
+    public static class JoinInput {
+        final int card;
+        final double cost;
+        final int width;
+        final int heapWidth;
+        final boolean sorted;
+        final boolean indexed;
+        private final double pages;
+
+        /**
+         * @param width the bytes a tuple of the input takes on disk
+         * @param heapWidth the bytes a tuple of the input takes in memory,
+         *            see {@link TupleDesc#getHeapSize}
+         */
+        public JoinInput(int card, double cost, int width, int heapWidth,
+                boolean sorted, boolean indexed) {
+            this(card, cost, width, heapWidth, Math.ceil((double) Math.max(card, 0)
+                    * width / BufferPool.getPageSize()), sorted, indexed);
+        }
+
+        public JoinInput(TupleDesc td, int card, double cost, boolean sorted,
+                boolean indexed) {
+            this(card, cost, td.getSize(), td.getHeapSize(), sorted, indexed);
+        }
+
+        private JoinInput(int card, double cost, int width, int heapWidth,
+                double pages, boolean sorted, boolean indexed) {
+            this.card = Math.max(card, 0);
+            this.cost = cost;
+            this.width = width;
+            this.heapWidth = heapWidth;
+            this.pages = pages;
+            this.sorted = sorted;
+            this.indexed = indexed;
+        }
+
+        /**
+         * @return this input, as a scan of a base table of the given number
+         *         of pages rather than one whose pages are derived from its
+         *         cardinality
+         */
+        JoinInput withPages(int numPages) {
+            return new JoinInput(card, cost, width, heapWidth, numPages,
+                    sorted, indexed);
+        }
+
+        /** @return the number of pages the input fills */
+        double pages() {
+            return pages;
+        }
+
+        /** @return the bytes of heap the input takes when held in memory */
+        double bytes() {
+            return (double) card * heapWidth;
+        }
+    }
+
+    /**
+     * The cheapest algorithm for a join. If swap is set, the inputs are
+     * exchanged: child1 of the operator is the right-hand side of the join
+     * (the probe side of a hash join, the table probed by an index join).
+     */
+    static class JoinChoice {
+        final Algorithm algorithm;
+        final boolean swap;
+        final double cost;
+
+        JoinChoice(Algorithm algorithm, boolean swap, double cost) {
+            this.algorithm = algorithm;
+            this.swap = swap;
+            this.cost = cost;
+        }
+    }
+
+    /** Cardinality assumed for the inputs of a join without estimates. */
+    static final int DEFAULT_INPUT_CARD = 1000;
+
+    /**
+     * Return best iterator for computing a given logical join and the
+     * provided left and right subplans. DbIterators do not provide any
+     * cardinality estimates, so both inputs are assumed to hold
+     * {@link #DEFAULT_INPUT_CARD} tuples; see
+     * {@link #instantiateJoin(LogicalJoinNode, DbIterator, DbIterator, int, int, double, double)}.
+     *
      * @param lj
      *            The join being considered
      * @param plan1
@@ -44,9 +151,41 @@ public class JoinOptimizer {
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
+        int width1 = plan1.getTupleDesc().getSize();
+        int width2 = plan2.getTupleDesc().getSize();
+        return instantiateJoin(lj, plan1, plan2, DEFAULT_INPUT_CARD,
+                DEFAULT_INPUT_CARD, scanCost(DEFAULT_INPUT_CARD, width1),
+                scanCost(DEFAULT_INPUT_CARD, width2));
+    }
+
+    /**
+     * Return the cheapest iterator for computing a given logical join of the
+     * provided left and right subplans, given estimates of their
+     * cardinalities and costs. The algorithm, and which input is built or
+     * probed, is the one {@link #cheapestJoin} estimates to be cheapest.
+     * The output tuples hold the fields of plan1 followed by those of plan2;
+     * if the inputs are swapped, a {@link Project} restores that order.
+     *
+     * @param lj
+     *            The join being considered
+     * @param plan1
+     *            The left join node's child
+     * @param plan2
+     *            The right join node's child
+     * @param card1
+     *            Estimated cardinality of plan1
+     * @param card2
+     *            Estimated cardinality of plan2
+     * @param cost1
+     *            Estimated cost of producing plan1 once
+     * @param cost2
+     *            Estimated cost of producing plan2 once
+     */
+    public static DbIterator instantiateJoin(LogicalJoinNode lj,
+            DbIterator plan1, DbIterator plan2, int card1, int card2,
+            double cost1, double cost2) throws ParsingException {
 
         int t1id = 0, t2id = 0;
-        DbIterator j;
 
         try {
             t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
@@ -67,23 +206,81 @@ public class JoinOptimizer {
         }
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
+        if (lj instanceof LogicalSubplanJoinNode)
+            return new Join(p, plan1, plan2);
+        JoinPredicate swapped = new JoinPredicate(t2id,
+                IndexNestedLoopJoin.swap(lj.p), t1id);
+
+        JoinInput in1 = withTablePages(new JoinInput(plan1.getTupleDesc(),
+                card1, cost1, SortMergeJoin.isSortedOn(plan1, t1id),
+                IndexNestedLoopJoin.overScan(swapped, plan2, plan1) != null), plan1);
+        JoinInput in2 = withTablePages(new JoinInput(plan2.getTupleDesc(),
+                card2, cost2, SortMergeJoin.isSortedOn(plan2, t2id),
+                IndexNestedLoopJoin.overScan(p, plan1, plan2) != null), plan2);
+        JoinChoice c = cheapestJoin(lj.p, in1, in2);
+        switch (c.algorithm) {
+        case HASH:
+            return c.swap ? unswap(new HashEquiJoin(swapped, plan2, plan1), plan1)
+                    : new HashEquiJoin(p, plan1, plan2);
+        case SORT_MERGE:
+            return new SortMergeJoin(p, plan1, plan2);
+        case INDEX_NESTED_LOOP:
+            return c.swap ? unswap(IndexNestedLoopJoin.overScan(swapped, plan2, plan1), plan1)
+                    : IndexNestedLoopJoin.overScan(p, plan1, plan2);
+        default:
+            return c.swap ? unswap(new Join(swapped, plan2, plan1), plan1)
+                    : new Join(p, plan1, plan2);
+        }
+    }
 
-        j = new Join(p,plan1,plan2);
-
-        return j;
+    /**
+     * @return in, with the page count of the table plan scans if plan is a
+     *         (filtered) scan of a table with statistics
+     */
+    private static JoinInput withTablePages(JoinInput in, DbIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        TableStats stats = null;
+        if (plan instanceof SeqScan)
+            stats = TableStats.getTableStats(((SeqScan) plan).getTableName());
+        else if (plan instanceof BTreeScan)
+            stats = TableStats.getTableStats(((BTreeScan) plan).getTableName());
+        return stats == null ? in : in.withPages(stats.numPages());
+    }
 
+    /**
+     * Project the output of a join of plan2 with plan1 so that the fields of
+     * plan1 come first, as in the output of a join of plan1 with plan2.
+     *
+     * @param join
+     *            a join whose first input is plan2 and second input plan1
+     * @param plan1
+     *            the second input of join
+     */
+    static DbIterator unswap(DbIterator join, DbIterator plan1) {
+        TupleDesc td = join.getTupleDesc();
+        int n1 = plan1.getTupleDesc().numFields();
+        int n2 = td.numFields() - n1;
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        Type[] types = new Type[td.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            int f = i < n1 ? n2 + i : i - n1;
+            fields.add(f);
+            types[i] = td.getFieldType(f);
+        }
+        return new Project(fields, types, join);
     }
 
     /**
      * Estimate the cost of a join.
-     * 
-     * The cost of the join should be calculated based on the join algorithm (or
-     * algorithms) that you implemented for Lab 2. It should be a function of
-     * the amount of data that must be read over the course of the query, as
-     * well as the number of CPU opertions performed by your join. Assume that
-     * the cost of a single predicate application is roughly 1.
-     * 
-     * 
+     *
+     * The cost is that of the cheapest algorithm that can run the join, as
+     * chosen by {@link #cheapestJoin}: a function of the pages read and
+     * written, at {@link TableStats#IOCOSTPERPAGE} each, and of the number
+     * of predicate applications, hash probes and comparisons, at 1 each.
+     * Both sides are taken to be base tables, which may be stored in B+
+     * trees keyed on their join fields.
+     *
      * @param j
      *            A LogicalJoinNode representing the join operation being
      *            performed.
@@ -102,17 +299,194 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true, true,
+                TableStats.getStatsMap());
+    }
+
+    /**
+     * Estimate the cost of a join whose sides are each a base table or the
+     * result of earlier joins. Only a base table is read in the order of a
+     * B+ tree keyed on its join field, or probed through it; the tuples of
+     * an earlier join are taken to be as wide as those of the table joined.
+     *
+     * @param base1
+     *            true if the left-hand side is a base table
+     * @param base2
+     *            true if the right-hand side is a base table
+     * @param stats
+     *            table stats for all of the tables, referenced by table names;
+     *            a base table is read for as many pages as its stats hold
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean base1, boolean base2,
+            Map<String, TableStats> stats) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            boolean keyed1 = base1 && isSortedScan(j.t1Alias, j.f1PureName);
+            boolean keyed2 = base2 && isSortedScan(j.t2Alias, j.f2PureName);
+            JoinInput in1 = new JoinInput(tupleDesc(j.t1Alias), card1, cost1,
+                    keyed1, keyed1);
+            JoinInput in2 = new JoinInput(tupleDesc(j.t2Alias), card2, cost2,
+                    keyed2, keyed2);
+            TableStats stats1 = base1 ? stats.get(tableName(j.t1Alias)) : null;
+            TableStats stats2 = base2 ? stats.get(tableName(j.t2Alias)) : null;
+            if (stats1 != null)
+                in1 = in1.withPages(stats1.numPages());
+            if (stats2 != null)
+                in2 = in2.withPages(stats2.numPages());
+            return cheapestJoin(j.p, in1, in2).cost;
+        }
+    }
+
+    /**
+     * Find the cheapest algorithm for a join of in1 with in2 on the
+     * operator, trying each input as the build side of a hash join, the
+     * inner input of a nested-loop join, and the table probed by an index
+     * join. Ties go to the algorithm tried first: hash, sort-merge, index
+     * nested-loop, nested-loop.
+     */
+    static JoinChoice cheapestJoin(Predicate.Op op, JoinInput in1,
+            JoinInput in2) {
+        JoinChoice best = null;
+        if (op == Predicate.Op.EQUALS) {
+            best = cheaper(best, Algorithm.HASH, false,
+                    estimateHashJoinCost(in1, in2));
+            best = cheaper(best, Algorithm.HASH, true,
+                    estimateHashJoinCost(in2, in1));
         }
+        if (SortMergeJoin.supports(op)) {
+            best = cheaper(best, Algorithm.SORT_MERGE, false,
+                    estimateSortMergeJoinCost(op, in1, in2));
+            if (in2.indexed)
+                best = cheaper(best, Algorithm.INDEX_NESTED_LOOP, false,
+                        estimateIndexNestedLoopJoinCost(op, in1, in2));
+            if (in1.indexed)
+                best = cheaper(best, Algorithm.INDEX_NESTED_LOOP, true,
+                        estimateIndexNestedLoopJoinCost(op, in2, in1));
+        }
+        best = cheaper(best, Algorithm.NESTED_LOOP, false,
+                estimateJoinLoopCost(in1, in2));
+        // a LIKE pattern cannot be matched from the other side
+        if (op != Predicate.Op.LIKE)
+            best = cheaper(best, Algorithm.NESTED_LOOP, true,
+                    estimateJoinLoopCost(in2, in1));
+        return best;
+    }
+
+    private static JoinChoice cheaper(JoinChoice best, Algorithm algorithm,
+            boolean swap, double cost) {
+        if (best == null || cost < best.cost)
+            return new JoinChoice(algorithm, swap, cost);
+        return best;
+    }
+
+    /**
+     * Estimate the cost of a {@link Join}, which is a nested-loop join while
+     * the inner input fits in half of its memory budget and a block
+     * nested-loop join otherwise.
+     */
+    private static double estimateJoinLoopCost(JoinInput outer,
+            JoinInput inner) {
+        if (inner.bytes() <= Join.DEFAULT_MEMORY_BUDGET / 2)
+            return estimateNestedLoopJoinCost(outer, inner);
+        return estimateBlockNestedLoopJoinCost(outer, inner,
+                Join.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Estimate the cost of a nested-loop join whose inner input is held in
+     * memory: one scan of each input, and one predicate application per
+     * pair of tuples.
+     */
+    public static double estimateNestedLoopJoinCost(JoinInput outer,
+            JoinInput inner) {
+        return outer.cost + inner.cost + (double) outer.card * inner.card;
+    }
+
+    /**
+     * Estimate the cost of a block nested-loop join whose inner input does
+     * not fit in memory: the inner input is written to disk once, and read
+     * back once for every block of outer tuples that fills half of the
+     * memory budget.
+     */
+    public static double estimateBlockNestedLoopJoinCost(JoinInput outer,
+            JoinInput inner, long memoryBudget) {
+        double blocks = Math.max(1, Math.ceil(outer.bytes() / (memoryBudget / 2)));
+        return estimateNestedLoopJoinCost(outer, inner)
+                + (1 + blocks) * inner.pages() * TableStats.IOCOSTPERPAGE;
+    }
+
+    /**
+     * Estimate the cost of a {@link HashEquiJoin}: one scan of each input,
+     * the hashing and insertion of every build tuple, and one probe per
+     * probe tuple. A build side larger than the memory budget makes the
+     * join partition both inputs to disk and read them back.
+     */
+    public static double estimateHashJoinCost(JoinInput build, JoinInput probe) {
+        double cost = build.cost + probe.cost + 2.0 * build.card + probe.card;
+        if (build.bytes() > HashEquiJoin.DEFAULT_MEMORY_BUDGET)
+            cost += 2 * (build.pages() + probe.pages()) * TableStats.IOCOSTPERPAGE;
+        return cost;
+    }
+
+    /**
+     * Estimate the cost of a {@link SortMergeJoin}: one scan of each input,
+     * a sort of each input that is not already in join order, and one
+     * comparison per input tuple to merge them. A range comparison also
+     * reads, for every outer tuple, the prefix of the other input that
+     * satisfies it.
+     */
+    public static double estimateSortMergeJoinCost(Predicate.Op op,
+            JoinInput in1, JoinInput in2) {
+        double cost = in1.cost + in2.cost + in1.card + in2.card;
+        if (!in1.sorted)
+            cost += sortCost(in1, SortMergeJoin.DEFAULT_MEMORY_BUDGET);
+        if (!in2.sorted)
+            cost += sortCost(in2, SortMergeJoin.DEFAULT_MEMORY_BUDGET);
+        if (op != Predicate.Op.EQUALS)
+            cost += RANGE_JOIN_SELECTIVITY * in1.card * in2.card;
+        return cost;
+    }
+
+    /**
+     * Estimate the cost of an {@link IndexNestedLoopJoin}: one scan of the
+     * outer input, and for each of its tuples a descent of the B+ tree on
+     * the inner table, which compares about log2 of its cardinality keys
+     * and reads a leaf page, until every page of the table is cached. A
+     * range probe also reads the matching part of the table.
+     */
+    public static double estimateIndexNestedLoopJoinCost(Predicate.Op op,
+            JoinInput outer, JoinInput inner) {
+        double cost = outer.cost
+                + Math.min((double) outer.card * TableStats.IOCOSTPERPAGE, inner.cost)
+                + outer.card * (1 + log2(inner.card));
+        if (op != Predicate.Op.EQUALS)
+            cost += RANGE_JOIN_SELECTIVITY * outer.card * inner.card;
+        return cost;
+    }
+
+    /**
+     * The cost of sorting an input: n log n comparisons, and one pass
+     * writing and reading sorted runs if it does not fit in memory.
+     */
+    private static double sortCost(JoinInput in, long memoryBudget) {
+        double cost = in.card * log2(in.card);
+        if (in.bytes() > memoryBudget)
+            cost += 2 * in.pages() * TableStats.IOCOSTPERPAGE;
+        return cost;
+    }
+
+    /** The cost of scanning card tuples of the given size from disk. */
+    static double scanCost(int card, int width) {
+        return new JoinInput(card, 0, width, width, false, false).pages()
+                * TableStats.IOCOSTPERPAGE;
+    }
+
+    private static double log2(int n) {
+        return n <= 1 ? 0 : Math.log(n) / Math.log(2);
     }
 
     /**
@@ -155,9 +529,31 @@ public class JoinOptimizer {
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
-        return card <= 0 ? 1 : card;
+        double card;
+        double equiCard;
+        if (t1pkey && t2pkey)
+            equiCard = Math.min(card1, card2);
+        else if (t1pkey)
+            equiCard = card2;
+        else if (t2pkey)
+            equiCard = card1;
+        else
+            equiCard = Math.max(card1, card2);
+        switch (joinOp) {
+        case EQUALS:
+        case LIKE:
+            card = equiCard;
+            break;
+        case NOT_EQUALS:
+            card = (double) card1 * card2 - equiCard;
+            break;
+        default:
+            // a fixed fraction of the cross product for range comparisons
+            card = RANGE_JOIN_SELECTIVITY * card1 * card2;
+            break;
+        }
+        card = Math.min(card, Integer.MAX_VALUE);
+        return card <= 0 ? 1 : (int) card;
     }
 
     /**
@@ -194,8 +590,16 @@ public class JoinOptimizer {
     }
 
     /**
-     * Compute a logical, reasonably efficient join on the specified tables. See
-     * PS4 for hints on how this should be implemented.
+     * Compute a logical, reasonably efficient join on the specified tables.
+     * Joins are ordered into a left-deep plan by Selinger-style dynamic
+     * programming: the best plan for every connected subset of the joins is
+     * built from the best plans of its subsets with one join fewer, each
+     * join being tried with either table as the outer one. Subsets are
+     * encoded as bit masks over the joins and grown from the single joins
+     * by adding a join that shares a table, so subsets that would need a
+     * cross product are never visited. Queries with more than {@link #MAX_DP_JOINS} joins are
+     * ordered greedily instead, adding the cheapest connected join at each
+     * step.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -217,20 +621,89 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
+        int n = joins.size();
+        if (n == 0 || n > 64) // masks have 64 bits
+            return joins;
+        PlanCache pc = new PlanCache();
+        long all = n == 64 ? -1L : (1L << n) - 1;
+        if (n <= MAX_DP_JOINS) {
+            // grow the connected subsets one join at a time, so that all
+            // subsets of one size are planned before those one join larger
+            long[] adjacent = adjacentJoins();
+            Set<Long> level = new HashSet<Long>();
+            for (int i = 0; i < n; i++)
+                level.add(1L << i);
+            while (!level.isEmpty()) {
+                Set<Long> next = new HashSet<Long>();
+                for (long mask : level) {
+                    addBestPlan(stats, filterSelectivities, mask, pc);
+                    long grow = 0;
+                    for (long rest = mask; rest != 0; rest &= rest - 1)
+                        grow |= adjacent[Long.numberOfTrailingZeros(rest)];
+                    for (grow &= ~mask; grow != 0; grow &= grow - 1)
+                        next.add(mask | Long.lowestOneBit(grow));
+                }
+                level = next;
+            }
+        } else {
+            long mask = 0;
+            while (mask != all) {
+                double bestCost = Double.MAX_VALUE;
+                long best = 0;
+                for (int i = 0; i < n; i++) {
+                    long bit = 1L << i;
+                    if ((mask & bit) != 0)
+                        continue;
+                    CostCard cc = computeCostAndCardOfSubplan(stats,
+                            filterSelectivities, i, mask | bit, bestCost, pc);
+                    if (cc != null) {
+                        bestCost = cc.cost;
+                        best = bit;
+                        pc.addPlan(mask | bit, cc.cost, cc.card, cc.plan);
+                    }
+                }
+                if (best == 0)
+                    break; // the rest of the joins are not connected
+                mask |= best;
+            }
+        }
 
-        // some code goes here
-        //Replace the following
-        return joins;
+        Vector<LogicalJoinNode> order = pc.getOrder(all);
+        if (order == null) // the joins do not form a connected graph
+            return joins;
+        if (explain)
+            printJoins(order, pc, stats, filterSelectivities);
+        return order;
+    }
+
+    /**
+     * Find the best plan for the joins in mask, whose subsets have already
+     * been planned, and add it to pc.
+     */
+    private void addBestPlan(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, long mask,
+            PlanCache pc) throws ParsingException {
+        CostCard best = null;
+        for (long rest = mask; rest != 0; rest &= rest - 1) {
+            int i = Long.numberOfTrailingZeros(rest);
+            CostCard cc = computeCostAndCardOfSubplan(stats,
+                    filterSelectivities, i, mask,
+                    best == null ? Double.MAX_VALUE : best.cost, pc);
+            if (cc != null)
+                best = cc;
+        }
+        if (best != null)
+            pc.addPlan(mask, best.cost, best.card, best.plan);
     }
 
     // ===================== Private Methods =================================
 
     /**
      * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * join joinToRemove to the rest of joinSet (joinSet should contain
+     * joinToRemove), given that the subset of joinSet without joinToRemove
+     * has already been computed and stored in PlanCache pc. Sets of joins
+     * are bit masks over {@link #joins}.
      * 
      * @param stats
      *            table stats for all of the tables, referenced by table names
@@ -240,16 +713,17 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      * @param joinToRemove
-     *            the join to remove from joinSet
+     *            the index in {@link #joins} of the join to remove from
+     *            joinSet
      * @param joinSet
-     *            the set of joins being considered
+     *            the mask of the joins being considered
      * @param bestCostSoFar
      *            the best way to join joinSet so far (minimum of previous
      *            invocations of computeCostAndCardOfSubplan for this joinSet,
      *            from returned CostCard)
      * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
+     *            the PlanCache for this join; should have the best subplan
+     *            of joinSet without joinToRemove, if it has one
      * @return A {@link CostCard} objects desribing the cost, cardinality,
      *         optimal subplan
      * @throws ParsingException
@@ -260,34 +734,42 @@ public class JoinOptimizer {
     private CostCard computeCostAndCardOfSubplan(
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
+            int joinToRemove, long joinSet,
             double bestCostSoFar, PlanCache pc) throws ParsingException {
 
-        LogicalJoinNode j = joinToRemove;
+        LogicalJoinNode j = joins.get(joinToRemove);
+
+        long news = joinSet & ~(1L << joinToRemove);
+
+        // possible that we have not cached an answer, if subset
+        // includes a cross product
+        if (news != 0 && pc.getOrder(news) == null)
+            return null;
 
         Vector<LogicalJoinNode> prevBest;
 
         if (this.p.getTableId(j.t1Alias) == null)
             throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
+        if (j.t2Alias != null && this.p.getTableId(j.t2Alias) == null)
             throw new ParsingException("Unknown table " + j.t2Alias);
 
         String table1Name = Database.getCatalog().getTableName(
                 this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
+        String table2Name = j.t2Alias == null ? null : Database.getCatalog()
+                .getTableName(this.p.getTableId(j.t2Alias));
+        if (stats.get(table1Name) == null
+                || (table2Name != null && stats.get(table2Name) == null))
+            throw new ParsingException("No statistics for the tables of join "
+                    + j);
         String table1Alias = j.t1Alias;
         String table2Alias = j.t2Alias;
 
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean leftBase = true, rightBase = true;
 
-        if (news.isEmpty()) { // base case -- both are base relations
+        if (news == 0) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
             t1cost = stats.get(table1Name).estimateScanCost();
             t1card = stats.get(table1Name).estimateTableCardinality(
@@ -304,13 +786,6 @@ public class JoinOptimizer {
         } else {
             // news is not empty -- figure best way to join j to news
             prevBest = pc.getOrder(news);
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
-
             double prevBestCost = pc.getCost(news);
             int bestCard = pc.getCard(news);
 
@@ -321,6 +796,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                leftBase = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -337,6 +813,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                rightBase = false;
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -350,17 +827,26 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                leftBase, rightBase, stats);
+
+        // a subquery is always the inner relation
+        if (!(j instanceof LogicalSubplanJoinNode)) {
+            LogicalJoinNode j2 = j.swapInnerOuter();
+            double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                    rightBase, leftBase, stats);
+            if (cost2 < cost1) {
+                boolean tmp;
+                int tmpCard;
+                j = j2;
+                cost1 = cost2;
+                tmp = rightPkey;
+                rightPkey = leftPkey;
+                leftPkey = tmp;
+                tmpCard = t2card;
+                t2card = t1card;
+                t1card = tmpCard;
+            }
         }
         if (cost1 >= bestCostSoFar)
             return null;
@@ -375,6 +861,32 @@ public class JoinOptimizer {
         return cc;
     }
 
+    /**
+     * @return for each join, the mask of the other joins that share one of
+     *         its tables
+     */
+    private long[] adjacentJoins() {
+        int n = joins.size();
+        long[] adjacent = new long[n];
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode a = joins.get(i);
+            for (int k = i + 1; k < n; k++) {
+                LogicalJoinNode b = joins.get(k);
+                if (sharesTable(a, b.t1Alias)
+                        || (b.t2Alias != null && sharesTable(a, b.t2Alias))) {
+                    adjacent[i] |= 1L << k;
+                    adjacent[k] |= 1L << i;
+                }
+            }
+        }
+        return adjacent;
+    }
+
+    private static boolean sharesTable(LogicalJoinNode j, String table) {
+        return j.t1Alias.equals(table)
+                || (j.t2Alias != null && j.t2Alias.equals(table));
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
@@ -404,6 +916,42 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
+    /**
+     * Return true if scans of the specified table return its tuples in
+     * ascending order of the field, i.e. the table is stored in a B+ tree
+     * keyed on it
+     * 
+     * @param tableAlias
+     *            The alias of the table in the query
+     * @param field
+     *            The pure name of the field
+     */
+    private boolean isSortedScan(String tableAlias, String field) {
+        Integer tid = p.getTableId(tableAlias);
+        if (tid == null)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tid);
+        return f instanceof BTreeFile
+                && ((BTreeFile) f).keyField() == f.getTupleDesc().fieldNameToIndex(field);
+    }
+
+    /**
+     * Return the schema of the tuples of the specified table
+     * 
+     * @param tableAlias
+     *            The alias of the table in the query
+     */
+    private TupleDesc tupleDesc(String tableAlias) {
+        return Database.getCatalog().getTupleDesc(p.getTableId(tableAlias));
+    }
+
+    /**
+     * Return the name of the table of the specified alias
+     */
+    private String tableName(String tableAlias) {
+        return Database.getCatalog().getTableName(p.getTableId(tableAlias));
+    }
+
     /**
      * Return true if a primary key field is joined by one of the joins in
      * joinlist
@@ -418,6 +966,29 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * Return the index in {@link #joins} of a join of a plan, which is either
+     * one of the joins or one with its inner and outer tables swapped
+     * 
+     * @param used
+     *            the mask of the joins already matched, which are skipped
+     */
+    private int joinIndex(LogicalJoinNode j, long used) {
+        for (int i = 0; i < joins.size(); i++) {
+            if ((used & (1L << i)) == 0 && joins.get(i) == j)
+                return i;
+        }
+        for (int i = 0; i < joins.size(); i++) {
+            LogicalJoinNode o = joins.get(i);
+            if ((used & (1L << i)) == 0 && !(o instanceof LogicalSubplanJoinNode)
+                    && j.t1Alias.equals(o.t2Alias) && j.t2Alias.equals(o.t1Alias)
+                    && j.f1PureName.equals(o.f2PureName)
+                    && j.f2PureName.equals(o.f1PureName))
+                return i;
+        }
+        throw new IllegalArgumentException("not a join of this query: " + j);
+    }
+
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -454,13 +1025,13 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
+        long pathSoFar = 0;
         boolean neither;
 
         System.out.println(js);
         for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+            pathSoFar |= 1L << joinIndex(j, pathSoFar);
+            System.out.println("PATH SO FAR = " + Long.toBinaryString(pathSoFar));
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
@@ -0,0 +1,227 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager grants page-level shared and exclusive locks to transactions
+ * on behalf of the {@link BufferPool}, which uses it to implement strict
+ * two-phase locking.
+ * <p>
+ * Each page has its own lock object, so transactions working on different
+ * pages never contend; the object is dropped once no transaction holds or
+ * waits for the lock, so only pages in use take memory. A transaction that must wait records the holders it
+ * is waiting for in a waits-for graph and checks that graph for a cycle
+ * before blocking; if waiting would deadlock, the request fails with a
+ * {@link TransactionAbortedException} instead of timing out. Granting a
+ * lock wakes the transactions waiting on the same page, which record the
+ * new holder and check for a cycle again.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Lock state of a single page; all fields are guarded by the object itself. */
+    private static class PageLock {
+        final Set<TransactionId> holders = new HashSet<TransactionId>();
+        boolean exclusive = false;
+        int waiters = 0; // transactions blocked in acquire on this page
+        boolean retired = false; // removed from locks; look up the page again
+
+        boolean idle() {
+            return holders.isEmpty() && waiters == 0;
+        }
+
+        boolean canGrant(TransactionId tid, Permissions perm) {
+            if (holders.isEmpty())
+                return true;
+            if (perm == Permissions.READ_ONLY)
+                return !exclusive || holders.contains(tid);
+            // exclusive requests (including upgrades) need to be the only holder
+            return holders.size() == 1 && holders.contains(tid);
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, PageLock> locks = new ConcurrentHashMap<PageId, PageLock>();
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> lockedPages = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+    private final ConcurrentHashMap<TransactionId, Set<TransactionId>> waitsFor = new ConcurrentHashMap<TransactionId, Set<TransactionId>>();
+
+    /**
+     * Acquire a lock on a page, blocking until it can be granted. READ_ONLY
+     * requests a shared lock and READ_WRITE an exclusive one; a transaction
+     * that already holds a shared lock is upgraded once it is the only
+     * holder.
+     *
+     * @param tid  the transaction requesting the lock
+     * @param pid  the page to lock
+     * @param perm the requested permissions
+     * @throws TransactionAbortedException if waiting for the lock would
+     *         deadlock, or the thread is interrupted while waiting
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        while (true) {
+            PageLock lock = lockFor(pid);
+            synchronized (lock) {
+                // the lock may have been retired between the lookup and here
+                if (!lock.retired) {
+                    grant(tid, pid, perm, lock);
+                    break;
+                }
+            }
+        }
+        Set<PageId> mine = lockedPages.get(tid);
+        if (mine == null) {
+            Set<PageId> fresh = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+            mine = lockedPages.putIfAbsent(tid, fresh);
+            if (mine == null)
+                mine = fresh;
+        }
+        mine.add(pid);
+    }
+
+    /**
+     * Wait until the lock can be granted to the transaction and grant it.
+     * The caller holds the monitor of the lock.
+     */
+    private void grant(TransactionId tid, PageId pid, Permissions perm, PageLock lock) throws TransactionAbortedException {
+        try {
+            while (!lock.canGrant(tid, perm)) {
+                Set<TransactionId> blockers = new HashSet<TransactionId>(lock.holders);
+                blockers.remove(tid);
+                waitsFor.put(tid, Collections.unmodifiableSet(blockers));
+                if (reaches(blockers, tid, new HashSet<TransactionId>()))
+                    throw new TransactionAbortedException();
+                lock.waiters++;
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
+                } finally {
+                    lock.waiters--;
+                }
+            }
+        } catch (TransactionAbortedException e) {
+            // the holders may all have left while this waiter was leaving
+            retireIfIdle(pid, lock);
+            throw e;
+        } finally {
+            waitsFor.remove(tid);
+        }
+        if (lock.holders.add(tid) && lock.waiters > 0) {
+            // the waiters now wait for one more holder: wake them so
+            // they record the new waits-for edge and look for a cycle
+            lock.notifyAll();
+        }
+        if (perm == Permissions.READ_WRITE)
+            lock.exclusive = true;
+    }
+
+    /**
+     * Release the lock a transaction holds on a page, if any.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Set<PageId> mine = lockedPages.get(tid);
+        if (mine != null)
+            mine.remove(pid);
+        unlock(tid, pid);
+    }
+
+    /**
+     * Release every lock held by a transaction. Runs in time proportional to
+     * the number of locks the transaction holds.
+     */
+    public void releaseAll(TransactionId tid) {
+        Set<PageId> mine = lockedPages.remove(tid);
+        if (mine != null) {
+            for (PageId pid : mine)
+                unlock(tid, pid);
+        }
+        waitsFor.remove(tid);
+    }
+
+    /**
+     * @return true if the transaction holds a shared or exclusive lock on
+     *         the page
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> mine = lockedPages.get(tid);
+        return mine != null && mine.contains(pid);
+    }
+
+    /**
+     * @return the pages on which the transaction currently holds locks
+     */
+    public Set<PageId> lockedPages(TransactionId tid) {
+        Set<PageId> mine = lockedPages.get(tid);
+        if (mine == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(mine);
+    }
+
+    private PageLock lockFor(PageId pid) {
+        PageLock lock = locks.get(pid);
+        if (lock == null) {
+            PageLock fresh = new PageLock();
+            lock = locks.putIfAbsent(pid, fresh);
+            if (lock == null)
+                lock = fresh;
+        }
+        return lock;
+    }
+
+    private void unlock(TransactionId tid, PageId pid) {
+        PageLock lock = locks.get(pid);
+        if (lock == null)
+            return;
+        synchronized (lock) {
+            if (lock.holders.remove(tid)) {
+                if (lock.holders.isEmpty())
+                    lock.exclusive = false;
+                lock.notifyAll();
+                retireIfIdle(pid, lock);
+            }
+        }
+    }
+
+    /**
+     * Remove the lock of a page from {@link #locks} once no transaction
+     * holds or waits for it, so the map only holds pages in use. The caller
+     * holds the monitor of the lock.
+     */
+    private void retireIfIdle(PageId pid, PageLock lock) {
+        if (lock.idle() && !lock.retired) {
+            lock.retired = true;
+            locks.remove(pid, lock);
+        }
+    }
+
+    /**
+     * @return the number of pages that have a lock object, i.e. that some
+     *         transaction holds or waits for
+     */
+    int numPageLocks() {
+        return locks.size();
+    }
+
+    /**
+     * Depth-first search of the waits-for graph.
+     *
+     * @return true if target can be reached from any of the given
+     *         transactions, i.e. making target wait for them closes a cycle
+     */
+    private boolean reaches(Set<TransactionId> from, TransactionId target, Set<TransactionId> visited) {
+        for (TransactionId t : from) {
+            if (t.equals(target))
+                return true;
+            if (!visited.add(t))
+                continue;
+            Set<TransactionId> next = waitsFor.get(t);
+            if (next != null && reaches(next, target, visited))
+                return true;
+        }
+        return false;
+    }
+}
@@ -29,13 +29,15 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
-    private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private Vector<String> groupByFields = new Vector<String>();
+    private Vector<LogicalSelectListNode> aggregates = new Vector<LogicalSelectListNode>();
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1;
+    private int parallelism = defaultParallelism;
     private String query;
+
+    private static int defaultParallelism = 1;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -66,6 +68,30 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set the number of threads the physical plan may use.  With more than one,
+        heap file scans are parallel scans that evaluate their filters in the scan,
+        and equality joins and grouped aggregates are split into parallelism
+        partitions by {@link Exchange}s and run on a thread per partition.
+        @param parallelism the number of threads, 1 for a single-threaded plan
+    */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+    }
+
+    /** @return the number of threads the physical plan may use; see {@link #setParallelism} */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Set the parallelism of the plans created from now on; see {@link #setParallelism}. */
+    public static void setDefaultParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        defaultParallelism = parallelism;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -185,22 +211,39 @@ public class LogicalPlan {
         selectList.addElement(new LogicalSelectListNode(aggOp, fname));
     }
     
-    /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+    /** Add an aggregate over the field to the query.  All aggregates of a query are
+        computed in one pass, grouped by the fields added with {@link #addGroupBy}.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null; see {@link #addGroupBy}
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
-        hasAgg = true;
+            addGroupBy(gfield);
+        if (findAggregate(op, afield) < 0)
+            aggregates.addElement(new LogicalSelectListNode(op, afield));
+    }
+
+    /** Add a field to the GROUP BY list of the query.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** @return the position of an aggregate among those added by {@link #addAggregate}, or -1 */
+    private int findAggregate(String op, String afield) {
+        for (int i = 0; i < aggregates.size(); i++) {
+            LogicalSelectListNode a = aggregates.elementAt(i);
+            if (a.aggOp.equalsIgnoreCase(op) && a.fname.equals(afield))
+                return i;
+        }
+        return -1;
     }
 
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
@@ -216,6 +259,17 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT: only the first n result tuples are returned.  Combined with an ORDER BY,
+        the sort only keeps the first n tuples of the ordering.
+        @param n the maximum number of tuples to return
+        @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("LIMIT must not be negative");
+        limit = n;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -292,9 +346,13 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                if (parallelism > 1 && file instanceof HeapFile)
+                    ss = new ParallelSeqScan(t, file.getId(), table.alias, parallelism, false);
+                else
+                    ss = new SeqScan(t, file.getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -334,7 +392,10 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (subplan instanceof ParallelSeqScan)
+                ((ParallelSeqScan) subplan).addFilter(p);
+            else
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -344,6 +405,17 @@ public class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        // estimated cardinality and cost of each subplan, keyed like subplanMap
+        HashMap<String,Integer> cardMap = new HashMap<String,Integer>();
+        HashMap<String,Double> costMap = new HashMap<String,Double>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (s == null)
+                continue;
+            cardMap.put(table.alias, s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+            costMap.put(table.alias, s.estimateScanCost());
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -381,9 +453,31 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
+            int card1 = cardMap.containsKey(t1name) ? cardMap.get(t1name) : JoinOptimizer.DEFAULT_INPUT_CARD;
+            int card2 = !isSubqueryJoin && cardMap.containsKey(t2name) ? cardMap.get(t2name) : JoinOptimizer.DEFAULT_INPUT_CARD;
+            double cost1 = costMap.containsKey(t1name) ? costMap.get(t1name)
+                    : JoinOptimizer.scanCost(card1, plan1.getTupleDesc().getSize());
+            double cost2 = !isSubqueryJoin && costMap.containsKey(t2name) ? costMap.get(t2name)
+                    : JoinOptimizer.scanCost(card2, plan2.getTupleDesc().getSize());
+
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            j = JoinOptimizer.instantiateJoin(lj,plan1,plan2,card1,card2,cost1,cost2);
+            // a join with swapped inputs is wrapped in a Project
+            DbIterator serial = j instanceof Project ? ((Project) j).getChildren()[0] : j;
+            if (parallelism > 1 && (serial instanceof Join || serial instanceof HashEquiJoin)) {
+                JoinPredicate jp = serial instanceof Join ? ((Join) serial).getJoinPredicate()
+                        : ((HashEquiJoin) serial).getJoinPredicate();
+                DbIterator[] inputs = ((Operator) serial).getChildren();
+                int buildCard = inputs[0] == plan1 ? card1 : card2;
+                if (jp.getOperator() == Predicate.Op.EQUALS) {
+                    j = parallelJoin(jp, inputs[0], inputs[1], buildCard);
+                    if (inputs[0] != plan1)
+                        j = JoinOptimizer.unswap(j, plan1);
+                }
+            }
             subplanMap.put(t1name, j);
+            cardMap.put(t1name, jo.estimateJoinCardinality(lj, card1, card2, false, false, statsMap));
+            costMap.put(t1name, jo.estimateJoinCost(lj, card1, card2, cost1, cost2));
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -414,7 +508,11 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int agg = findAggregate(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                }
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -425,17 +523,18 @@ public class LogicalPlan {
                 }
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
-            } else if (hasAgg) {
-                    if (groupByField == null) {
+            } else if (!aggregates.isEmpty()) {
+                    int group = groupByFields.indexOf(si.fname);
+                    if (group < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(group);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -458,14 +557,23 @@ public class LogicalPlan {
                 }
         }
 
-        if (hasAgg) {
+        if (!aggregates.isEmpty()) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            DbIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                int[] afields = new int[aggregates.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[afields.length];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggregates.elementAt(i).fname);
+                    aops[i] = getAggOp(aggregates.elementAt(i).aggOp);
+                }
+                if (parallelism > 1 && gfields.length > 0)
+                    aggNode = parallelAggregate(node, afields, aops, gfields);
+                else
+                    aggNode = new Aggregate(node, afields, aops, gfields);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -475,12 +583,42 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, limit, node);
+        } else if (limit >= 0) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /** Join on parallelism threads. A build side (plan1) that is estimated to fit
+        in memory is joined by a ParallelHashJoin. Otherwise both inputs are
+        repartitioned on their join fields, and each pair of partitions is joined
+        by a HashEquiJoin of its own, which can spill to disk.
+    */
+    private DbIterator parallelJoin(JoinPredicate p, DbIterator plan1, DbIterator plan2, int card1) {
+        if (card1 <= ParallelHashJoin.maxBuildRows(plan1.getTupleDesc(), ParallelHashJoin.DEFAULT_MEMORY_BUDGET))
+            return new ParallelHashJoin(p, plan1, plan2, parallelism);
+        Exchange[] left = Exchange.repartition(new DbIterator[] {plan1}, p.getField1(), parallelism);
+        Exchange[] right = Exchange.repartition(new DbIterator[] {plan2}, p.getField2(), parallelism);
+        DbIterator[] parts = new DbIterator[parallelism];
+        for (int i = 0; i < parallelism; i++)
+            parts[i] = new HashEquiJoin(p, left[i], right[i]);
+        return Exchange.gather(parts);
+    }
+
+    /** Aggregate on parallelism threads: the input is repartitioned on the first
+        group-by field, so each group is aggregated by exactly one Aggregate.
+    */
+    private DbIterator parallelAggregate(DbIterator child, int[] afields,
+            Aggregator.Op[] aops, int[] gfields) {
+        Exchange[] inputs = Exchange.repartition(new DbIterator[] {child}, gfields[0], parallelism);
+        DbIterator[] parts = new DbIterator[parallelism];
+        for (int i = 0; i < parallelism; i++)
+            parts[i] = new Aggregate(inputs[i], afields, aops, gfields);
+        return Exchange.gather(parts);
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
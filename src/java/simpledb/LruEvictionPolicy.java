@@ -0,0 +1,40 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Least-recently-used eviction. Resident pages are kept in a linked hash set
+ * ordered from least to most recently used, so both hits and evictions are
+ * constant time (eviction only walks past pages that may not be evicted).
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashSet<PageId> lru = new LinkedHashSet<PageId>();
+
+    public synchronized void pageLoaded(PageId pid) {
+        lru.remove(pid);
+        lru.add(pid);
+    }
+
+    public synchronized void pageHit(PageId pid) {
+        if (lru.remove(pid))
+            lru.add(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        lru.remove(pid);
+    }
+
+    public synchronized PageId evict(Evictable evictable) {
+        Iterator<PageId> it = lru.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.canEvict(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
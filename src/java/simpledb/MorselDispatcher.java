@@ -0,0 +1,195 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MorselDispatcher runs the pieces of work ("morsels") of a parallel
+ * operator on a shared pool of worker threads and hands their results to
+ * the operator's consumer, either in morsel order or in the order they
+ * complete. A subclass says what a morsel is by implementing
+ * {@link #read}.
+ * <p>
+ * Workers claim morsels one at a time, so a worker that finishes early
+ * simply claims the next one. They only run a bounded number of morsels
+ * ahead of the consumer, which bounds the results held in memory, and they
+ * never wait for the consumer: a worker that may not claim another morsel
+ * gives its thread back to the pool, and the consumer schedules new workers
+ * as it takes results. Several parallel operators open in the same plan
+ * therefore cannot starve each other of pool threads.
+ * <p>
+ * The state of a dispatcher is guarded by its monitor. Cancelling it stops
+ * the workers at their next morsel and waits for them, so no worker reads a
+ * page after the consumer is closed; results of a cancelled dispatcher are
+ * dropped.
+ */
+abstract class MorselDispatcher implements Runnable {
+
+    /** Number of threads of the shared pool: one per processor. */
+    static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            POOL_SIZE, POOL_SIZE, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final int numMorsels;
+    private final int parallelism;
+    private final boolean ordered;
+    private final int window;  // morsels claimed but not yet taken
+
+    private final ArrayList<ArrayList<TupleBatch>> results;  // per morsel, once read
+    private final ArrayDeque<Integer> completed = new ArrayDeque<Integer>();
+    private int claimed = 0;   // morsels handed out to workers
+    private int taken = 0;     // morsels taken by the consumer
+    private int running = 0;   // workers scheduled or running
+    private boolean cancelled = false;
+    private Throwable failure = null;
+
+    /**
+     * @param numMorsels  the number of morsels
+     * @param parallelism the maximum number of workers
+     * @param ordered     if true, {@link #take} returns the results in
+     *                    morsel order; otherwise as they complete
+     */
+    MorselDispatcher(int numMorsels, int parallelism, boolean ordered) {
+        this.numMorsels = numMorsels;
+        this.parallelism = parallelism;
+        this.ordered = ordered;
+        this.window = 2 * parallelism;
+        this.results = new ArrayList<ArrayList<TupleBatch>>(
+                Collections.<ArrayList<TupleBatch>>nCopies(numMorsels, null));
+    }
+
+    /**
+     * Do the work of a morsel; called on a worker thread.
+     *
+     * @return the batches the morsel produced
+     */
+    protected abstract ArrayList<TupleBatch> read(int morsel)
+            throws DbException, TransactionAbortedException;
+
+    /** Start workers while there are morsels they may claim. */
+    synchronized void schedule() {
+        int claimable = Math.min(numMorsels, taken + window) - claimed;
+        while (!cancelled && running < parallelism && running < claimable) {
+            running++;
+            pool.execute(this);
+        }
+    }
+
+    /**
+     * Stop the workers, and wait until those reading a morsel have finished
+     * it; workers that have not started yet are taken off the pool's queue.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+        while (pool.remove(this))
+            running--;
+        while (running > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    protected synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the results of the next morsel, or null if every morsel has
+     *         been taken
+     * @throws DbException, TransactionAbortedException if a worker failed
+     */
+    synchronized ArrayList<TupleBatch> take() throws DbException, TransactionAbortedException {
+        if (taken == numMorsels)
+            return null;
+        while (true) {
+            if (failure != null)
+                rethrow(failure);
+            int m = -1;
+            if (ordered)
+                m = results.get(taken) != null ? taken : -1;
+            else if (!completed.isEmpty())
+                m = completed.poll();
+            if (m >= 0) {
+                ArrayList<TupleBatch> r = results.set(m, null);
+                taken++;
+                schedule();
+                return r;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for a worker");
+            }
+        }
+    }
+
+    /**
+     * @return the next morsel for a worker to read, or -1 if the worker
+     *         should stop
+     */
+    private synchronized int claim() {
+        if (cancelled || failure != null || claimed == numMorsels || claimed == taken + window) {
+            running--;
+            notifyAll();
+            return -1;
+        }
+        return claimed++;
+    }
+
+    private synchronized void finished(int m, ArrayList<TupleBatch> r) {
+        results.set(m, r);
+        if (!ordered)
+            completed.add(m);
+        notifyAll();
+    }
+
+    private synchronized void failed(Throwable e) {
+        if (failure == null)
+            failure = e;
+        running--;
+        notifyAll();
+    }
+
+    public void run() {
+        int m;
+        while ((m = claim()) >= 0) {
+            try {
+                finished(m, read(m));
+            } catch (Throwable e) {
+                failed(e);
+                return;
+            }
+        }
+    }
+
+    private static void rethrow(Throwable e) throws DbException, TransactionAbortedException {
+        if (e instanceof DbException)
+            throw (DbException) e;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        throw new RuntimeException(e);
+    }
+}
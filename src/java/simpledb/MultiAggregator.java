@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Computes several aggregates at once, grouped by any number of columns, in
+ * a single pass over the input (SELECT a, b, SUM(x), COUNT(y), MAX(z) ...
+ * GROUP BY a, b).
+ * <p>
+ * Groups are numbered by a {@link GroupTable}; every aggregate keeps its
+ * running value per group in an int array indexed by group number, and the
+ * groups share one array of row counts. Aggregates over STRING_TYPE fields
+ * only support COUNT.
+ * <p>
+ * Result tuples hold the group-by columns followed by the aggregates, in the
+ * order given to the constructor.
+ * <p>
+ * Batches grouped by a single INT_TYPE column look their keys up straight
+ * from the column's int[], which is the common GROUP BY and needs neither
+ * a loop over key columns nor a type check per row.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gfields;
+    private final int[] afields;
+    private final Op[] ops;
+    private final TupleDesc resultTd;
+
+    private GroupTable groups;    // null if there is no grouping
+    private int[][] values;       // per aggregate, per group
+    private int[] counts;         // rows per group
+    private int numGroups = 0;
+    private int[] batchGroups = new int[TupleBatch.DEFAULT_CAPACITY];
+
+    /**
+     * Aggregate constructor
+     *
+     * @param childTd
+     *            the schema of the tuples to aggregate
+     * @param gfields
+     *            the 0-based indexes of the group-by fields; empty if there
+     *            is no grouping
+     * @param afields
+     *            the 0-based indexes of the aggregated fields
+     * @param ops
+     *            the aggregation operator of each aggregated field
+     * @throws IllegalArgumentException
+     *             if an operator is not supported for its field
+     */
+    public MultiAggregator(TupleDesc childTd, int[] gfields, int[] afields, Op[] ops) {
+        if (afields.length != ops.length)
+            throw new IllegalArgumentException("one operator is needed per aggregated field");
+        Type[] types = new Type[gfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int i = 0; i < gfields.length; i++) {
+            types[i] = childTd.getFieldType(gfields[i]);
+            names[i] = childTd.getFieldName(gfields[i]);
+        }
+        for (int j = 0; j < afields.length; j++) {
+            switch (ops[j]) {
+            case MIN: case MAX: case SUM: case AVG:
+                if (childTd.getFieldType(afields[j]) != Type.INT_TYPE)
+                    throw new IllegalArgumentException(ops[j] + " is not supported over strings");
+                break;
+            case COUNT:
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported aggregate " + ops[j]);
+            }
+            types[gfields.length + j] = Type.INT_TYPE;
+            names[gfields.length + j] = ops[j] + "(" + childTd.getFieldName(afields[j]) + ")";
+        }
+        this.gfields = gfields;
+        this.afields = afields;
+        this.ops = ops;
+        this.resultTd = new TupleDesc(types, names);
+
+        if (gfields.length > 0) {
+            Type[] keyTypes = new Type[gfields.length];
+            System.arraycopy(types, 0, keyTypes, 0, keyTypes.length);
+            groups = new GroupTable(keyTypes);
+        }
+        values = new int[afields.length][16];
+        counts = new int[16];
+    }
+
+    /**
+     * @return the schema of the result tuples
+     */
+    public TupleDesc getResultTupleDesc() {
+        return resultTd;
+    }
+
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int g = groups == null ? 0 : groups.groupOf(tup, gfields);
+        ensureGroup(g);
+        counts[g]++;
+        for (int j = 0; j < afields.length; j++) {
+            if (ops[j] != Op.COUNT)
+                fold(j, g, ((IntField) tup.getField(afields[j])).getValue());
+        }
+    }
+
+    /**
+     * Merge a batch of rows into the aggregates: the group of every row is
+     * looked up once, and each aggregate is then folded in a loop over its
+     * column.
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        int n = batch.size();
+        if (n == 0)
+            return;
+        if (batchGroups.length < n)
+            batchGroups = new int[n];
+        int[] intKeys = intKeys(batch);
+        for (int i = 0; i < n; i++) {
+            int g = groups == null ? 0
+                    : intKeys != null ? groups.groupOf(intKeys[i])
+                    : groups.groupOf(batch, i, gfields);
+            ensureGroup(g);
+            counts[g]++;
+            batchGroups[i] = g;
+        }
+        for (int j = 0; j < afields.length; j++) {
+            if (ops[j] == Op.COUNT)
+                continue;
+            int[] column = batch.getInts(afields[j]);
+            for (int i = 0; i < n; i++)
+                fold(j, batchGroups[i], column[i]);
+        }
+    }
+
+    /**
+     * @return the key column of a batch grouped by a single INT_TYPE
+     *         column, or null
+     */
+    private int[] intKeys(TupleBatch batch) {
+        if (gfields.length != 1 || batch.getTupleDesc().getFieldType(gfields[0]) != Type.INT_TYPE)
+            return null;
+        return batch.getInts(gfields[0]);
+    }
+
+    /**
+     * @return the number of groups seen so far
+     */
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * Merge the rows of a batch whose groups have already been seen, and
+     * leave the others alone; used to keep aggregating the groups held in
+     * memory once no more groups fit.
+     *
+     * @param missing receives the row numbers of the rows that were not
+     *                merged, in increasing order
+     * @return the number of rows that were not merged
+     */
+    public int mergeBatchIfPresent(TupleBatch batch, int[] missing) {
+        int n = batch.size();
+        if (batchGroups.length < n)
+            batchGroups = new int[n];
+        int[] intKeys = intKeys(batch);
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            int g = groups == null ? (numGroups > 0 ? 0 : -1)
+                    : intKeys != null ? groups.find(intKeys[i])
+                    : groups.find(batch, i, gfields);
+            batchGroups[i] = g;
+            if (g < 0)
+                missing[m++] = i;
+            else
+                counts[g]++;
+        }
+        if (m == n)
+            return m;
+        for (int j = 0; j < afields.length; j++) {
+            if (ops[j] == Op.COUNT)
+                continue;
+            int[] column = batch.getInts(afields[j]);
+            for (int i = 0; i < n; i++) {
+                if (batchGroups[i] >= 0)
+                    fold(j, batchGroups[i], column[i]);
+            }
+        }
+        return m;
+    }
+
+    private void fold(int j, int g, int value) {
+        int[] v = values[j];
+        switch (ops[j]) {
+        case MIN:
+            if (value < v[g])
+                v[g] = value;
+            break;
+        case MAX:
+            if (value > v[g])
+                v[g] = value;
+            break;
+        default: // SUM and AVG; the average is taken in iterator()
+            v[g] += value;
+            break;
+        }
+    }
+
+    private void ensureGroup(int g) {
+        if (g < numGroups)
+            return;
+        if (g == counts.length) {
+            counts = Arrays.copyOf(counts, g * 2);
+            for (int j = 0; j < values.length; j++)
+                values[j] = Arrays.copyOf(values[j], g * 2);
+        }
+        counts[g] = 0;
+        for (int j = 0; j < values.length; j++)
+            values[j][g] = ops[j] == Op.MIN ? Integer.MAX_VALUE
+                    : ops[j] == Op.MAX ? Integer.MIN_VALUE : 0;
+        numGroups = g + 1;
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples are the group-by values followed by
+     *         the aggregate values
+     */
+    public DbIterator iterator() {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(numGroups);
+        for (int g = 0; g < numGroups; g++) {
+            Tuple t = new Tuple(resultTd);
+            for (int c = 0; c < gfields.length; c++)
+                t.setField(c, groups.key(g, c));
+            for (int j = 0; j < afields.length; j++) {
+                int v;
+                switch (ops[j]) {
+                case COUNT:
+                    v = counts[g];
+                    break;
+                case AVG:
+                    v = values[j][g] / counts[g];
+                    break;
+                default:
+                    v = values[j][g];
+                    break;
+                }
+                t.setField(gfields.length + j, new IntField(v));
+            }
+            tuples.add(t);
+        }
+        return new TupleIterator(resultTd, tuples);
+    }
+}
@@ -3,18 +3,32 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY. Inputs that
+ * do not fit the memory budget are sorted with an external merge sort; see
+ * {@link ExternalSort}. An OrderBy with a limit returns only the first
+ * tuples of the ordering and, when they fit the memory budget, finds them
+ * with a bounded heap instead of sorting the whole input.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
     private int orderByField;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
     private boolean asc;
+    private int limit;
+
+    /**
+     * Default number of bytes of tuples sorted in memory before sorted runs
+     * are written to disk.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private transient ExternalSort sort;
+    private transient DbIterator it;
+    private transient int returned;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,11 +41,29 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(orderbyField, asc, -1, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that returns only the first tuples of the
+     * ordering (ORDER BY ... LIMIT).
+     * 
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the maximum number of tuples to return, or -1 for all.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int orderbyField, boolean asc, int limit, DbIterator child) {
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.limit = limit;
     }
     
     public boolean isASC()
@@ -48,29 +80,87 @@ public class OrderBy extends Operator {
     {
 	return this.orderByFieldName;
     }
+
+    /**
+     * @return the maximum number of tuples returned, or -1 if there is no
+     *         limit
+     */
+    public int getLimit() {
+        return limit;
+    }
     
+    /**
+     * Set how many bytes of tuples the sort may hold in memory. Larger
+     * inputs are sorted in runs of this size that are written to temporary
+     * files and merged.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the number of bytes of tuples the sort may hold in memory
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return true if the child did not fit the memory budget and the sorted
+     *         tuples are being merged from runs on disk
+     */
+    public boolean isSpilling() {
+        return sort != null && sort.numRuns() > 0;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        dropSort();
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        if (limit >= 0 && (long) limit * td.getHeapSize() <= memoryBudget) {
+            TopKHeap top = new TopKHeap(td, orderByField, asc, limit);
+            while (child.hasNext())
+                top.add(child.next());
+            it = new TupleIterator(td, Arrays.asList(top.sorted()));
+        } else {
+            sort = new ExternalSort(td, orderByField, asc, memoryBudget);
+            try {
+                while (child.hasNext())
+                    sort.add(child.next());
+                it = sort.finish();
+            } catch (DbException e) {
+                dropSort();
+                throw e;
+            }
+        }
+        it.open();
+        returned = 0;
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        dropSort();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        it.rewind();
+        returned = 0;
+    }
+
+    private void dropSort() {
+        if (it != null) {
+            it.close();
+            it = null;
+        }
+        if (sort != null) {
+            sort.delete();
+            sort = null;
+        }
     }
 
     /**
@@ -82,7 +172,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
+        if (it != null && (limit < 0 || returned < limit) && it.hasNext()) {
+            returned++;
             return it.next();
         } else
             return null;
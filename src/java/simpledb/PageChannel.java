@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PageChannel is the long-lived handle a {@link DbFile} uses for page I/O.
+ * The underlying FileChannel is opened on first use and kept open, and pages
+ * are transferred with positional reads and writes (pread/pwrite), so each
+ * page access costs a single system call and concurrent readers do not
+ * share a file pointer.
+ * <p>
+ * The channel is reopened transparently if it is used after {@link #close},
+ * which lets the Catalog close files it drops without invalidating DbFile
+ * objects that are still referenced elsewhere. Because the channel is shared,
+ * a thread interrupted during I/O closes it for every other thread too; the
+ * interrupted thread gets its ClosedByInterruptException, and the others
+ * reopen the channel and retry.
+ * <p>
+ * The length of the file is cached, so that checking a page offset against
+ * it does not cost a system call; writes through the channel keep it up to
+ * date, and {@link #refreshSize} rereads it after the file was extended
+ * some other way.
+ *
+ * @Threadsafe
+ */
+public class PageChannel {
+
+    private final File f;
+    private volatile FileChannel channel;
+    private final AtomicLong size = new AtomicLong(-1); // -1 until first read
+
+    /**
+     * @param f the file to read and write pages of
+     */
+    public PageChannel(File f) {
+        this.f = f;
+    }
+
+    /**
+     * Read exactly dst.length bytes starting at the given file offset.
+     *
+     * @throws EOFException if the file ends before dst is filled
+     */
+    public void read(long offset, byte[] dst) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(dst);
+        FileChannel fc = channel();
+        while (buf.hasRemaining()) {
+            int n;
+            try {
+                n = fc.read(buf, offset + buf.position());
+            } catch (ClosedChannelException e) {
+                fc = reopen(e);
+                continue;
+            }
+            if (n < 0)
+                throw new EOFException("Read past end of " + f.getName());
+        }
+    }
+
+    /**
+     * Write all of src starting at the given file offset, extending the file
+     * if necessary.
+     */
+    public void write(long offset, byte[] src) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(src);
+        FileChannel fc = channel();
+        while (buf.hasRemaining()) {
+            try {
+                fc.write(buf, offset + buf.position());
+            } catch (ClosedChannelException e) {
+                fc = reopen(e);
+            }
+        }
+        long end = offset + src.length;
+        long s;
+        while ((s = size.get()) >= 0 && s < end && !size.compareAndSet(s, end))
+            ;
+    }
+
+    /**
+     * @return the length of the file in bytes, as of the last write through
+     *         this channel or the last {@link #refreshSize}
+     */
+    public long size() throws IOException {
+        long s = size.get();
+        return s >= 0 ? s : refreshSize();
+    }
+
+    /**
+     * Reread the length of the file, e.g. after it was extended other than
+     * through this channel.
+     *
+     * @return the length of the file in bytes
+     */
+    public long refreshSize() throws IOException {
+        long s;
+        while (true) {
+            try {
+                s = channel().size();
+                break;
+            } catch (ClosedChannelException e) {
+                reopen(e);
+            }
+        }
+        size.set(s);
+        return s;
+    }
+
+    /**
+     * Close the underlying channel, if it is open.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Reopen the channel after another thread's interrupt closed it under
+     * us; rethrow if it was this thread that was interrupted.
+     */
+    private FileChannel reopen(ClosedChannelException e) throws IOException {
+        if (e instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted())
+            throw e;
+        return channel();
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel fc = channel;
+        if (fc != null && fc.isOpen())
+            return fc;
+        synchronized (this) {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(f, "rw").getChannel();
+            return channel;
+        }
+    }
+}
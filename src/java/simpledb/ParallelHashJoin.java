@@ -0,0 +1,558 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * ParallelHashJoin is an equality join that runs on several threads. The
+ * build side is read into a columnar table and radix-partitioned on the
+ * hash of its join field, into enough partitions that the hash table of one
+ * partition fits in the processor cache; the workers of a
+ * {@link MorselDispatcher} then build the hash tables of the partitions.
+ * The probe side is streamed in chunks: each chunk is partitioned the same
+ * way, and matching partitions are joined independently by the workers.
+ * Partitioning is split into morsels of rows too, so no phase of the join
+ * runs on one thread.
+ * <p>
+ * The hash table of a partition is chained hashing over int arrays: bucket
+ * heads, chain links, and the hash of every build row, so most unequal keys
+ * are skipped without comparing them. INT_TYPE keys are copied into an int
+ * array next to the hashes and compared without boxing; STRING_TYPE keys
+ * are compared with equals.
+ * <p>
+ * Like {@link HashEquiJoin}, child1 is the build side and the output tuples
+ * are child1's fields followed by child2's, but in no particular order.
+ * The build side and a probe chunk are held in memory, within the memory
+ * budget: a build side that does not fit in three quarters of it is joined
+ * by a HashEquiJoin instead, which spills to disk.
+ */
+public class ParallelHashJoin extends Operator implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default number of bytes of build and probe rows held in memory.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = HashEquiJoin.DEFAULT_MEMORY_BUDGET;
+
+    /**
+     * Number of bytes of hash table a build partition is sized to fit in.
+     */
+    public static final int CACHE_BYTES = 256 << 10;
+
+    /** Bytes of hash table per build row: bucket head, chain link, hash and key. */
+    private static final int BYTES_PER_ROW = 20;
+
+    /** Bytes per row of partitioning state: hash, partition and position. */
+    private static final int PARTITION_BYTES_PER_ROW = 12;
+
+    /** Maximum number of radix bits, so that the partition histograms stay small. */
+    private static final int MAX_RADIX_BITS = 12;
+
+    private final JoinPredicate pred;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final int parallelism;
+    private final TupleDesc comboTD;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    private transient HashEquiJoin fallback;          // if the build side does not fit
+    private transient TupleBatch buildRows;
+    private transient Table[] tables;                 // per build partition
+    private transient int bits;
+    private transient int numPartitions;
+    private transient BatchIterator probeIn;
+    private transient boolean probeDone;
+    private transient Run run;                        // joins the current probe chunk
+    private transient ArrayList<TupleBatch> results;  // of the partition being returned
+    private transient int nextBatch;
+    private transient TupleBatch batch;               // the batch fetchNext reads
+    private transient int nextRow;
+
+    /**
+     * Constructor for a join with {@link ParallelSeqScan#DEFAULT_PARALLELISM}
+     * workers.
+     *
+     * @param p      the predicate to join on; must be an equality
+     * @param child1 the build side
+     * @param child2 the probe side
+     */
+    public ParallelHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, ParallelSeqScan.DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p           the predicate to join on; must be an equality
+     * @param child1      the build side
+     * @param child2      the probe side
+     * @param parallelism the maximum number of workers
+     * @throws IllegalArgumentException if the predicate is not an equality
+     *                                  or parallelism is not positive
+     */
+    public ParallelHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int parallelism) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash join needs an equality predicate");
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.parallelism = parallelism;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return the maximum number of workers
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set how many bytes of build and probe rows the join may hold in
+     * memory. Takes effect the next time the join is opened.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the number of bytes of rows the join may hold in memory
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return true if the build side did not fit the memory budget, and the
+     *         join is run by a HashEquiJoin that spills to disk
+     */
+    public boolean isSpilling() {
+        return fallback != null;
+    }
+
+    /**
+     * @return the number of partitions the inputs were split into when the
+     *         join was opened
+     */
+    public int getNumPartitions() {
+        return numPartitions;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * Opens the join: the build side is read and partitioned, and the hash
+     * tables of its partitions are built. The probe side is read as the
+     * join's results are asked for.
+     */
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        buildRows = readBuild();
+        if (buildRows == null) {
+            // HashEquiJoin reads the build side again, from the start
+            child1.close();
+            fallback = new HashEquiJoin(pred, child1, child2);
+            fallback.setMemoryBudget(memoryBudget);
+            fallback.open();
+        } else {
+            bits = radixBits(buildRows.size());
+            numPartitions = 1 << bits;
+            buildTables(partition(buildRows, pred.getField1()));
+            child2.open();
+            startProbe();
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        stop();
+        if (fallback != null) {
+            fallback.close();
+            fallback = null;
+        } else {
+            child1.close();
+            child2.close();
+        }
+        buildRows = null;
+        tables = null;
+        probeIn = null;
+    }
+
+    /**
+     * Reads the probe side again; the hash tables of the build side are
+     * kept.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (fallback != null) {
+            fallback.rewind();
+            return;
+        }
+        stop();
+        child2.rewind();
+        startProbe();
+    }
+
+    private void startProbe() {
+        probeIn = DbIteratorBatchAdapter.of(child2);
+        // nothing can match an empty build side
+        probeDone = buildRows.isEmpty();
+    }
+
+    private void stop() {
+        if (run != null)
+            run.cancel();
+        run = null;
+        results = null;
+        batch = null;
+    }
+
+    /**
+     * @return the estimated bytes of heap a row takes in the columns of a
+     *         TupleBatch
+     */
+    private static long columnBytes(TupleDesc td) {
+        long bytes = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            bytes += td.getFieldType(i) == Type.INT_TYPE ? 4 : 48 + Type.STRING_LEN;
+        return bytes;
+    }
+
+    /**
+     * @return the largest number of build rows of the given schema that the
+     *         join holds in memory, with their hash tables, within three
+     *         quarters of the budget; a larger build side is joined by a
+     *         HashEquiJoin
+     */
+    public static long maxBuildRows(TupleDesc buildTd, long memoryBudget) {
+        return memoryBudget / 4 * 3 / (columnBytes(buildTd) + BYTES_PER_ROW + PARTITION_BYTES_PER_ROW);
+    }
+
+    /**
+     * @return the rows of child1, or null if there are more than
+     *         {@link #maxBuildRows}
+     */
+    private TupleBatch readBuild() throws DbException, TransactionAbortedException {
+        long maxRows = maxBuildRows(child1.getTupleDesc(), memoryBudget);
+        TupleBatch rows = new TupleBatch(child1.getTupleDesc());
+        BatchIterator in = DbIteratorBatchAdapter.of(child1);
+        TupleBatch b;
+        while ((b = in.nextBatch()) != null) {
+            if (rows.size() + b.size() > maxRows)
+                return null;
+            for (int i = 0; i < b.size(); i++)
+                rows.addRow(b, i);
+        }
+        return rows;
+    }
+
+    /**
+     * @return the number of rows of child2 read and partitioned at a time:
+     *         as many as fit in a quarter of the memory budget, but at least
+     *         a batch per worker
+     */
+    private long probeChunkRows() {
+        long rowBytes = columnBytes(child2.getTupleDesc()) + PARTITION_BYTES_PER_ROW;
+        return Math.max((long) parallelism * TupleBatch.DEFAULT_CAPACITY, memoryBudget / 4 / rowBytes);
+    }
+
+    /**
+     * Read and partition the next chunk of child2, and start the workers
+     * joining it.
+     *
+     * @return false if child2 is exhausted
+     */
+    private boolean nextChunk() throws DbException, TransactionAbortedException {
+        if (probeDone)
+            return false;
+        long max = probeChunkRows();
+        TupleBatch rows = new TupleBatch(child2.getTupleDesc());
+        TupleBatch b = null;
+        while (rows.size() < max && (b = probeIn.nextBatch()) != null) {
+            for (int i = 0; i < b.size(); i++)
+                rows.addRow(b, i);
+        }
+        if (b == null)
+            probeDone = true;
+        if (rows.isEmpty())
+            return false;
+        run = new Run(partition(rows, pred.getField2()));
+        run.schedule();
+        return true;
+    }
+
+    /**
+     * @return the number of radix bits that split a build side of n rows
+     *         into partitions whose hash tables fit in {@link #CACHE_BYTES},
+     *         and into at least one partition per worker
+     */
+    private int radixBits(int n) {
+        long partitions = Math.max(parallelism, (long) n * BYTES_PER_ROW / CACHE_BYTES + 1);
+        int bits = 64 - Long.numberOfLeadingZeros(partitions - 1);
+        return Math.min(bits, MAX_RADIX_BITS);
+    }
+
+    /**
+     * Returns the next batch of joined tuples produced by a worker.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (fallback != null)
+            return fallback.nextBatch();
+        if (tables == null)
+            throw new IllegalStateException("iterator is closed");
+        while (results == null || nextBatch == results.size()) {
+            results = run == null ? null : run.take();
+            nextBatch = 0;
+            if (results == null) {
+                run = null;
+                if (!nextChunk())
+                    return null;
+            }
+        }
+        return results.get(nextBatch++);
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (batch == null || nextRow == batch.size()) {
+            batch = nextBatch();
+            nextRow = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(nextRow++);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] {child1, child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+
+    private static int hash(TupleBatch rows, int row, int field, boolean ints) {
+        int h = ints ? rows.getInts(field)[row] : rows.getStrings(field)[row].hashCode();
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The rows of one input, grouped by partition: partition p is made of
+     * the rows order[start[p]] to order[start[p + 1] - 1], in input order.
+     * The partition of a row is the top bits of the hash of its key; the
+     * hash tables use the low bits, so the rows of a partition still spread
+     * over their buckets.
+     */
+    private static final class Partitioned {
+        final TupleBatch rows;
+        final int field;
+        final boolean ints;
+        final int[] hashes;
+        final int[] order;
+        final int[] start;
+
+        Partitioned(TupleBatch rows, int field, int partitions) {
+            this.rows = rows;
+            this.field = field;
+            this.ints = rows.getTupleDesc().getFieldType(field) == Type.INT_TYPE;
+            hashes = new int[rows.size()];
+            order = new int[rows.size()];
+            start = new int[partitions + 1];
+        }
+    }
+
+    /**
+     * Radix-partition rows on their key. The rows are cut into morsels; the
+     * workers hash the rows of each morsel and count them per partition,
+     * the counts are summed into the position of every morsel's rows in
+     * each partition, and the workers then scatter the rows of each morsel
+     * to those positions.
+     */
+    private Partitioned partition(final TupleBatch rows, int field)
+            throws DbException, TransactionAbortedException {
+        final int n = rows.size();
+        final int partitions = numPartitions;
+        final Partitioned out = new Partitioned(rows, field, partitions);
+        final int morselRows = Math.max(TupleBatch.DEFAULT_CAPACITY, (n + 4 * parallelism - 1) / (4 * parallelism));
+        final int morsels = Math.max(1, (n + morselRows - 1) / morselRows);
+        final int[][] counts = new int[morsels][partitions];
+        final int[] partition = new int[n];
+
+        new Pass(morsels) {
+            void work(int m) {
+                int[] count = counts[m];
+                for (int i = m * morselRows, end = Math.min(n, i + morselRows); i < end; i++) {
+                    int h = hash(rows, i, out.field, out.ints);
+                    out.hashes[i] = h;
+                    partition[i] = bits == 0 ? 0 : h >>> (32 - bits);
+                    count[partition[i]]++;
+                }
+            }
+        }.runAll();
+
+        // turn the counts into the first position of each morsel's rows
+        int pos = 0;
+        for (int p = 0; p < partitions; p++) {
+            out.start[p] = pos;
+            for (int m = 0; m < morsels; m++) {
+                int c = counts[m][p];
+                counts[m][p] = pos;
+                pos += c;
+            }
+        }
+        out.start[partitions] = pos;
+
+        new Pass(morsels) {
+            void work(int m) {
+                int[] next = counts[m];
+                for (int i = m * morselRows, end = Math.min(n, i + morselRows); i < end; i++)
+                    out.order[next[partition[i]]++] = i;
+            }
+        }.runAll();
+        return out;
+    }
+
+    /**
+     * The hash table of one build partition; entry i is the build row
+     * rows[i].
+     */
+    private static final class Table {
+        int[] buckets;
+        int mask;
+        int[] chain;
+        int[] hashes;
+        int[] keys;        // if the key is INT_TYPE
+        String[] strings;  // otherwise
+        int[] rows;
+    }
+
+    /** Build the hash tables of the build partitions on the workers. */
+    private void buildTables(final Partitioned build) throws DbException, TransactionAbortedException {
+        tables = new Table[numPartitions];
+        new Pass(numPartitions) {
+            void work(int p) {
+                int bs = build.start[p];
+                int n = build.start[p + 1] - bs;
+                if (n == 0)
+                    return;
+                Table t = new Table();
+                int nbuckets = Integer.highestOneBit(n * 2 - 1) * 2;
+                t.mask = nbuckets - 1;
+                t.buckets = new int[nbuckets];
+                Arrays.fill(t.buckets, -1);
+                t.chain = new int[n];
+                t.hashes = new int[n];
+                t.rows = new int[n];
+                int[] buildInts = build.ints ? build.rows.getInts(build.field) : null;
+                String[] buildStrings = build.ints ? null : build.rows.getStrings(build.field);
+                if (build.ints)
+                    t.keys = new int[n];
+                else
+                    t.strings = new String[n];
+                // insert back to front so every chain lists rows in input order
+                for (int i = n - 1; i >= 0; i--) {
+                    int row = build.order[bs + i];
+                    int h = build.hashes[row];
+                    t.rows[i] = row;
+                    t.hashes[i] = h;
+                    if (build.ints)
+                        t.keys[i] = buildInts[row];
+                    else
+                        t.strings[i] = buildStrings[row];
+                    t.chain[i] = t.buckets[h & t.mask];
+                    t.buckets[h & t.mask] = i;
+                }
+                tables[p] = t;
+            }
+        }.runAll();
+    }
+
+    /**
+     * Work split into morsels that is done for its side effects, such as
+     * a partitioning pass.
+     */
+    private abstract class Pass extends MorselDispatcher {
+
+        Pass(int morsels) {
+            super(morsels, parallelism, false);
+        }
+
+        abstract void work(int m);
+
+        protected ArrayList<TupleBatch> read(int m) {
+            work(m);
+            return new ArrayList<TupleBatch>(0);
+        }
+
+        /** Do every morsel, and return once all are done. */
+        void runAll() throws DbException, TransactionAbortedException {
+            schedule();
+            while (take() != null)
+                ;
+        }
+    }
+
+    /**
+     * The join of one probe chunk: a morsel is a partition.
+     */
+    private final class Run extends MorselDispatcher {
+
+        private final Table[] tables = ParallelHashJoin.this.tables;
+        private final TupleBatch buildRows = ParallelHashJoin.this.buildRows;
+        private final Partitioned probe;
+
+        Run(Partitioned probe) {
+            super(numPartitions, parallelism, false);
+            this.probe = probe;
+        }
+
+        /** Probe the hash table of a build partition with a probe partition. */
+        protected ArrayList<TupleBatch> read(int p) {
+            ArrayList<TupleBatch> out = new ArrayList<TupleBatch>();
+            Table t = tables[p];
+            int ps = probe.start[p];
+            int pe = probe.start[p + 1];
+            if (t == null || ps == pe)
+                return out;
+
+            int[] probeInts = probe.ints ? probe.rows.getInts(probe.field) : null;
+            String[] probeStrings = probe.ints ? null : probe.rows.getStrings(probe.field);
+            TupleBatch batch = new TupleBatch(comboTD);
+            for (int j = ps; j < pe; j++) {
+                int row = probe.order[j];
+                int h = probe.hashes[row];
+                for (int i = t.buckets[h & t.mask]; i >= 0; i = t.chain[i]) {
+                    if (t.hashes[i] != h)
+                        continue;
+                    if (t.keys != null ? t.keys[i] != probeInts[row]
+                            : !t.strings[i].equals(probeStrings[row]))
+                        continue;
+                    batch.addJoinedRow(buildRows, t.rows[i], probe.rows, row);
+                    if (batch.isFull()) {
+                        out.add(batch);
+                        batch = new TupleBatch(comboTD);
+                        if (isCancelled())
+                            return out;
+                    }
+                }
+            }
+            if (!batch.isEmpty())
+                out.add(batch);
+            return out;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * ParallelSeqScan reads a HeapFile with several worker threads. The file is
+ * cut into morsels of consecutive pages that the workers claim one at a
+ * time, so a worker that finishes early simply claims the next morsel. Each
+ * worker decodes its pages into TupleBatches and applies the filters and the
+ * projection pushed into the scan, so the selection and projection above a
+ * large scan use all cores too.
+ * <p>
+ * Results are returned either in file order, the order of {@link SeqScan},
+ * or in the order the morsels complete; see {@link MorselDispatcher} for
+ * how the workers are scheduled.
+ */
+public class ParallelSeqScan extends Operator implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Maximum number of pages in a morsel; smaller files are cut into
+     * smaller morsels so that every worker gets several.
+     */
+    public static final int MORSEL_PAGES = 32;
+
+    /**
+     * Default number of workers of a scan: one per processor.
+     */
+    public static final int DEFAULT_PARALLELISM = MorselDispatcher.POOL_SIZE;
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final String tablename;
+    private final String alias;
+    private final int parallelism;
+    private final boolean ordered;
+    private final TupleDesc scanTd;  // every column, prefixed with the alias
+    private TupleDesc td;            // after the projection
+    private final ArrayList<Predicate> filters = new ArrayList<Predicate>();
+    private int[] projection = null;
+
+    private transient Run run;
+    private transient ArrayList<TupleBatch> morsel;  // the results being returned
+    private transient int nextBatch;
+    private transient TupleBatch batch;              // the batch fetchNext reads
+    private transient int nextRow;
+
+    /**
+     * Creates a parallel scan with {@link #DEFAULT_PARALLELISM} workers that
+     * returns the tuples in file order.
+     *
+     * @param tid        the transaction this scan is running as a part of
+     * @param tableid    the table to scan; must be a HeapFile
+     * @param tableAlias the alias of this table, as in {@link SeqScan}
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, DEFAULT_PARALLELISM, true);
+    }
+
+    /**
+     * Creates a parallel scan.
+     *
+     * @param tid         the transaction this scan is running as a part of
+     * @param tableid     the table to scan; must be a HeapFile
+     * @param tableAlias  the alias of this table, as in {@link SeqScan}
+     * @param parallelism the maximum number of workers reading the table
+     * @param ordered     if true, tuples are returned in file order;
+     *                    otherwise in the order the morsels are read
+     * @throws IllegalArgumentException if the table is not a HeapFile or
+     *                                  parallelism is not positive
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias,
+            int parallelism, boolean ordered) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            throw new IllegalArgumentException("parallel scans only read heap files");
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tablename = Database.getCatalog().getTableName(tableid);
+        this.alias = tableAlias;
+        this.parallelism = parallelism;
+        this.ordered = ordered;
+
+        TupleDesc fileTd = Database.getCatalog().getTupleDesc(tableid);
+        String[] names = new String[fileTd.numFields()];
+        Type[] types = new Type[fileTd.numFields()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = tableAlias + "." + fileTd.getFieldName(i);
+            types[i] = fileTd.getFieldType(i);
+        }
+        this.scanTd = new TupleDesc(types, names);
+        this.td = scanTd;
+    }
+
+    /**
+     * @return the name of the table this operator scans in the catalog
+     */
+    public String getTableName() {
+        return tablename;
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * @return the maximum number of workers reading the table
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return true if the tuples are returned in file order
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Have the workers drop the tuples that fail a predicate. Filters are
+     * applied before the projection, so the predicate's field is an index
+     * into the table's columns. Must be called before the scan is opened.
+     */
+    public void addFilter(Predicate p) {
+        filters.add(p);
+    }
+
+    /**
+     * Have the workers keep only some columns of the table. Must be called
+     * before the scan is opened.
+     *
+     * @param fields the indexes of the table columns to return, in output
+     *               order
+     */
+    public void setProjection(int[] fields) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = scanTd.getFieldType(fields[i]);
+            names[i] = scanTd.getFieldName(fields[i]);
+        }
+        projection = fields.clone();
+        td = new TupleDesc(types, names);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        int numPages = file.numPages();
+        run = new Run(file, numPages,
+                Math.max(1, Math.min(MORSEL_PAGES, numPages / (4 * parallelism))));
+        run.schedule();
+        morsel = null;
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (run != null)
+            run.cancel();
+        run = null;
+        morsel = null;
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Returns the next batch produced by a worker, filtered and projected.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (run == null)
+            throw new IllegalStateException("iterator is closed");
+        while (morsel == null || nextBatch == morsel.size()) {
+            morsel = run.take();
+            nextBatch = 0;
+            if (morsel == null)
+                return null;
+        }
+        return morsel.get(nextBatch++);
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (batch == null || nextRow == batch.size()) {
+            batch = nextBatch();
+            nextRow = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(nextRow++);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[0];
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+    }
+
+    /**
+     * One pass over the table: a morsel is a range of consecutive pages.
+     */
+    private final class Run extends MorselDispatcher {
+
+        private final HeapFile file;
+        private final int numPages;
+        private final int morselPages;
+
+        Run(HeapFile file, int numPages, int morselPages) {
+            super((numPages + morselPages - 1) / morselPages, parallelism, ordered);
+            this.file = file;
+            this.numPages = numPages;
+            this.morselPages = morselPages;
+        }
+
+        /** Read, filter and project the tuples of a morsel. */
+        protected ArrayList<TupleBatch> read(int m) throws DbException, TransactionAbortedException {
+            ArrayList<TupleBatch> out = new ArrayList<TupleBatch>();
+            int first = m * morselPages;
+            HeapFileBatchReader reader = file.batchReader(tid, first, Math.min(numPages, first + morselPages));
+            int[] selection = filters.isEmpty() ? null : new int[TupleBatch.DEFAULT_CAPACITY];
+            reader.open();
+            while (!isCancelled()) {
+                TupleBatch b = new TupleBatch(scanTd);
+                reader.fill(b);
+                if (b.isEmpty())
+                    break;
+                for (int i = 0; i < filters.size() && !b.isEmpty(); i++)
+                    b.retain(selection, filters.get(i).filter(b, selection));
+                if (b.isEmpty())
+                    continue;
+                out.add(projection == null ? b : b.project(projection, td));
+            }
+            reader.close();
+            return out;
+        }
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,14 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    /**
+     * Zql does not know LIMIT, so a LIMIT n clause at the end of a statement
+     * is cut from the text before it is handed to Zql, and added to the
+     * logical plan afterwards.
+     */
+    static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)\\s*(?=;|\\z)", Pattern.CASE_INSENSITIVE);
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -182,23 +192,20 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
+                lp.addGroupBy(groupByField);
             }
 
         }
@@ -207,8 +214,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +224,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField, null);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,13 +245,9 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
-
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
         // sort the data
 
         if (q.getOrderBy() != null) {
@@ -272,6 +272,49 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    private int queryLimit = -1; // LIMIT of the statement being processed, or -1
+
+    /**
+     * Remove the LIMIT clause, if any, from the end of a statement.
+     *
+     * @return the limit, or -1 if the statement has none
+     */
+    static int stripLimit(StringBuilder sql) throws simpledb.ParsingException {
+        Matcher m = LIMIT_CLAUSE.matcher(sql);
+        if (!m.find())
+            return -1;
+        int limit;
+        try {
+            limit = Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT " + m.group(1) + " is too large");
+        }
+        sql.delete(m.start(), m.end());
+        return limit;
+    }
+
+    /**
+     * Check that a statement parsed after its LIMIT clause was removed can
+     * apply the limit: only queries and INSERTs of a query do. A limit on
+     * any other statement would otherwise be silently dropped.
+     *
+     * @param limit the limit removed from the statement, or -1 if none
+     */
+    static void checkLimit(ZStatement s, int limit) throws simpledb.ParsingException {
+        if (limit < 0 || s instanceof ZQuery
+                || (s instanceof ZInsert && ((ZInsert) s).getQuery() != null))
+            return;
+        String kind;
+        if (s instanceof ZDelete)
+            kind = "DELETE";
+        else if (s instanceof ZInsert)
+            kind = "INSERT ... VALUES";
+        else if (s instanceof ZTransactStmt)
+            kind = ((ZTransactStmt) s).getStmtType();
+        else
+            kind = "this statement";
+        throw new simpledb.ParsingException("LIMIT is not supported for " + kind);
+    }
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
@@ -279,6 +322,8 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (queryLimit >= 0)
+            lp.addLimit(queryLimit);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -387,6 +432,8 @@ public class Parser {
         } else {
             ZQuery zq = (ZQuery) s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            if (queryLimit >= 0)
+                lp.addLimit(queryLimit);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -465,12 +512,16 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        StringBuilder sql = new StringBuilder(s);
+        int limit = stripLimit(sql);
+        ByteArrayInputStream bis = new ByteArrayInputStream(sql.toString().getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit >= 0)
+                    lp.addLimit(limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -503,8 +554,15 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = is.read(buf)) > 0;)
+                text.write(buf, 0, n);
+            StringBuilder sql = new StringBuilder(text.toString("UTF-8"));
+            queryLimit = stripLimit(sql);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(sql.toString().getBytes("UTF-8")));
             ZStatement s = p.readStatement();
+            checkLimit(s, queryLimit);
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -575,17 +633,19 @@ public class Parser {
             System.out.println("Invalid SQL expression: \n \t " + e);
         } catch (Zql.TokenMgrError e) {
             System.out.println("Invalid SQL expression: \n \t " + e);
+        } finally {
+            queryLimit = -1;
         }
     }
 
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 8) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,7 +655,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile] [-sample rate] [-parallel threads]";
     static final int SLEEP_TIME = 5000;
 
     protected void shutdown() {
@@ -607,9 +667,9 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
 
         String queryFile = null;
+        double sampleRate = TableStats.DEFAULT_SAMPLE_RATE;
 
         if (argv.length > 1) {
             for (int i = 1; i < argv.length; i++) {
@@ -625,12 +685,48 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-sample")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected sample rate after -sample\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    try {
+                        sampleRate = Double.parseDouble(argv[i]);
+                    } catch (NumberFormatException e) {
+                        sampleRate = Double.NaN;
+                    }
+                    if (!(sampleRate > 0 && sampleRate <= 1)) {
+                        System.out.println("Sample rate must be in (0, 1], not "
+                                + argv[i] + "\n" + usage);
+                        System.exit(0);
+                    }
+                } else if (argv[i].equals("-parallel")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected thread count after -parallel\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    int parallelism;
+                    try {
+                        parallelism = Integer.parseInt(argv[i]);
+                    } catch (NumberFormatException e) {
+                        parallelism = 0;
+                    }
+                    if (parallelism < 1) {
+                        System.out.println("Thread count must be positive, not "
+                                + argv[i] + "\n" + usage);
+                        System.exit(0);
+                    }
+                    LogicalPlan.setDefaultParallelism(parallelism);
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
                 }
             }
         }
+
+        TableStats.computeStatistics(sampleRate, Runtime.getRuntime().availableProcessors());
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
@@ -101,6 +101,52 @@ public class Predicate implements Serializable {
         return t.getField(this.field).compare(this.op, this.operand);
     }
 
+    /**
+     * Applies this predicate to every row of a batch. Integer columns are
+     * compared in a loop over the column array, with the operator chosen
+     * once for the whole batch.
+     *
+     * @param batch     the rows to filter
+     * @param selection receives the numbers of the rows that pass, in
+     *                  increasing order; must hold at least batch.size()
+     *                  entries
+     * @return the number of rows that pass
+     */
+    public int filter(TupleBatch batch, int[] selection) {
+        int n = batch.size();
+        int out = 0;
+        if (operand instanceof IntField) {
+            int[] col = batch.getInts(field);
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+            case EQUALS: case LIKE:
+                for (int i = 0; i < n; i++) if (col[i] == v) selection[out++] = i;
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < n; i++) if (col[i] != v) selection[out++] = i;
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < n; i++) if (col[i] > v) selection[out++] = i;
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) if (col[i] >= v) selection[out++] = i;
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < n; i++) if (col[i] < v) selection[out++] = i;
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) if (col[i] <= v) selection[out++] = i;
+                break;
+            }
+            return out;
+        }
+        for (int i = 0; i < n; i++) {
+            if (batch.getField(i, field).compare(op, operand))
+                selection[out++] = i;
+        }
+        return out;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
@@ -5,12 +5,14 @@ import java.util.*;
 /**
  * Project is an operator that implements a relational projection.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private transient int[] outFields;
+    private transient BatchIterator childBatches;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -41,6 +43,11 @@ public class Project extends Operator {
         td = new TupleDesc(types, fieldAr);
     }
 
+    /** @return the field of the child that output field i is */
+    int getChildField(int i) {
+        return outFieldIds.get(i);
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -80,6 +87,23 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of projected tuples. The result shares the
+     * child's column arrays, so projecting a batch copies no values.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        BatchIterator in = childBatches = DbIteratorBatchAdapter.of(child, childBatches);
+        TupleBatch batch = in.nextBatch();
+        if (batch == null)
+            return null;
+        if (outFields == null) {
+            outFields = new int[outFieldIds.size()];
+            for (int i = 0; i < outFields.length; i++)
+                outFields[i] = outFieldIds.get(i);
+        }
+        return batch.project(outFields, td);
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReadAhead watches the pages a single scan reads and, once the scan is
+ * clearly sequential, asks background threads to pull the next pages into
+ * the {@link BufferPool} before the scan gets to them. Pages are requested
+ * in file order, so the positional reads issued by consecutive prefetches
+ * are merged by the operating system into large sequential I/O.
+ * <p>
+ * HeapFile scans are detected from consecutive page numbers; B+ tree scans
+ * follow the right-sibling chain of leaf pages, which is sequential by
+ * construction.
+ * <p>
+ * Each scan owns its own ReadAhead; the prefetch threads are shared.
+ */
+public class ReadAhead {
+
+    /**
+     * Default number of pages to keep in flight ahead of a sequential scan.
+     */
+    public static final int DEFAULT_WINDOW = 8;
+
+    /**
+     * Number of consecutive page reads after which a scan counts as
+     * sequential.
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+
+    private static volatile int window = DEFAULT_WINDOW;
+
+    private static final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(2, 2,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(64),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-readahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.DiscardPolicy());
+
+    private final BufferPool pool;
+    private int lastPage = -1;
+    private int run = 0;
+    private int prefetchedTo = -1; // highest heap page number requested so far
+    private int leavesAhead = 0;   // leaf pages requested beyond the current one
+
+    /**
+     * Create the read-ahead state for one scan over the current buffer pool.
+     */
+    public ReadAhead() {
+        this.pool = Database.getBufferPool();
+    }
+
+    /**
+     * Set the number of pages kept in flight ahead of a sequential scan;
+     * 0 turns read-ahead off.
+     */
+    public static void setWindow(int pages) {
+        window = Math.max(0, pages);
+    }
+
+    /**
+     * @return the number of pages kept in flight ahead of a sequential scan
+     */
+    public static int getWindow() {
+        return window;
+    }
+
+    /**
+     * Report that the scan read a page of a HeapFile.
+     *
+     * @param pid      the page that was read
+     * @param numPages the number of pages in the file
+     */
+    public void heapPageRead(final HeapPageId pid, int numPages) {
+        int pgno = pid.pageNumber();
+        run = (pgno == lastPage + 1) ? run + 1 : 0;
+        lastPage = pgno;
+        final int w = window;
+        if (w == 0 || run < SEQUENTIAL_THRESHOLD || prefetchedTo - pgno > w / 2)
+            return;
+
+        final int from = Math.max(prefetchedTo, pgno) + 1;
+        final int to = Math.min(pgno + w, numPages - 1);
+        if (from > to)
+            return;
+        prefetchedTo = to;
+        prefetcher.execute(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = from; i <= to; i++) {
+                        if (pool.prefetchPage(new HeapPageId(pid.getTableId(), i)) == null)
+                            return; // pool is full of dirty pages
+                    }
+                } catch (DbException e) {
+                    // read-ahead is only a hint
+                } catch (RuntimeException e) {
+                    // e.g. the table was dropped under us
+                }
+            }
+        });
+    }
+
+    /**
+     * Report that a B+ tree scan moved on to the next leaf page by following
+     * a right-sibling pointer.
+     *
+     * @param leaf the leaf page the scan is now reading
+     */
+    public void leafPageRead(BTreeLeafPage leaf) {
+        run++;
+        if (leavesAhead > 0)
+            leavesAhead--;
+        final int w = window;
+        final BTreePageId next = leaf.getRightSiblingId();
+        if (w == 0 || next == null || run < SEQUENTIAL_THRESHOLD || leavesAhead > w / 2)
+            return;
+
+        leavesAhead = w;
+        prefetcher.execute(new Runnable() {
+            public void run() {
+                try {
+                    BTreePageId pid = next;
+                    for (int i = 0; i < w && pid != null; i++) {
+                        Page p = pool.prefetchPage(pid);
+                        if (!(p instanceof BTreeLeafPage))
+                            return;
+                        pid = ((BTreeLeafPage) p).getRightSiblingId();
+                    }
+                } catch (DbException e) {
+                    // read-ahead is only a hint
+                } catch (RuntimeException e) {
+                    // e.g. the table was dropped under us
+                }
+            }
+        });
+    }
+}
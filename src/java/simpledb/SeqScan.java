@@ -7,7 +7,7 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -15,6 +15,8 @@ public class SeqScan implements DbIterator {
     private TransactionId tid;
     private TupleDesc myTd;
     private transient DbFileIterator it;
+    private transient HeapFileBatchReader batchReader; // null unless the table is a HeapFile
+    private transient TupleBatch batch;
 //    private transient int tableid;
     private String tablename;
     private String alias;
@@ -57,6 +59,13 @@ public class SeqScan implements DbIterator {
         return this.alias;
     }
 
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return this.tid;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -74,7 +83,10 @@ public class SeqScan implements DbIterator {
         this.isOpen=false;
         this.alias = tableAlias;
         this.tablename = Database.getCatalog().getTableName(tableid);
-        this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        this.it = file.iterator(tid);
+        this.batchReader = (file instanceof HeapFile) ? ((HeapFile) file).batchReader(tid) : null;
+        this.batch = null;
         myTd = Database.getCatalog().getTupleDesc(tableid);
         String[] newNames = new String[myTd.numFields()];
         Type[] newTypes = new Type[myTd.numFields()];
@@ -97,6 +109,8 @@ public class SeqScan implements DbIterator {
             throw new DbException("double open on one DbIterator.");
 
         it.open();
+        if (batchReader != null)
+            batchReader.open();
         isOpen = true;
     }
 
@@ -129,8 +143,30 @@ public class SeqScan implements DbIterator {
 
     }
 
+    /**
+     * Returns the next batch of tuples. Tuples of a HeapFile are decoded
+     * straight from the pages into the batch's column arrays; other files
+     * are read through their DbFileIterator.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        if (batch == null)
+            batch = new TupleBatch(myTd);
+        batch.clear();
+        if (batchReader != null) {
+            batchReader.fill(batch);
+        } else {
+            while (!batch.isFull() && it.hasNext())
+                batch.addTuple(it.next());
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
     public void close() {
         it.close();
+        if (batchReader != null)
+            batchReader.close();
         isOpen = false;
     }
 
@@ -0,0 +1,361 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * SortMergeJoin joins two inputs that are ordered on their join fields. An
+ * input that already comes in ascending order of its join field, such as a
+ * scan of a B+ tree keyed on it or an ascending {@link OrderBy} on it, is
+ * read as it is; any other input is sorted first with an
+ * {@link ExternalSort}, within a memory budget.
+ * <p>
+ * An equality is joined by merging the two inputs: the child2 tuples of
+ * each key are held in memory while the child1 tuples of the same key are
+ * joined with them, so each input is read once. A range comparison is
+ * joined by reading one input once and, for each of its tuples, the prefix
+ * of the other input that satisfies the predicate: for child1 &gt; child2 and
+ * child1 &gt;= child2 this is a prefix of child2 for every child1 tuple, and
+ * for child1 &lt; child2 and child1 &lt;= child2 a prefix of child1 for every
+ * child2 tuple. Only one comparison per outer tuple fails, instead of one
+ * per pair of tuples in a nested-loop join.
+ * <p>
+ * As in {@link Join}, the output tuples are child1's fields followed by
+ * child2's. Equality joins and child1 &gt; child2 joins return them in
+ * ascending order of child1's join field; see {@link #isSortedOn}.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default number of bytes of tuples each input is sorted with in memory
+     * before sorted runs are written to disk.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private final JoinPredicate pred;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final TupleDesc comboTD;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    private transient ExternalSort sort1;  // null if child1 is read in its own order
+    private transient ExternalSort sort2;
+    private transient DbIterator in1;      // the inputs in ascending order
+    private transient DbIterator in2;
+
+    // equality: the in2 tuples whose key is groupKey, and the first in2
+    // tuple after them
+    private transient ArrayList<Tuple> group;
+    private transient Field groupKey;
+    private transient int groupPos;
+    private transient Tuple head2;
+
+    // the current tuple of in1, or for range comparisons of the outer input
+    private transient Tuple outer;
+
+    /**
+     * Constructor.
+     *
+     * @param p      the predicate to join on; an equality or a range
+     *               comparison
+     * @param child1 the left input
+     * @param child2 the right input
+     * @throws IllegalArgumentException if the predicate is not an equality
+     *                                  or a range comparison
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("a sort-merge join cannot join on " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if a sort-merge join can join on the operator: an
+     *         equality or a range comparison
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the iterator returns its tuples in ascending order of
+     *         the field: a scan of a B+ tree keyed on it, an ascending
+     *         OrderBy on it, a Filter or Project over such an input, an index
+     *         nested-loop join with such an outer input, or a sort-merge
+     *         join whose output is ordered on it
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof BTreeScan)
+            return keyFieldOf(((BTreeScan) it).getTableName()) == field;
+        if (it instanceof SeqScan)
+            return keyFieldOf(((SeqScan) it).getTableName()) == field;
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof Filter)
+            return isSortedOn(((Filter) it).getChildren()[0], field);
+        if (it instanceof Project) {
+            Project p = (Project) it;
+            return isSortedOn(p.getChildren()[0], p.getChildField(field));
+        }
+        if (it instanceof IndexNestedLoopJoin) {
+            DbIterator outer = ((IndexNestedLoopJoin) it).getChildren()[0];
+            return field < outer.getTupleDesc().numFields() && isSortedOn(outer, field);
+        }
+        if (it instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) it;
+            JoinPredicate p = j.getJoinPredicate();
+            switch (p.getOperator()) {
+            case EQUALS:
+                return field == p.getField1()
+                        || field == j.child1.getTupleDesc().numFields() + p.getField2();
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return field == p.getField1();
+            default:
+                return field == j.child1.getTupleDesc().numFields() + p.getField2();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the key field of the table if it is stored in a B+ tree, whose
+     *         scans return the tuples in key order; -1 otherwise
+     */
+    private static int keyFieldOf(String tableName) {
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(tableName));
+        return f instanceof BTreeFile ? ((BTreeFile) f).keyField() : -1;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * Set how many bytes of tuples each input that needs sorting may hold in
+     * memory.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the number of bytes of tuples each sorted input may hold in
+     *         memory
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return true if child1 is sorted by the join rather than read in the
+     *         order it comes in; valid once the join is open
+     */
+    public boolean isSorting1() {
+        return sort1 != null;
+    }
+
+    /**
+     * @return true if child2 is sorted by the join rather than read in the
+     *         order it comes in; valid once the join is open
+     */
+    public boolean isSorting2() {
+        return sort2 != null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        dropSorts();
+        try {
+            if (isSortedOn(child1, pred.getField1())) {
+                child1.open();
+                in1 = child1;
+            } else {
+                sort1 = new ExternalSort(child1.getTupleDesc(), pred.getField1(), true, memoryBudget);
+                in1 = sorted(child1, sort1);
+            }
+            if (isSortedOn(child2, pred.getField2())) {
+                child2.open();
+                in2 = child2;
+            } else {
+                sort2 = new ExternalSort(child2.getTupleDesc(), pred.getField2(), true, memoryBudget);
+                in2 = sorted(child2, sort2);
+            }
+        } catch (DbException e) {
+            dropSorts();
+            throw e;
+        }
+        reset();
+        super.open();
+    }
+
+    private static DbIterator sorted(DbIterator child, ExternalSort sort)
+            throws DbException, TransactionAbortedException {
+        child.open();
+        while (child.hasNext())
+            sort.add(child.next());
+        child.close();
+        DbIterator it = sort.finish();
+        it.open();
+        return it;
+    }
+
+    public void close() {
+        super.close();
+        dropSorts();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        in1.rewind();
+        in2.rewind();
+        reset();
+    }
+
+    private void reset() {
+        group = new ArrayList<Tuple>();
+        groupKey = null;
+        groupPos = 0;
+        head2 = null;
+        outer = null;
+    }
+
+    private void dropSorts() {
+        if (in1 != null) {
+            in1.close();
+            in1 = null;
+        }
+        if (in2 != null) {
+            in2.close();
+            in2 = null;
+        }
+        if (sort1 != null) {
+            sort1.delete();
+            sort1 = null;
+        }
+        if (sort2 != null) {
+            sort2.delete();
+            sort2 = null;
+        }
+        group = null;
+        outer = null;
+        head2 = null;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (in1 == null)
+            return null;
+        switch (pred.getOperator()) {
+        case EQUALS:
+            return mergeEquals();
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return scanPrefixes(in1, in2, true);
+        default:
+            return scanPrefixes(in2, in1, false);
+        }
+    }
+
+    private Tuple mergeEquals() throws TransactionAbortedException, DbException {
+        int f1 = pred.getField1();
+        int f2 = pred.getField2();
+        while (true) {
+            if (outer != null && groupPos < group.size())
+                return joined(outer, group.get(groupPos++));
+            if (!in1.hasNext()) {
+                outer = null;
+                return null;
+            }
+            outer = in1.next();
+            groupPos = 0;
+            Field key = outer.getField(f1);
+            if (groupKey != null && key.equals(groupKey))
+                continue;
+            // the group is behind this key for good; find the next one
+            group.clear();
+            groupKey = null;
+            if (head2 == null && in2.hasNext())
+                head2 = in2.next();
+            while (head2 != null && head2.getField(f2).compare(Predicate.Op.LESS_THAN, key))
+                head2 = in2.hasNext() ? in2.next() : null;
+            if (head2 == null) {
+                outer = null;
+                return null;
+            }
+            if (!head2.getField(f2).equals(key))
+                continue;
+            groupKey = key;
+            while (head2 != null && head2.getField(f2).equals(key)) {
+                group.add(head2);
+                head2 = in2.hasNext() ? in2.next() : null;
+            }
+        }
+    }
+
+    /**
+     * Join each tuple of the outer input with the prefix of the inner input
+     * that satisfies the predicate.
+     *
+     * @param outerIsLeft true if the outer input is in1
+     */
+    private Tuple scanPrefixes(DbIterator outerIn, DbIterator innerIn, boolean outerIsLeft)
+            throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outer != null && innerIn.hasNext()) {
+                Tuple inner = innerIn.next();
+                Tuple left = outerIsLeft ? outer : inner;
+                Tuple right = outerIsLeft ? inner : outer;
+                if (pred.filter(left, right))
+                    return joined(left, right);
+                // the rest of the inner input fails the predicate too
+            }
+            if (!outerIn.hasNext()) {
+                outer = null;
+                return null;
+            }
+            if (outer != null)
+                innerIn.rewind();
+            outer = outerIn.next();
+        }
+    }
+
+    private Tuple joined(Tuple left, Tuple right) {
+        Tuple t = new Tuple(comboTD);
+        int n1 = left.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            t.setField(i, left.getField(i));
+        for (int i = 0; i < right.getTupleDesc().numFields(); i++)
+            t.setField(n1 + i, right.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] {child1, child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
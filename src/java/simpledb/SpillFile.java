@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples that operators use to move data
+ * out of memory when it does not fit their memory budget, such as the
+ * partitions of a hash join. Tuples are appended with {@link #add} in their
+ * fixed-width serialized form and read back, in the same order, through
+ * {@link #iterator}.
+ * <p>
+ * The file is deleted by {@link #delete}, which the operator that created
+ * it must call once it is done with it. (deleteOnExit is not used: it keeps
+ * the name of every spill file ever created in memory until the JVM exits.)
+ */
+public class SpillFile {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int count = 0;
+
+    /**
+     * Create an empty spill file for tuples of the given schema.
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("simpledb-spill", ".tmp");
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    /**
+     * @return the schema of the tuples in this file
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Append a tuple to the file.
+     */
+    public void add(Tuple t) throws IOException {
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        count++;
+    }
+
+    /**
+     * @return the number of tuples added so far
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes the tuples of this file occupy
+     */
+    public long bytes() {
+        return (long) count * td.getSize();
+    }
+
+    /**
+     * Return an iterator over the tuples added so far. Further adds are not
+     * seen by iterators that are already open.
+     */
+    public DbIterator iterator() throws IOException {
+        out.flush();
+        return new SpillFileIterator(this);
+    }
+
+    /**
+     * Delete the file; the SpillFile cannot be used afterwards.
+     */
+    public void delete() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // we are throwing the data away anyway
+        }
+        file.delete();
+    }
+
+    /**
+     * Iterator over the tuples of a SpillFile.
+     */
+    static class SpillFileIterator extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SpillFile spill;
+        private final int count;
+        private transient DataInputStream in;
+        private transient int read;
+
+        SpillFileIterator(SpillFile spill) {
+            this.spill = spill;
+            this.count = spill.count;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill.file), BUFFER_SIZE));
+            } catch (FileNotFoundException e) {
+                throw new DbException("spill file is gone: " + e.getMessage());
+            }
+            read = 0;
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to recover
+                }
+                in = null;
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        protected Tuple fetchNext() throws DbException, NoSuchElementException {
+            if (read >= count)
+                return null;
+            TupleDesc td = spill.td;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (java.text.ParseException e) {
+                throw new DbException("corrupt spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return spill.td;
+        }
+
+        @Override
+        public DbIterator[] getChildren() {
+            return new DbIterator[0];
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 import simpledb.Aggregator.Op;
 
@@ -16,7 +16,9 @@ public class StringAggregator implements Aggregator {
     private Type gfiType;
     private int afi;
     private Op op;
-    private HashMap<Field,Integer> count;
+    private GroupTable groups;  // null if there is no grouping
+    private int[] count = new int[16];
+    private int numGroups = 0;
 
     /**
      * Aggregate constructor
@@ -34,7 +36,7 @@ public class StringAggregator implements Aggregator {
     	afi = afield;
     	op = what;
     	assert(op == Op.COUNT);
-    	count = new HashMap<Field, Integer>();
+    	groups = (gbfield == Aggregator.NO_GROUPING) ? null : new GroupTable(gbfieldtype);
     }
 
     /**
@@ -43,18 +45,48 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-    	Field tupleGroupByField = (gfi == Aggregator.NO_GROUPING) ? null : tup.getField(gfi);
-    	
-    	if (!count.containsKey(tupleGroupByField))
+    	int group = (gfi == Aggregator.NO_GROUPING) ? 0 : groups.groupOf(tup.getField(gfi));
+    	addToGroup(group, 1);
+    }
+    
+    /**
+     * Merge a batch of rows into the aggregate; only the group-by column is
+     * read, since COUNT does not look at the aggregate values.
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+    	int n = batch.size();
+    	if (gfi == Aggregator.NO_GROUPING)
+    	{
+    		if (n > 0)
+    			addToGroup(0, n);
+    		return;
+    	}
+    	if (gfiType == Type.INT_TYPE)
+    	{
+    		int[] keys = batch.getInts(gfi);
+    		for (int i = 0; i < n; i++)
+    			addToGroup(groups.groupOf(keys[i]), 1);
+    	}
+    	else
     	{
-    		count.put(tupleGroupByField, 0);
+    		String[] keys = batch.getStrings(gfi);
+    		for (int i = 0; i < n; i++)
+    			addToGroup(groups.groupOf(keys[i]), 1);
     	}
-    	
-    	int currentCount = count.get(tupleGroupByField);
-    	count.put(tupleGroupByField, currentCount+1);
+    }
 
+    private void addToGroup(int group, int rows)
+    {
+    	if (group == numGroups)
+    	{
+    		if (group == count.length)
+    			count = Arrays.copyOf(count, group * 2);
+    		count[group] = 0;
+    		numGroups++;
+    	}
+    	count[group] += rows;
     }
-    
+
     private TupleDesc createGroupByTupleDesc()
     {
     	String[] names;
@@ -84,15 +116,15 @@ public class StringAggregator implements Aggregator {
     	ArrayList<Tuple> tuples = new ArrayList<Tuple>();
     	TupleDesc tupledesc = createGroupByTupleDesc();
     	Tuple addMe;
-    	for (Field group : count.keySet())
+    	for (int group = 0; group < numGroups; group++)
     	{
-    		int aggregateVal = count.get(group);
+    		int aggregateVal = count[group];
     		addMe = new Tuple(tupledesc);
     		if (gfi == Aggregator.NO_GROUPING){
     			addMe.setField(0, new IntField(aggregateVal));
     		}
     		else {
-        		addMe.setField(0, group);
+        		addMe.setField(0, groups.key(group));
         		addMe.setField(1, new IntField(aggregateVal));    			
     		}
     		tuples.add(addMe);
@@ -1,7 +1,7 @@
 package simpledb;
 
 /**
- * A class to represent a fixed-width histogram over a single String-based
+ * A class to represent a histogram over a single String-based
  * field.
  */
 public class StringHistogram {
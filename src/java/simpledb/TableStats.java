@@ -1,9 +1,18 @@
 package simpledb;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -47,18 +56,66 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Compute the statistics of every table in the catalog from all of its
+     * pages, on one thread per processor.
+     */
     public static void computeStatistics() {
+        computeStatistics(DEFAULT_SAMPLE_RATE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Compute the statistics of every table in the catalog, on a pool of
+     * threads that each scan one table at a time.
+     *
+     * @param sampleRate
+     *            the fraction of the pages of each table to read; see
+     *            {@link #TableStats(int, int, double)}
+     * @param threads
+     *            the number of tables whose statistics are computed at once
+     */
+    public static void computeStatistics(final double sampleRate, int threads) {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-stats");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
 
         System.out.println("Computing table stats.");
-        while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+        try {
+            HashMap<String, Future<TableStats>> pending = new HashMap<String, Future<TableStats>>();
+            while (tableIt.hasNext()) {
+                final int tableid = tableIt.next();
+                pending.put(Database.getCatalog().getTableName(tableid),
+                        pool.submit(new Callable<TableStats>() {
+                            public TableStats call() {
+                                return new TableStats(tableid, IOCOSTPERPAGE, sampleRate);
+                            }
+                        }));
+            }
+            for (Map.Entry<String, Future<TableStats>> e : pending.entrySet())
+                setTableStats(e.getKey(), e.getValue().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while computing table stats", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("cannot compute table stats", e.getCause());
+        } finally {
+            pool.shutdownNow();
         }
         System.out.println("Done.");
     }
 
+    /** Fraction of the pages of a table read for its statistics by default: all of them. */
+    public static final double DEFAULT_SAMPLE_RATE = 1.0;
+
+    /** Fewest pages read of a sampled table, so that small tables are read whole. */
+    static final int MIN_SAMPLE_PAGES = 16;
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -66,9 +123,16 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    private final int ioCostPerPage;
+    private final int numPages;
+    private int numTuples;
+    // one histogram per field, of the type of the field
+    private final IntHistogram[] intHists;
+    private final StringHistogram[] stringHists;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
-     * column of a table
+     * column of a table, from all of its pages.
      * 
      * @param tableid
      *            The table over which to compute statistics
@@ -77,14 +141,164 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+        this(tableid, ioCostPerPage, DEFAULT_SAMPLE_RATE);
+    }
+
+    /**
+     * Create a new TableStats object from a sample of the pages of a table.
+     * The sampled pages are scanned twice: once for the range of each
+     * integer field, and once to fill the histograms. The tuple count is
+     * scaled up by the fraction of the pages read.
+     * <p>
+     * Pages are sampled whole, so sampling reads fewer pages instead of
+     * fewer tuples of every page; values that cluster on pages make the
+     * sample less accurate. Only heap files are sampled; other files are
+     * read whole.
+     * 
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO
+     * @param sampleRate
+     *            The fraction of the pages to read, at least
+     *            {@link #MIN_SAMPLE_PAGES} of them; 1 reads the whole table
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleRate) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        TupleDesc td = file.getTupleDesc();
+        int n = td.numFields();
+        this.ioCostPerPage = ioCostPerPage;
+        this.numPages = numPages(file);
+        this.intHists = new IntHistogram[n];
+        this.stringHists = new StringHistogram[n];
+
+        int[] mins = new int[n];
+        int[] maxs = new int[n];
+        Arrays.fill(mins, Integer.MAX_VALUE);
+        Arrays.fill(maxs, Integer.MIN_VALUE);
+        TransactionId tid = new TransactionId();
+        int sampled = (int) Math.min(numPages,
+                Math.max(MIN_SAMPLE_PAGES, Math.ceil(sampleRate * numPages)));
+        DbFileIterator it;
+        if (file instanceof HeapFile && sampled < numPages)
+            it = new SampledPagesIterator((HeapFile) file, tid,
+                    samplePages(numPages, sampled, new Random(tableid)));
+        else
+            it = file.iterator(tid);
+        int scanned = 0;
+        try {
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                scanned++;
+                for (int i = 0; i < n; i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        int v = ((IntField) t.getField(i)).getValue();
+                        mins[i] = Math.min(mins[i], v);
+                        maxs[i] = Math.max(maxs[i], v);
+                    }
+                }
+            }
+
+            for (int i = 0; i < n; i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    intHists[i] = new IntHistogram(NUM_HIST_BINS, mins[i], maxs[i]);
+                else
+                    stringHists[i] = new StringHistogram(NUM_HIST_BINS);
+            }
+            it.rewind();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                for (int i = 0; i < n; i++) {
+                    if (intHists[i] != null)
+                        intHists[i].addValue(((IntField) t.getField(i)).getValue());
+                    else
+                        stringHists[i].addValue(((StringField) t.getField(i)).getValue());
+                }
+            }
+        } catch (DbException e) {
+            throw new RuntimeException("cannot scan table " + tableid, e);
+        } catch (TransactionAbortedException e) {
+            throw new RuntimeException("cannot scan table " + tableid, e);
+        } finally {
+            it.close();
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (it instanceof SampledPagesIterator)
+            numTuples = (int) Math.round((double) scanned * numPages / sampled);
+        else
+            numTuples = scanned;
+    }
+
+    /**
+     * Choose k of the pages 0 to numPages - 1 at random, each set of k
+     * pages being equally likely.
+     * 
+     * @return the chosen page numbers, in ascending order
+     */
+    static int[] samplePages(int numPages, int k, Random random) {
+        int[] pages = new int[k];
+        int chosen = 0;
+        for (int i = 0; i < numPages && chosen < k; i++) {
+            // take page i with probability (pages still needed) / (pages left)
+            if (random.nextInt(numPages - i) < k - chosen)
+                pages[chosen++] = i;
+        }
+        return pages;
+    }
+
+    /** Iterates over the tuples of some of the pages of a heap file. */
+    private static class SampledPagesIterator extends AbstractDbFileIterator {
+        private final HeapFile file;
+        private final TransactionId tid;
+        private final int[] pages;
+        private int pos;
+        private Iterator<Tuple> it;
+
+        SampledPagesIterator(HeapFile file, TransactionId tid, int[] pages) {
+            this.file = file;
+            this.tid = tid;
+            this.pages = pages;
+        }
+
+        public void open() {
+            pos = 0;
+            it = null;
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            it = null;
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (it == null || !it.hasNext()) {
+                if (pos == pages.length)
+                    return null;
+                HeapPageId pid = new HeapPageId(file.getId(), pages[pos++]);
+                it = ((HeapPage) Database.getBufferPool().getPage(tid, pid,
+                        Permissions.READ_ONLY)).iterator();
+            }
+            return it.next();
+        }
+    }
+
+    /** @return the number of pages a scan of the file reads */
+    private static int numPages(DbFile file) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).numPages();
+        if (file instanceof BTreeFile)
+            return ((BTreeFile) file).numPages();
+        return 0;
     }
 
     /**
@@ -100,8 +314,7 @@ public class TableStats {
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        // some code goes here
-        return 0;
+        return (double) numPages * ioCostPerPage;
     }
 
     /**
@@ -114,8 +327,7 @@ public class TableStats {
      *         selectivityFactor
      */
     public int estimateTableCardinality(double selectivityFactor) {
-        // some code goes here
-        return 0;
+        return (int) Math.round(numTuples * selectivityFactor);
     }
 
     /**
@@ -129,8 +341,21 @@ public class TableStats {
      * expected selectivity. You may estimate this value from the histograms.
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
-        return 1.0;
+        double eq = intHists[field] != null ? intHists[field].avgSelectivity()
+                : stringHists[field].avgSelectivity();
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return eq;
+        case NOT_EQUALS:
+            return 1.0 - eq;
+        case LESS_THAN:
+        case GREATER_THAN:
+            // a random value of the column splits the others in half
+            return (1.0 - eq) / 2;
+        default:
+            return (1.0 + eq) / 2;
+        }
     }
 
     /**
@@ -147,16 +372,23 @@ public class TableStats {
      *         predicate
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        // some code goes here
-        return 1.0;
+        if (intHists[field] != null)
+            return intHists[field].estimateSelectivity(op, ((IntField) constant).getValue());
+        return stringHists[field].estimateSelectivity(op, ((StringField) constant).getValue());
+    }
+
+    /**
+     * @return the number of pages of the table
+     */
+    public int numPages() {
+        return numPages;
     }
 
     /**
      * return the total number of tuples in this table
      * */
     public int totalTuples() {
-        // some code goes here
-        return 0;
+        return numTuples;
     }
 
 }
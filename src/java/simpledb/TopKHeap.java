@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * TopKHeap keeps the first k tuples of a stream in the order of one field,
+ * for ORDER BY ... LIMIT k. It is a binary max-heap whose root is the worst
+ * tuple kept, so each added tuple costs one comparison against the root and
+ * O(log k) work only if it displaces the root; memory is O(k) whatever the
+ * size of the input.
+ * <p>
+ * Like {@link ExternalSort}, ties are broken by arrival order, so the result
+ * is the first k tuples of a stable sort.
+ */
+final class TopKHeap {
+
+    private final int field;
+    private final boolean asc;
+    private final int k;
+    private final boolean intKey;
+
+    private Tuple[] heap;
+    private long[] intKeys;     // see ExternalSort.sortableKey
+    private String[] stringKeys;
+    private long[] seqs;        // arrival number of each tuple
+    private int size = 0;
+    private long added = 0;
+
+    TopKHeap(TupleDesc td, int field, boolean asc, int k) {
+        this.field = field;
+        this.asc = asc;
+        this.k = k;
+        this.intKey = td.getFieldType(field) == Type.INT_TYPE;
+        int capacity = Math.min(k, 1024);
+        heap = new Tuple[capacity];
+        seqs = new long[capacity];
+        if (intKey)
+            intKeys = new long[capacity];
+        else
+            stringKeys = new String[capacity];
+    }
+
+    void add(Tuple t) {
+        long seq = added++;
+        if (k == 0)
+            return;
+        long ik = 0;
+        String sk = null;
+        if (intKey)
+            ik = ExternalSort.sortableKey(((IntField) t.getField(field)).getValue(), asc);
+        else
+            sk = ((StringField) t.getField(field)).getValue();
+
+        if (size < k) {
+            if (size == heap.length)
+                grow();
+            set(size, t, ik, sk, seq);
+            siftUp(size++);
+        } else if (compareKey(ik, sk, 0) < 0) {
+            // a later tuple with an equal key loses the tie, so only a
+            // strictly smaller key displaces the root
+            set(0, t, ik, sk, seq);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * @return the tuples kept, in sort order; the heap is emptied
+     */
+    Tuple[] sorted() {
+        Tuple[] result = new Tuple[size];
+        while (size > 0) {
+            result[size - 1] = heap[0];
+            size--;
+            move(size, 0);
+            heap[size] = null;
+            siftDown(0);
+        }
+        return result;
+    }
+
+    private void grow() {
+        int capacity = (int) Math.min(k, heap.length * 2L);
+        heap = Arrays.copyOf(heap, capacity);
+        seqs = Arrays.copyOf(seqs, capacity);
+        if (intKey)
+            intKeys = Arrays.copyOf(intKeys, capacity);
+        else
+            stringKeys = Arrays.copyOf(stringKeys, capacity);
+    }
+
+    private void set(int i, Tuple t, long ik, String sk, long seq) {
+        heap[i] = t;
+        seqs[i] = seq;
+        if (intKey)
+            intKeys[i] = ik;
+        else
+            stringKeys[i] = sk;
+    }
+
+    private void move(int from, int to) {
+        set(to, heap[from], intKey ? intKeys[from] : 0, intKey ? null : stringKeys[from], seqs[from]);
+    }
+
+    private void swap(int i, int j) {
+        Tuple t = heap[i];
+        long ik = intKey ? intKeys[i] : 0;
+        String sk = intKey ? null : stringKeys[i];
+        long seq = seqs[i];
+        move(j, i);
+        set(j, t, ik, sk, seq);
+    }
+
+    private int compareKey(long ik, String sk, int i) {
+        if (intKey)
+            return Long.compare(ik, intKeys[i]);
+        int c = sk.compareTo(stringKeys[i]);
+        return asc ? c : -c;
+    }
+
+    /** @return true if the tuple at i sorts after the one at j */
+    private boolean worse(int i, int j) {
+        int c = compareKey(intKey ? intKeys[i] : 0, intKey ? null : stringKeys[i], j);
+        return c != 0 ? c > 0 : seqs[i] > seqs[j];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!worse(i, parent))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && worse(child + 1, child))
+                child++;
+            if (!worse(child, i))
+                break;
+            swap(i, child);
+            i = child;
+        }
+    }
+}
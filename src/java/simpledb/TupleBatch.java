@@ -0,0 +1,259 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * TupleBatch holds up to a few thousand rows of one schema column by column:
+ * an int[] for every INT_TYPE field and a String[] for every STRING_TYPE
+ * field. Operators that implement {@link BatchIterator} pass these between
+ * each other instead of one {@link Tuple} at a time, so predicates, hashing
+ * and aggregation run as loops over primitive arrays and no Tuple or Field
+ * objects are allocated along the way.
+ * <p>
+ * Rows read from a page remember the page and slot they came from, and
+ * {@link #getTuple} turns them back into Tuples with the right RecordId.
+ * <p>
+ * The add methods grow the batch as needed; producers stop filling it once
+ * {@link #isFull} returns true.
+ */
+public class TupleBatch {
+
+    /** Default number of rows in a batch. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int target;       // rows a producer should put in this batch
+    private Object[] columns;       // int[] or String[] per field
+    private PageId[] pageIds;       // page each row was read from, or null
+    private int[] slots;            // slot each row was read from
+    private int size = 0;
+
+    /**
+     * Create an empty batch of {@link #DEFAULT_CAPACITY} rows.
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td       the schema of the rows
+     * @param capacity the number of rows after which the batch is full
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.target = capacity;
+        this.columns = new Object[td.numFields()];
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = td.getFieldType(i) == Type.INT_TYPE ? new int[capacity] : new String[capacity];
+        this.pageIds = new PageId[capacity];
+        this.slots = new int[capacity];
+    }
+
+    private TupleBatch(TupleDesc td, Object[] columns, PageId[] pageIds, int[] slots, int size, int target) {
+        this.td = td;
+        this.columns = columns;
+        this.pageIds = pageIds;
+        this.slots = slots;
+        this.size = size;
+        this.target = target;
+    }
+
+    /**
+     * @return the schema of the rows in this batch
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of rows in this batch
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if there are no rows in this batch
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return true if a producer should stop adding rows
+     */
+    public boolean isFull() {
+        return size >= target;
+    }
+
+    /**
+     * Remove all rows, keeping the allocated column arrays.
+     */
+    public void clear() {
+        Arrays.fill(pageIds, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * @return the values of an INT_TYPE column; only the first size()
+     *         entries are valid
+     */
+    public int[] getInts(int field) {
+        return (int[]) columns[field];
+    }
+
+    /**
+     * @return the values of a STRING_TYPE column; only the first size()
+     *         entries are valid
+     */
+    public String[] getStrings(int field) {
+        return (String[]) columns[field];
+    }
+
+    /**
+     * @return the value of one field of one row as a Field
+     */
+    public Field getField(int row, int field) {
+        if (td.getFieldType(field) == Type.INT_TYPE)
+            return new IntField(getInts(field)[row]);
+        return new StringField(getStrings(field)[row], Type.STRING_LEN);
+    }
+
+    /**
+     * Materialize a row as a Tuple.
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+            t.setField(i, getField(row, i));
+        if (pageIds[row] != null)
+            t.setRecordId(new RecordId(pageIds[row], slots[row]));
+        return t;
+    }
+
+    /**
+     * Append a Tuple of this batch's schema.
+     */
+    public void addTuple(Tuple t) {
+        int row = newRow();
+        for (int i = 0; i < columns.length; i++) {
+            Field f = t.getField(i);
+            if (f instanceof IntField)
+                getInts(i)[row] = ((IntField) f).getValue();
+            else
+                getStrings(i)[row] = ((StringField) f).getValue();
+        }
+        RecordId rid = t.getRecordId();
+        if (rid != null) {
+            pageIds[row] = rid.getPageId();
+            slots[row] = rid.tupleno();
+        }
+    }
+
+    /**
+     * Append the tuple in a used slot of a HeapPage, reading its fields
+     * straight from the raw page.
+     */
+    public void addRow(HeapPage page, int slot) {
+        int row = newRow();
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] instanceof int[])
+                getInts(i)[row] = page.getInt(slot, i);
+            else
+                getStrings(i)[row] = page.getString(slot, i);
+        }
+        pageIds[row] = page.getId();
+        slots[row] = slot;
+    }
+
+    /**
+     * Append a copy of a row of another batch with the same schema.
+     */
+    public void addRow(TupleBatch src, int srcRow) {
+        int row = newRow();
+        copyFields(src, srcRow, row, 0);
+        pageIds[row] = src.pageIds[srcRow];
+        slots[row] = src.slots[srcRow];
+    }
+
+    /**
+     * Append the concatenation of a row of left and a row of right; this
+     * batch's schema must be the merge of theirs.
+     */
+    public void addJoinedRow(TupleBatch left, int leftRow, TupleBatch right, int rightRow) {
+        int row = newRow();
+        copyFields(left, leftRow, row, 0);
+        copyFields(right, rightRow, row, left.columns.length);
+    }
+
+    private void copyFields(TupleBatch src, int srcRow, int row, int offset) {
+        for (int i = 0; i < src.columns.length; i++) {
+            Object from = src.columns[i];
+            if (from instanceof int[])
+                getInts(offset + i)[row] = ((int[]) from)[srcRow];
+            else
+                getStrings(offset + i)[row] = ((String[]) from)[srcRow];
+        }
+    }
+
+    /**
+     * Keep only the given rows, in the given order, compacting them to the
+     * front of the batch.
+     *
+     * @param selection row numbers in increasing order
+     * @param n         the number of entries of selection to use
+     */
+    public void retain(int[] selection, int n) {
+        if (n == size)
+            return;
+        for (Object column : columns) {
+            if (column instanceof int[]) {
+                int[] c = (int[]) column;
+                for (int i = 0; i < n; i++)
+                    c[i] = c[selection[i]];
+            } else {
+                String[] c = (String[]) column;
+                for (int i = 0; i < n; i++)
+                    c[i] = c[selection[i]];
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            pageIds[i] = pageIds[selection[i]];
+            slots[i] = slots[selection[i]];
+        }
+        Arrays.fill(pageIds, n, size, null);
+        size = n;
+    }
+
+    /**
+     * Return a batch over a subset of this batch's columns. The result
+     * shares its column arrays with this batch rather than copying them, so
+     * it is only valid until this batch is next modified.
+     *
+     * @param fields the columns of this batch to keep, in output order
+     * @param outTd  the schema of the result
+     */
+    public TupleBatch project(int[] fields, TupleDesc outTd) {
+        Object[] cols = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            cols[i] = columns[fields[i]];
+        return new TupleBatch(outTd, cols, pageIds, slots, size, target);
+    }
+
+    private int newRow() {
+        if (size == slots.length) {
+            int cap = Math.max(16, slots.length * 2);
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] instanceof int[])
+                    columns[i] = Arrays.copyOf((int[]) columns[i], cap);
+                else
+                    columns[i] = Arrays.copyOf((String[]) columns[i], cap);
+            }
+            pageIds = Arrays.copyOf(pageIds, cap);
+            slots = Arrays.copyOf(slots, cap);
+        }
+        return size++;
+    }
+}
@@ -144,6 +144,20 @@ public class TupleDesc implements Serializable {
         return size;
     }
 
+    /**
+     * @return an estimate of the bytes of Java heap a Tuple of this schema
+     *         occupies while an operator holds it in memory, which is what
+     *         memory budgets count: the Tuple, its Field array and a list's
+     *         reference to it, plus an IntField per INT_TYPE field and a
+     *         StringField with its String and bytes per STRING_TYPE field.
+     */
+    public int getHeapSize() {
+        int size = 48;
+        for (int i = 0; i < tdItems.length; i++)
+            size += tdItems[i].fieldType == Type.INT_TYPE ? 20 : 68 + Type.STRING_LEN;
+        return size;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * 2Q eviction (Johnson and Shasha). Pages seen once enter a FIFO queue
+ * (A1in); pages evicted from A1in are remembered in a ghost queue (A1out),
+ * and only pages referenced again while remembered there are promoted to the
+ * main LRU queue (Am). A long sequential scan therefore cycles through A1in
+ * without flushing the hot pages kept in Am.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+
+    /**
+     * @param capacity the number of pages in the buffer pool; A1in is sized
+     *                 to a quarter of it and A1out remembers half of it
+     */
+    public TwoQueueEvictionPolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (a1out.remove(pid) || am.contains(pid)) {
+            am.remove(pid);
+            am.add(pid);
+        } else if (!a1in.contains(pid)) {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageHit(PageId pid) {
+        // hits in A1in are deliberately ignored: correlated references
+        // right after a load do not prove the page is hot
+        if (am.remove(pid))
+            am.add(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        a1in.remove(pid);
+        am.remove(pid);
+    }
+
+    public synchronized PageId evict(Evictable evictable) {
+        PageId victim;
+        if (a1in.size() > kin) {
+            victim = evictFrom(a1in, evictable);
+            if (victim == null)
+                victim = evictFrom(am, evictable);
+        } else {
+            victim = evictFrom(am, evictable);
+            if (victim == null)
+                victim = evictFrom(a1in, evictable);
+        }
+        return victim;
+    }
+
+    private PageId evictFrom(LinkedHashSet<PageId> queue, Evictable evictable) {
+        Iterator<PageId> it = queue.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.canEvict(pid)) {
+                it.remove();
+                if (queue == a1in)
+                    remember(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void remember(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
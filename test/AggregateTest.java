@@ -176,6 +176,29 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * The keys of a spilled partition are spread over all partitions when it
+   * is partitioned again one level deeper
+   */
+  @Test public void repartitionSpreads() {
+    for (int depth = 0; depth + 1 < Aggregate.MAX_SPILL_DEPTH; depth++) {
+      for (int p = 0; p < Aggregate.FANOUT; p++) {
+        boolean[] seen = new boolean[Aggregate.FANOUT];
+        int spread = 0;
+        for (int key = -50000; key < 50000; key++) {
+          if (Aggregate.partitionOf(key, depth) != p)
+            continue;
+          int q = Aggregate.partitionOf(key, depth + 1);
+          if (!seen[q]) {
+            seen[q] = true;
+            spread++;
+          }
+        }
+        assertEquals(Aggregate.FANOUT, spread);
+      }
+    }
+  }
+
   /**
    * JUnit suite target
    */
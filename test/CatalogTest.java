@@ -2,6 +2,8 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -93,6 +95,35 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Tables loaded from a schema file keep their free-space maps in a
+     * sidecar file, written when the table is closed
+     */
+    @Test public void loadSchemaPersistsFreeSpace() throws Exception {
+        File dir = File.createTempFile("catalog", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        File data = new File(dir, "fsmtable.dat");
+        File sidecar = HeapFile.freeSpaceFile(data);
+        for (File f : new File[] { schema, data, sidecar })
+            f.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("fsmtable (a int, b int)\n");
+        w.close();
+        data.createNewFile();
+
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId("fsmtable"));
+        TransactionId tid = new TransactionId();
+        hf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getCatalog().clear();
+        Assert.assertTrue(sidecar.exists());
+    }
+
     /**
      * JUnit suite target
      */
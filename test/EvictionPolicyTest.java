@@ -0,0 +1,141 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class EvictionPolicyTest {
+
+    private static final EvictionPolicy.Evictable ANY = new EvictionPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private static PageId pid(int pgno) {
+        return new HeapPageId(1, pgno);
+    }
+
+    /**
+     * Unit test for LruEvictionPolicy: the least recently used page goes first
+     */
+    @Test public void lru() {
+        EvictionPolicy lru = new LruEvictionPolicy();
+        lru.pageLoaded(pid(0));
+        lru.pageLoaded(pid(1));
+        lru.pageLoaded(pid(2));
+        lru.pageHit(pid(0));
+        assertEquals(pid(1), lru.evict(ANY));
+        assertEquals(pid(2), lru.evict(ANY));
+        assertEquals(pid(0), lru.evict(ANY));
+        assertNull(lru.evict(ANY));
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: referenced pages get a second chance
+     */
+    @Test public void clock() {
+        EvictionPolicy clock = new ClockEvictionPolicy(3);
+        clock.pageLoaded(pid(0));
+        clock.pageLoaded(pid(1));
+        clock.pageLoaded(pid(2));
+        // first sweep clears every reference bit, then page 0 goes
+        assertEquals(pid(0), clock.evict(ANY));
+        clock.pageLoaded(pid(3));
+        clock.pageHit(pid(1));
+        assertEquals(pid(2), clock.evict(ANY));
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: a scan does not flush hot pages
+     */
+    @Test public void twoQueueResistsScans() {
+        EvictionPolicy twoq = new TwoQueueEvictionPolicy(8);
+        // load page 0, evict it to the ghost queue, and reference it again
+        twoq.pageLoaded(pid(0));
+        assertEquals(pid(0), twoq.evict(ANY));
+        twoq.pageLoaded(pid(0));
+        for (int i = 1; i < 8; i++)
+            twoq.pageLoaded(pid(i));
+        for (int i = 8; i < 40; i++) {
+            assertFalse(pid(0).equals(twoq.evict(ANY)));
+            twoq.pageLoaded(pid(i));
+        }
+    }
+
+    /**
+     * Unit test for ArcEvictionPolicy: frequently used pages survive a scan
+     */
+    @Test public void arcResistsScans() {
+        EvictionPolicy arc = new ArcEvictionPolicy(4);
+        arc.pageLoaded(pid(0));
+        arc.pageHit(pid(0));
+        for (int i = 1; i < 4; i++)
+            arc.pageLoaded(pid(i));
+        for (int i = 4; i < 20; i++) {
+            assertFalse(pid(0).equals(arc.evict(ANY)));
+            arc.pageLoaded(pid(i));
+        }
+    }
+
+    /**
+     * Every policy must skip pages the buffer pool refuses to evict
+     */
+    @Test public void respectsEvictable() {
+        EvictionPolicy[] policies = new EvictionPolicy[] {
+                new LruEvictionPolicy(), new ClockEvictionPolicy(2),
+                new TwoQueueEvictionPolicy(2), new ArcEvictionPolicy(2) };
+        EvictionPolicy.Evictable notZero = new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return pid.pageNumber() != 0;
+            }
+        };
+        for (EvictionPolicy policy : policies) {
+            policy.pageLoaded(pid(0));
+            policy.pageLoaded(pid(1));
+            assertEquals(pid(1), policy.evict(notZero));
+            assertNull(policy.evict(notZero));
+            policy.pageRemoved(pid(0));
+            assertNull(policy.evict(ANY));
+        }
+    }
+
+    /**
+     * Hits recorded in a HitBuffer reach the policy in order when it is
+     * drained; a full ring drops further hits instead of blocking
+     */
+    @Test public void hitBuffer() {
+        final ArrayList<PageId> seen = new ArrayList<PageId>();
+        EvictionPolicy recorder = new LruEvictionPolicy() {
+            public void pageHit(PageId pid) {
+                seen.add(pid);
+            }
+        };
+        HitBuffer hits = new HitBuffer();
+        hits.record(pid(2));
+        hits.record(pid(0));
+        hits.drainTo(recorder);
+        assertEquals(Arrays.asList(pid(2), pid(0)), seen);
+
+        seen.clear();
+        for (int i = 0; i < 2 * HitBuffer.RING_SIZE; i++)
+            hits.record(pid(i));
+        hits.drainTo(recorder);
+        assertEquals(HitBuffer.RING_SIZE, seen.size());
+        assertEquals(pid(0), seen.get(0));
+        seen.clear();
+        hits.drainTo(recorder);
+        assertTrue(seen.isEmpty());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
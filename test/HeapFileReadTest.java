@@ -77,6 +77,37 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Reading a page past the end of the file is an error, not an exit.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void readPagePastEnd() throws Exception {
+        hf.readPage(new HeapPageId(hf.getId(), hf.numPages()));
+    }
+
+    /**
+     * An interrupted reader closes the shared channel; other readers must
+     * still be able to read afterwards.
+     */
+    @Test
+    public void readPageAfterInterrupt() throws Exception {
+        final HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Thread t = new Thread() {
+            public void run() {
+                interrupt();
+                try {
+                    hf.readPage(pid);
+                } catch (IllegalArgumentException e) {
+                    // expected: the read was interrupted
+                }
+            }
+        };
+        t.start();
+        t.join();
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.File;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +45,69 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * A delete gives its slot back to the free-space map, so the next insert
+     * reuses it instead of growing the file
+     */
+    @Test public void deleteReturnsSlot() throws Exception {
+        Tuple first = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, first);
+        for (int i = 1; i < 504 * 2; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+
+        empty.deleteTuple(tid, first);
+        Tuple again = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, again);
+        assertEquals(2, empty.numPages());
+        assertEquals(0, again.getRecordId().getPageId().pageNumber());
+    }
+
+    /**
+     * An insert that fills a page and then aborts does not leave the page
+     * marked full in the free-space map
+     */
+    @Test public void abortReturnsSlot() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 503; ++i)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid);
+
+        TransactionId aborted = new TransactionId();
+        bp.insertTuple(aborted, empty.getId(), Utility.getHeapTuple(503, 2));
+        bp.transactionComplete(aborted, false);
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(504, 2);
+        bp.insertTuple(tid, empty.getId(), t);
+        assertEquals(1, empty.numPages());
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+    }
+
+    /**
+     * Unit test for FreeSpaceMap persistence in a sidecar file
+     */
+    @Test public void freeSpaceSidecar() throws Exception {
+        File sidecar = File.createTempFile("heap", ".fsm");
+        sidecar.delete();
+        sidecar.deleteOnExit();
+
+        FreeSpaceMap fsm = new FreeSpaceMap(sidecar);
+        assertEquals(0, fsm.findPage(3));
+        fsm.update(0, false);
+        fsm.update(1, false);
+        assertEquals(2, fsm.findPage(3));
+        fsm.save();
+
+        FreeSpaceMap reloaded = new FreeSpaceMap(sidecar);
+        assertEquals(2, reloaded.findPage(3));
+        reloaded.update(2, false);
+        assertEquals(-1, reloaded.findPage(3));
+        assertEquals(3, reloaded.findPage(4));
+        reloaded.update(1, true);
+        assertEquals(1, reloaded.findPage(4));
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,50 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getInt(): fields read straight from the raw page
+     */
+    @Test public void getInt() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++) {
+            assertEquals(EXAMPLE_VALUES[row][0], page.getInt(row, 0));
+            assertEquals(EXAMPLE_VALUES[row][1], page.getInt(row, 1));
+        }
+    }
+
+    /**
+     * Readers that iterate a page concurrently see fully decoded tuples, and
+     * the same tuple object for each slot.
+     */
+    @Test public void concurrentIterators() throws Exception {
+        final HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        final List<List<Tuple>> seen = Collections.synchronizedList(new ArrayList<List<Tuple>>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    List<Tuple> ts = new ArrayList<Tuple>();
+                    Iterator<Tuple> it = page.iterator();
+                    while (it.hasNext())
+                        ts.add(it.next());
+                    seen.add(ts);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(threads.length, seen.size());
+        for (List<Tuple> ts : seen) {
+            assertEquals(EXAMPLE_VALUES.length, ts.size());
+            for (int row = 0; row < ts.size(); row++) {
+                assertTrue(ts.get(row) == seen.get(0).get(row));
+                assertEquals(EXAMPLE_VALUES[row][0], ((IntField) ts.get(row).getField(0)).getValue());
+            }
+        }
+    }
+
     /**
      * JUnit suite target
      */
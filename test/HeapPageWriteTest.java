@@ -126,6 +126,25 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The before-image shares the raw page until the page is modified, and
+     * modifying the page never writes to the array it was created from
+     */
+    @Test public void beforeImageCopyOnWrite() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        int free = page.getNumEmptySlots();
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+
+        assertEquals(free - 1, page.getNumEmptySlots());
+        assertEquals(free, page.getBeforeImage().getNumEmptySlots());
+        assertEquals(free, new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA).getNumEmptySlots());
+
+        page.setBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(8, 2));
+        assertEquals(free - 1, page.getBeforeImage().getNumEmptySlots());
+        assertEquals(free - 2, page.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,93 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IntHistogramTest {
+
+  /** Every value of the range once */
+  @Test public void uniform() {
+    IntHistogram h = new IntHistogram(100, 1, 10000);
+    for (int v = 1; v <= 10000; v++)
+      h.addValue(v);
+    assertEquals(0.0001, h.estimateSelectivity(Predicate.Op.EQUALS, 5000), 0.0001);
+    assertEquals(0.9999, h.estimateSelectivity(Predicate.Op.NOT_EQUALS, 5000), 0.0001);
+    assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, 5001), 0.01);
+    assertEquals(0.1, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 9000), 0.01);
+    assertEquals(0.25, h.estimateSelectivity(Predicate.Op.LESS_THAN_OR_EQ, 2500), 0.01);
+    assertEquals(0.75, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 2501), 0.01);
+    assertEquals(0.0001, h.avgSelectivity(), 0.0001);
+  }
+
+  /** Constants outside the range of the values */
+  @Test public void outOfRange() {
+    IntHistogram h = new IntHistogram(10, 0, 99);
+    for (int v = 0; v < 100; v++)
+      h.addValue(v);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.EQUALS, -5), 0);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, -5), 0);
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, -5), 0);
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 500), 0);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 500), 0);
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.NOT_EQUALS, 500), 0);
+  }
+
+  /** A range narrower than the number of buckets */
+  @Test public void narrowRange() {
+    IntHistogram h = new IntHistogram(100, 0, 3);
+    for (int i = 0; i < 400; i++)
+      h.addValue(i % 4);
+    assertEquals(0.25, h.estimateSelectivity(Predicate.Op.EQUALS, 2), 0.01);
+    assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, 2), 0.01);
+  }
+
+  /** A value that makes up half of the data is counted on its own */
+  @Test public void mostCommonValue() {
+    IntHistogram h = new IntHistogram(100, 1, 10000);
+    for (int v = 1; v <= 10000; v++) {
+      h.addValue(v);
+      h.addValue(7);
+    }
+    assertEquals(0.5, h.estimateSelectivity(Predicate.Op.EQUALS, 7), 0.001);
+    assertTrue(h.estimateSelectivity(Predicate.Op.EQUALS, 8) < 0.001);
+    assertEquals(6 / 20000.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 7), 0.001);
+    assertEquals(0.5, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 7), 0.001);
+    assertEquals(0.25, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 5000), 0.01);
+    assertEquals(0.25, h.avgSelectivity(), 0.01);
+  }
+
+  /** Skewed values among many distinct ones, in random order */
+  @Test public void skewedStream() {
+    Random r = new Random(1);
+    IntHistogram h = new IntHistogram(100, 0, 1000000);
+    for (int i = 0; i < 100000; i++) {
+      int p = r.nextInt(10);
+      if (p < 2)
+        h.addValue(42);
+      else if (p < 3)
+        h.addValue(900000);
+      else
+        h.addValue(r.nextInt(1000001));
+    }
+    assertEquals(0.2, h.estimateSelectivity(Predicate.Op.EQUALS, 42), 0.01);
+    assertEquals(0.1, h.estimateSelectivity(Predicate.Op.EQUALS, 900000), 0.01);
+    assertTrue(h.estimateSelectivity(Predicate.Op.EQUALS, 43) < 0.001);
+    assertEquals(0.2 + 0.7 * 0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, 500000), 0.02);
+    // values added after an estimate are counted in the next one
+    for (int i = 0; i < 100000; i++)
+      h.addValue(42);
+    assertEquals(0.6, h.estimateSelectivity(Predicate.Op.EQUALS, 42), 0.01);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IntHistogramTest.class);
+  }
+}
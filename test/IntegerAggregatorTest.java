@@ -2,6 +2,10 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.NoSuchElementException;
 
 import junit.framework.JUnit4TestAdapter;
@@ -126,6 +130,55 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test grouping on enough distinct keys, including negative ones, to grow
+   * the group table several times
+   */
+  @Test public void manyGroups() throws Exception {
+    int groups = 5000;
+    int[] data = new int[groups * 3 * 2];
+    int[] expected = new int[groups * 2];
+    for (int i = 0; i < groups; i++) {
+      int key = (i % 2 == 0) ? i * 65536 : -i;
+      for (int j = 0; j < 3; j++) {
+        data[(j * groups + i) * 2] = key;
+        data[(j * groups + i) * 2 + 1] = i + j;
+      }
+      expected[i * 2] = key;
+      expected[i * 2 + 1] = 3 * i + 3;
+    }
+    DbIterator scan = TestUtil.createTupleList(width1, data);
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, expected), it);
+  }
+
+  /**
+   * Aggregators are Serializable, and so is the group table they hold
+   */
+  @Test public void serializable() throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    scan1.open();
+    while (scan1.hasNext())
+      agg.mergeTupleIntoGroup(scan1.next());
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(agg);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    IntegerAggregator copy = (IntegerAggregator) in.readObject();
+
+    DbIterator it = copy.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 12, 3, 12, 5, 7 }), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for DbIterator behaviour
    */
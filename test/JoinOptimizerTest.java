@@ -0,0 +1,232 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class JoinOptimizerTest extends SimpleDbTestBase {
+
+  /** Statistics of a table of the given size, independent of its contents */
+  private static class FixedStats extends TableStats {
+    private final int card;
+
+    FixedStats(int tableid, int card) {
+      super(tableid, 1);
+      this.card = card;
+    }
+
+    @Override public double estimateScanCost() {
+      return card / 100.0;
+    }
+
+    @Override public int estimateTableCardinality(double selectivityFactor) {
+      return (int) (card * selectivityFactor);
+    }
+  }
+
+  private LogicalPlan plan;
+  private HashMap<String, TableStats> stats;
+  private HashMap<String, Double> selectivities;
+
+  /** Add tables t0, t1, ... with the given cardinalities to a new plan */
+  private void createTables(int... cards) throws Exception {
+    plan = new LogicalPlan();
+    stats = new HashMap<String, TableStats>();
+    selectivities = new HashMap<String, Double>();
+    for (int i = 0; i < cards.length; i++) {
+      HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1, null, null, "c");
+      String name = "jo_table" + i;
+      Database.getCatalog().addTable(f, name);
+      plan.addScan(f.getId(), "t" + i);
+      stats.put(name, new FixedStats(f.getId(), cards[i]));
+      selectivities.put("t" + i, 1.0);
+    }
+  }
+
+  private static LogicalJoinNode join(int t1, int t2) {
+    return new LogicalJoinNode("t" + t1, "t" + t2, "c0", "c0", Predicate.Op.EQUALS);
+  }
+
+  /** Check that order is a left-deep plan of exactly the given joins */
+  private static void assertLeftDeep(Vector<LogicalJoinNode> joins, Vector<LogicalJoinNode> order) {
+    assertEquals(joins.size(), order.size());
+    Set<String> joined = new HashSet<String>();
+    for (int i = 0; i < order.size(); i++) {
+      LogicalJoinNode j = order.get(i);
+      assertTrue(joins.contains(j));
+      if (i > 0)
+        assertTrue(joined.contains(j.t1Alias) || joined.contains(j.t2Alias));
+      joined.add(j.t1Alias);
+      joined.add(j.t2Alias);
+    }
+  }
+
+  /**
+   * The two small tables are joined first, so that the big one is joined
+   * with a small intermediate result
+   */
+  @Test public void smallJoinFirst() throws Exception {
+    createTables(10000, 100, 100);
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    joins.add(join(0, 1));
+    joins.add(join(1, 2));
+    Vector<LogicalJoinNode> order = new JoinOptimizer(plan, joins).orderJoins(stats, selectivities, false);
+    assertLeftDeep(joins, order);
+    assertEquals(join(1, 2), order.get(0));
+  }
+
+  /** A chain of twelve tables is ordered over all its subsets */
+  @Test public void longChain() throws Exception {
+    createTables(500, 20000, 30, 800, 5000, 10, 7000, 60, 100000, 40, 900, 3000);
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    for (int i = 0; i + 1 < 12; i++)
+      joins.add(join(i, i + 1));
+    Vector<LogicalJoinNode> order = new JoinOptimizer(plan, joins).orderJoins(stats, selectivities, false);
+    assertLeftDeep(joins, order);
+  }
+
+  /** Queries with more joins than are planned over all subsets are planned greedily */
+  @Test public void greedyStar() throws Exception {
+    int n = JoinOptimizer.MAX_DP_JOINS + 5;
+    int[] cards = new int[n + 1];
+    for (int i = 0; i <= n; i++)
+      cards[i] = 100 * (i + 1);
+    createTables(cards);
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    for (int i = 1; i <= n; i++)
+      joins.add(join(0, i));
+    Vector<LogicalJoinNode> order = new JoinOptimizer(plan, joins).orderJoins(stats, selectivities, false);
+    assertLeftDeep(joins, order);
+  }
+
+  /**
+   * A star is the worst case for planning over connected subsets, as every
+   * subset of its joins is connected; the largest one planned that way
+   * still takes well under a second
+   */
+  @Test(timeout = 2000) public void largestStar() throws Exception {
+    int n = JoinOptimizer.MAX_DP_JOINS;
+    int[] cards = new int[n + 1];
+    for (int i = 0; i <= n; i++)
+      cards[i] = 1000 * (n + 1 - i);
+    createTables(cards);
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    for (int i = 1; i <= n; i++)
+      joins.add(join(0, i));
+    Vector<LogicalJoinNode> order = new JoinOptimizer(plan, joins).orderJoins(stats, selectivities, false);
+    assertLeftDeep(joins, order);
+  }
+
+  /** Joins that do not form a connected graph are left in query order */
+  @Test public void disconnected() throws Exception {
+    createTables(10, 20, 30, 40);
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    joins.add(join(0, 1));
+    joins.add(join(2, 3));
+    Vector<LogicalJoinNode> order = new JoinOptimizer(plan, joins).orderJoins(stats, selectivities, false);
+    assertEquals(joins, order);
+  }
+
+  private static JoinOptimizer.JoinInput input(int card, boolean sorted, boolean indexed) {
+    TupleDesc td = Utility.getTupleDesc(2);
+    return new JoinOptimizer.JoinInput(td, card, JoinOptimizer.scanCost(card, td.getSize()), sorted, indexed);
+  }
+
+  /** Equi-joins are hashed, building on the smaller input */
+  @Test public void hashBuildSide() {
+    JoinOptimizer.JoinInput big = input(100000, false, false);
+    JoinOptimizer.JoinInput small = input(100, false, false);
+    JoinOptimizer.JoinChoice c = JoinOptimizer.cheapestJoin(Predicate.Op.EQUALS, big, small);
+    assertEquals(JoinOptimizer.Algorithm.HASH, c.algorithm);
+    assertTrue(c.swap);
+    c = JoinOptimizer.cheapestJoin(Predicate.Op.EQUALS, small, big);
+    assertEquals(JoinOptimizer.Algorithm.HASH, c.algorithm);
+    assertFalse(c.swap);
+  }
+
+  /** Each predicate is run by the cheapest algorithm that supports it */
+  private static TupleIterator rows(TupleDesc td, int... keys) {
+    Vector<Tuple> tuples = new Vector<Tuple>();
+    for (int key : keys) {
+      Tuple t = new Tuple(td);
+      for (int i = 0; i < td.numFields(); i++)
+        t.setField(i, new IntField(key * 10 + i));
+      tuples.add(t);
+    }
+    return new TupleIterator(td, tuples);
+  }
+
+  /** A join that builds on its second input still outputs the fields of the first one first */
+  @Test public void swappedJoinFieldOrder() throws Exception {
+    TupleDesc td1 = Utility.getTupleDesc(3, "a.f");
+    TupleDesc td2 = Utility.getTupleDesc(2, "b.g");
+    DbIterator plan1 = rows(td1, 1, 2, 3);
+    DbIterator plan2 = rows(td2, 2);
+    LogicalJoinNode lj = new LogicalJoinNode("a", "b", "f0", "g0", Predicate.Op.EQUALS);
+    // hashing on the smaller plan2 swaps the inputs
+    DbIterator j = JoinOptimizer.instantiateJoin(lj, plan1, plan2, 100000, 100,
+        JoinOptimizer.scanCost(100000, td1.getSize()), JoinOptimizer.scanCost(100, td2.getSize()));
+    assertTrue(j instanceof Project);
+    assertEquals(TupleDesc.merge(td1, td2), j.getTupleDesc());
+    j.open();
+    assertTrue(j.hasNext());
+    Tuple t = j.next();
+    assertEquals(new IntField(20), t.getField(0));
+    assertEquals(new IntField(22), t.getField(2));
+    assertEquals(new IntField(21), t.getField(4));
+    assertFalse(j.hasNext());
+    j.close();
+  }
+
+  @Test public void algorithmByPredicate() {
+    JoinOptimizer.JoinInput a = input(10000, false, false);
+    JoinOptimizer.JoinInput b = input(10000, false, false);
+    assertEquals(JoinOptimizer.Algorithm.NESTED_LOOP,
+        JoinOptimizer.cheapestJoin(Predicate.Op.NOT_EQUALS, a, b).algorithm);
+    assertEquals(JoinOptimizer.Algorithm.SORT_MERGE,
+        JoinOptimizer.cheapestJoin(Predicate.Op.GREATER_THAN, a, b).algorithm);
+    assertEquals(JoinOptimizer.Algorithm.SORT_MERGE,
+        JoinOptimizer.cheapestJoin(Predicate.Op.EQUALS, input(10000, true, false),
+            input(10000, true, false)).algorithm);
+    assertEquals(JoinOptimizer.Algorithm.INDEX_NESTED_LOOP,
+        JoinOptimizer.cheapestJoin(Predicate.Op.EQUALS, input(10, false, false),
+            input(1000000, true, true)).algorithm);
+  }
+
+  /** An inner input that does not fit in memory is reread for every outer block */
+  /** A filtered scan of a table is still read for all the table's pages */
+  @Test public void tablePages() {
+    JoinOptimizer.JoinInput outer = input(1000000, false, false);
+    JoinOptimizer.JoinInput inner = input(1000000, false, false);
+    JoinOptimizer.JoinInput filtered = inner.withPages((int) inner.pages() * 10);
+    assertEquals(inner.pages() * 10, filtered.pages(), 0);
+    assertTrue(JoinOptimizer.estimateBlockNestedLoopJoinCost(outer, filtered, 1 << 20)
+        > JoinOptimizer.estimateBlockNestedLoopJoinCost(outer, inner, 1 << 20));
+  }
+
+  @Test public void blockNestedLoopCost() {
+    JoinOptimizer.JoinInput outer = input(1000000, false, false);
+    JoinOptimizer.JoinInput inner = input(1000000, false, false);
+    double inMemory = JoinOptimizer.estimateNestedLoopJoinCost(outer, inner);
+    assertTrue(JoinOptimizer.estimateBlockNestedLoopJoinCost(outer, inner, 1 << 20) > inMemory);
+    assertTrue(JoinOptimizer.estimateBlockNestedLoopJoinCost(outer, inner, 1 << 20)
+        > JoinOptimizer.estimateBlockNestedLoopJoinCost(outer, inner, 1 << 24));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(JoinOptimizerTest.class);
+  }
+}
@@ -0,0 +1,187 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockManagerTest {
+
+    private LockManager lm;
+    private TransactionId tid1;
+    private TransactionId tid2;
+    private PageId p0;
+    private PageId p1;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /**
+     * Shared locks are compatible and released per transaction
+     */
+    @Test public void sharedLocks() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        lm.acquire(tid2, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(tid1, p0));
+        assertTrue(lm.holdsLock(tid2, p0));
+        lm.releaseAll(tid1);
+        assertFalse(lm.holdsLock(tid1, p0));
+        assertTrue(lm.holdsLock(tid2, p0));
+    }
+
+    /**
+     * The sole shared holder may upgrade to an exclusive lock
+     */
+    @Test public void upgrade() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        lm.acquire(tid1, p1, Permissions.READ_WRITE);
+        assertEquals(2, lm.lockedPages(tid1).size());
+    }
+
+    /**
+     * An exclusive request waits until the conflicting holder releases
+     */
+    @Test public void exclusiveWaits() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        final CountDownLatch granted = new CountDownLatch(1);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    lm.acquire(tid2, p0, Permissions.READ_ONLY);
+                    granted.countDown();
+                } catch (TransactionAbortedException e) {
+                    // leave the latch untouched
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(100);
+        assertEquals(1, granted.getCount());
+        lm.release(tid1, p0);
+        t.join(5000);
+        assertEquals(0, granted.getCount());
+        assertTrue(lm.holdsLock(tid2, p0));
+    }
+
+    /**
+     * Two transactions waiting for each other: one of them is aborted
+     */
+    @Test public void deadlock() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        lm.acquire(tid2, p1, Permissions.READ_WRITE);
+        final AtomicInteger aborted = new AtomicInteger();
+        Thread t1 = requester(tid1, p1, aborted);
+        Thread t2 = requester(tid2, p0, aborted);
+        t1.start();
+        t2.start();
+        t1.join(5000);
+        t2.join(5000);
+        assertFalse(t1.isAlive() || t2.isAlive());
+        assertTrue(aborted.get() >= 1);
+    }
+
+    /**
+     * A shared holder granted after a transaction started waiting is part of
+     * the waits-for graph, so the deadlock it closes is found at once
+     */
+    @Test public void deadlockThroughLaterHolder() throws Exception {
+        TransactionId tid3 = new TransactionId();
+        lm.acquire(tid3, p0, Permissions.READ_ONLY);
+        lm.acquire(tid1, p1, Permissions.READ_WRITE);
+        final AtomicInteger aborted = new AtomicInteger();
+        Thread t1 = requester(tid1, p0, aborted);
+        t1.start();
+        Thread.sleep(200); // t1 waits for tid3
+        lm.acquire(tid2, p0, Permissions.READ_ONLY);
+        Thread t2 = requester(tid2, p1, aborted);
+        t2.start();
+        t2.join(5000);
+        assertFalse(t2.isAlive());
+        assertEquals(1, aborted.get());
+        // tid1 still waits for tid3, which is not part of the deadlock
+        lm.releaseAll(tid3);
+        t1.join(5000);
+        assertFalse(t1.isAlive());
+        assertTrue(lm.holdsLock(tid1, p0));
+    }
+
+    /**
+     * A page's lock is forgotten once nobody holds it, so the lock table
+     * does not grow with every page ever touched
+     */
+    @Test public void releasedLocksAreDropped() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            lm.acquire(tid1, new HeapPageId(2, i), Permissions.READ_ONLY);
+            lm.acquire(tid2, new HeapPageId(2, i), Permissions.READ_ONLY);
+        }
+        lm.releaseAll(tid1);
+        assertEquals(100, lm.numPageLocks());
+        lm.release(tid2, new HeapPageId(2, 0));
+        assertEquals(99, lm.numPageLocks());
+        lm.releaseAll(tid2);
+        assertEquals(0, lm.numPageLocks());
+    }
+
+    /**
+     * Dropping idle locks never lets two transactions hold one page
+     * exclusively, even while others look the lock up concurrently
+     */
+    @Test public void droppedLocksStayExclusive() throws Exception {
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int k = 0; k < 2000; k++) {
+                            TransactionId tid = new TransactionId();
+                            lm.acquire(tid, p0, Permissions.READ_WRITE);
+                            if (inside.incrementAndGet() > 1)
+                                overlaps.incrementAndGet();
+                            inside.decrementAndGet();
+                            lm.releaseAll(tid);
+                        }
+                    } catch (TransactionAbortedException e) {
+                        overlaps.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(0, overlaps.get());
+        assertEquals(0, lm.numPageLocks());
+    }
+
+    private Thread requester(final TransactionId tid, final PageId pid, final AtomicInteger aborted) {
+        return new Thread() {
+            public void run() {
+                try {
+                    lm.acquire(tid, pid, Permissions.READ_WRITE);
+                } catch (TransactionAbortedException e) {
+                    aborted.incrementAndGet();
+                    lm.releaseAll(tid);
+                }
+            }
+        };
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,47 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class MorselDispatcherTest extends SimpleDbTestBase {
+
+  /**
+   * Cancelling a dispatcher returns only once no worker is reading a
+   * morsel any more
+   */
+  @Test public void cancelWaitsForWorkers() throws Exception {
+    final AtomicInteger reading = new AtomicInteger();
+    MorselDispatcher d = new MorselDispatcher(100, 2, false) {
+      protected ArrayList<TupleBatch> read(int morsel) {
+        reading.incrementAndGet();
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        reading.decrementAndGet();
+        return new ArrayList<TupleBatch>();
+      }
+    };
+    d.schedule();
+    while (reading.get() == 0)
+      Thread.sleep(1);
+    d.cancel();
+    assertEquals(0, reading.get());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(MorselDispatcherTest.class);
+  }
+}
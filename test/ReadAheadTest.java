@@ -0,0 +1,143 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+
+    /** A HeapFile that counts the reads of each of its pages */
+    private static class CountingHeapFile extends HeapFile {
+        final ConcurrentHashMap<Integer, AtomicInteger> reads = new ConcurrentHashMap<Integer, AtomicInteger>();
+        volatile Runnable onRead; // run once, during the next read
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        public Page readPage(PageId pid) {
+            Page p = super.readPage(pid);
+            reads.putIfAbsent(pid.pageNumber(), new AtomicInteger());
+            reads.get(pid.pageNumber()).incrementAndGet();
+            Runnable r = onRead;
+            if (r != null) {
+                onRead = null;
+                r.run();
+            }
+            return p;
+        }
+
+        int reads(int pgno) {
+            AtomicInteger n = reads.get(pgno);
+            return n == null ? 0 : n.get();
+        }
+    }
+
+    private CountingHeapFile hf;
+
+    @Before public void createFile() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        hf = new CountingHeapFile(f.getFile(), f.getTupleDesc());
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertEquals(PAGES, hf.numPages());
+    }
+
+    @After public void restoreWindow() {
+        ReadAhead.setWindow(ReadAhead.DEFAULT_WINDOW);
+    }
+
+    private void readSequentially(ReadAhead ra, int pages) {
+        for (int i = 0; i < pages; i++)
+            ra.heapPageRead(new HeapPageId(hf.getId(), i), PAGES);
+    }
+
+    /**
+     * Once a scan has read a few consecutive pages, the pages after them
+     * are read in the background
+     */
+    @Test public void sequentialScanPrefetches() throws Exception {
+        // the second consecutive page requests the window of pages after it
+        readSequentially(new ReadAhead(), 2);
+        int last = 1 + ReadAhead.DEFAULT_WINDOW;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hf.reads(last) == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        for (int i = 0; i < PAGES; i++)
+            assertEquals(i >= 2 && i <= last ? 1 : 0, hf.reads(i));
+    }
+
+    /**
+     * A window of 0 turns read-ahead off
+     */
+    @Test public void zeroWindowDisables() throws Exception {
+        ReadAhead.setWindow(0);
+        assertEquals(0, ReadAhead.getWindow());
+        readSequentially(new ReadAhead(), PAGES);
+        Thread.sleep(200);
+        assertTrue(hf.reads.isEmpty());
+    }
+
+    /**
+     * A prefetch gives up instead of failing when every page in the pool is
+     * dirty, so none can be evicted
+     */
+    @Test public void prefetchGivesUpWhenPoolIsDirty() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2; i++) {
+            Page p = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            p.markDirty(true, tid);
+        }
+        assertNull(bp.prefetchPage(new HeapPageId(hf.getId(), 2)));
+        assertEquals(0, hf.reads(2));
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * A page flushed while a prefetch was reading from disk makes the
+     * prefetch read its page again, so it never caches a stale version
+     */
+    @Test public void flushDuringPrefetchRereads() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        final TransactionId writer = new TransactionId();
+        hf.onRead = new Runnable() {
+            public void run() {
+                try {
+                    Page p = bp.getPage(writer, new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+                    p.markDirty(true, writer);
+                    bp.flushPages(writer);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page p = bp.prefetchPage(pid);
+        assertEquals(2, hf.reads(0));
+        assertTrue(p == bp.getPage(null, pid, Permissions.READ_ONLY));
+        assertFalse(hf.reads(1) == 0);
+        bp.transactionComplete(writer);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
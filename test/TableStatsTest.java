@@ -0,0 +1,86 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TableStatsTest extends SimpleDbTestBase {
+
+  @Test public void scanCostAndCardinality() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 100, null, null);
+    TableStats s = new TableStats(f.getId(), 1000);
+    assertEquals(5000, s.totalTuples());
+    assertEquals(2500, s.estimateTableCardinality(0.5));
+    assertEquals(f.numPages() * 1000.0, s.estimateScanCost(), 0);
+    assertEquals(f.numPages(), s.numPages());
+  }
+
+  @Test public void selectivity() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10000, 1000, null, tuples);
+    TableStats s = new TableStats(f.getId(), 1000);
+    for (int field = 0; field < 2; field++) {
+      int less = 0;
+      int equal = 0;
+      for (ArrayList<Integer> t : tuples) {
+        if (t.get(field) < 300)
+          less++;
+        else if (t.get(field) == 300)
+          equal++;
+      }
+      assertEquals(less / 10000.0,
+          s.estimateSelectivity(field, Predicate.Op.LESS_THAN, new IntField(300)), 0.02);
+      assertEquals(equal / 10000.0,
+          s.estimateSelectivity(field, Predicate.Op.EQUALS, new IntField(300)), 0.002);
+      assertEquals(0.001, s.avgSelectivity(field, Predicate.Op.EQUALS), 0.001);
+    }
+  }
+
+  /** Statistics from a quarter of the pages are close to the exact ones */
+  @Test public void sampled() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 40000, 1000, null, null);
+    assertTrue(f.numPages() > 4 * TableStats.MIN_SAMPLE_PAGES);
+    TableStats exact = new TableStats(f.getId(), 1000);
+    TableStats sampled = new TableStats(f.getId(), 1000, 0.25);
+    assertEquals(40000, sampled.totalTuples(), 1000);
+    assertEquals(exact.estimateScanCost(), sampled.estimateScanCost(), 0);
+    assertEquals(exact.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(300)),
+        sampled.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(300)), 0.03);
+  }
+
+  /** Sampled pages are distinct and in ascending order */
+  @Test public void samplePages() {
+    int[] pages = TableStats.samplePages(100, 30, new Random(7));
+    assertEquals(30, pages.length);
+    for (int i = 1; i < pages.length; i++)
+      assertTrue(pages[i - 1] < pages[i]);
+    assertTrue(pages[pages.length - 1] < 100);
+  }
+
+  /** Statistics of every table are computed on several threads */
+  @Test public void computeInParallel() throws Exception {
+    int[] rows = {100, 2000, 5000, 300};
+    for (int i = 0; i < rows.length; i++)
+      Database.getCatalog().addTable(SystemTestUtil.createRandomHeapFile(2, rows[i], null, null),
+          "stats_table" + i);
+    TableStats.computeStatistics(0.5, 3);
+    for (int i = 0; i < rows.length; i++)
+      assertEquals(rows[i], TableStats.getTableStats("stats_table" + i).totalTuples(),
+          rows[i] / 10);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TableStatsTest.class);
+  }
+}
@@ -228,6 +228,9 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public void close() {
+        }
+
         public int getId() {
             return tableid;
         }
@@ -133,6 +133,19 @@ public class TupleDescTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for TupleDesc.getHeapSize(): a tuple in memory takes more
+     * than its serialized form, and more for every field
+     */
+    @Test public void getHeapSize() {
+        TupleDesc one = Utility.getTupleDesc(1);
+        TupleDesc two = Utility.getTupleDesc(2);
+        assertTrue(one.getHeapSize() > one.getSize());
+        assertTrue(two.getHeapSize() > one.getHeapSize());
+        TupleDesc str = new TupleDesc(new Type[] { Type.STRING_TYPE });
+        assertTrue(str.getHeapSize() > str.getSize());
+    }
+
     /**
      * Unit test for TupleDesc.numFields()
      */
@@ -2,13 +2,18 @@ package simpledb.systemtest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import simpledb.*;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class AggregateTest extends SimpleDbTestBase {
     public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, ArrayList<ArrayList<Integer>> expectedResult)
             throws DbException, TransactionAbortedException, IOException {
@@ -113,6 +118,118 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /**
+     * Computes the expected result of aggregating several columns grouped by
+     * several columns
+     */
+    private ArrayList<ArrayList<Integer>> aggregate(ArrayList<ArrayList<Integer>> tuples,
+            Aggregator.Op[] operations, int[] aggregateColumns, int[] groupColumns) {
+        HashMap<List<Integer>, ArrayList<ArrayList<Integer>>> groups =
+                new HashMap<List<Integer>, ArrayList<ArrayList<Integer>>>();
+        for (ArrayList<Integer> t : tuples) {
+            ArrayList<Integer> key = new ArrayList<Integer>();
+            for (int g : groupColumns) key.add(t.get(g));
+            if (!groups.containsKey(key)) groups.put(key, new ArrayList<ArrayList<Integer>>());
+            groups.get(key).add(t);
+        }
+
+        ArrayList<ArrayList<Integer>> results = new ArrayList<ArrayList<Integer>>();
+        for (Map.Entry<List<Integer>, ArrayList<ArrayList<Integer>>> e : groups.entrySet()) {
+            ArrayList<Integer> result = new ArrayList<Integer>(e.getKey());
+            for (int i = 0; i < operations.length; i++) {
+                ArrayList<Integer> values = new ArrayList<Integer>();
+                for (ArrayList<Integer> t : e.getValue()) values.add(t.get(aggregateColumns[i]));
+                result.add(computeAggregate(values, operations[i]));
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Several aggregates over a two-column group key in one Aggregate
+     */
+    @Test public void testMultipleAggregates()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(4, ROWS, 8, null, createdTuples);
+        Aggregator.Op[] ops = new Aggregator.Op[] {Aggregator.Op.SUM, Aggregator.Op.COUNT,
+                Aggregator.Op.MAX, Aggregator.Op.AVG, Aggregator.Op.MIN};
+        int[] aggregateColumns = new int[] {2, 3, 3, 2, 0};
+        int[] groupColumns = new int[] {0, 1};
+
+        TransactionId tid = new TransactionId();
+        Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""),
+                aggregateColumns, ops, groupColumns);
+        assertEquals(7, ag.getTupleDesc().numFields());
+        SystemTestUtil.matchTuples(ag,
+                aggregate(createdTuples, ops, aggregateColumns, groupColumns));
+
+        MultiAggregator tupleAtATime = new MultiAggregator(table.getTupleDesc(),
+                new int[0], aggregateColumns, ops);
+        for (ArrayList<Integer> t : createdTuples) {
+            Tuple tuple = new Tuple(table.getTupleDesc());
+            for (int i = 0; i < t.size(); i++) tuple.setField(i, new IntField(t.get(i)));
+            tupleAtATime.mergeTupleIntoGroup(tuple);
+        }
+        SystemTestUtil.matchTuples(tupleAtATime.iterator(),
+                aggregate(createdTuples, ops, aggregateColumns, new int[0]));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A query with several aggregates and a multi-column GROUP BY is parsed
+     * and planned as a single Aggregate
+     */
+    @Test public void testParsedMultipleAggregates()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 8, null, createdTuples, "c");
+        Database.getCatalog().addTable(table, "grouped");
+
+        // the query lists c2's aggregates before the group columns
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> r : aggregate(createdTuples,
+                new Aggregator.Op[] {Aggregator.Op.MAX, Aggregator.Op.SUM},
+                new int[] {2, 2}, new int[] {1, 0}))
+            expected.add(new ArrayList<Integer>(Arrays.asList(r.get(2), r.get(0), r.get(1), r.get(3))));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT MAX(grouped.c2), grouped.c1, grouped.c0, SUM(grouped.c2) FROM grouped "
+                + "GROUP BY grouped.c1, grouped.c0;");
+        DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * More groups than fit in the memory budget: groups are partitioned to
+     * disk and re-aggregated, down to the sort-based fallback
+     */
+    @Test public void testSpilling()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 4 * ROWS, 2 * ROWS, null, createdTuples);
+        Aggregator.Op[] ops = new Aggregator.Op[] {Aggregator.Op.SUM, Aggregator.Op.COUNT};
+        int[] aggregateColumns = new int[] {1, 2};
+        int[] groupColumns = new int[] {0};
+        ArrayList<ArrayList<Integer>> expected =
+                aggregate(createdTuples, ops, aggregateColumns, groupColumns);
+
+        TransactionId tid = new TransactionId();
+        for (long budget : new long[] {4096, 64}) {
+            Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""),
+                    aggregateColumns, ops, groupColumns);
+            ag.setMemoryBudget(budget);
+            ag.open();
+            assertTrue(ag.isSpilling());
+            ag.close();
+            SystemTestUtil.matchTuples(ag, expected);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
@@ -0,0 +1,88 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs plans through the nextBatch path, turning the result back into
+ * tuples with BatchTupleIterator, and checks it against the expected rows.
+ */
+public class BatchExecutionTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000; // several batches per table
+
+    @Test public void testFilterProject()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, ROWS, 1000, null, tuples);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        int threshold = 500;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) < threshold) {
+                ArrayList<Integer> out = new ArrayList<Integer>();
+                out.add(t.get(2));
+                out.add(t.get(0));
+                expected.add(out);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(threshold)), ss);
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(2);
+        fields.add(0);
+        Project project = new Project(fields, new Type[] {Type.INT_TYPE, Type.INT_TYPE}, filter);
+        BatchTupleIterator it = new BatchTupleIterator(project);
+        SystemTestUtil.matchTuples(it, expected);
+
+        // a rewound pipeline produces the same tuples again
+        it.open();
+        it.rewind();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        org.junit.Assert.assertEquals(expected.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testHashJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, 300, 50, columnSpecification, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, ROWS, 50, columnSpecification, t2Tuples);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t2 : t2Tuples) {
+            for (ArrayList<Integer> t1 : t1Tuples) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), ss1, ss2);
+        SystemTestUtil.matchTuples(new BatchTupleIterator(join), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchExecutionTest.class);
+    }
+}
@@ -0,0 +1,63 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class BulkInsertTest extends SimpleDbTestBase {
+    private void validateBulkInsert(int columns, int sourceRows, int destinationRows)
+                throws DbException, IOException, TransactionAbortedException {
+        // Create the two tables
+        ArrayList<ArrayList<Integer>> sourceTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile source = SystemTestUtil.createRandomHeapFile(
+                columns, sourceRows, null, sourceTuples);
+        ArrayList<ArrayList<Integer>> destinationTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile destination = SystemTestUtil.createRandomHeapFile(
+                columns, destinationRows, null, destinationTuples);
+        int pagesBefore = destination.numPages();
+
+        // Load source into destination
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, source.getId(), "");
+        BulkInsert bulkOp = new BulkInsert(tid, ss, destination.getId());
+        bulkOp.open();
+        assertTrue(bulkOp.hasNext());
+        Tuple tup = bulkOp.next();
+        assertEquals(sourceRows, ((IntField) tup.getField(0)).getValue());
+        assertFalse(bulkOp.hasNext());
+        bulkOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        // existing pages are untouched; the load only appends
+        int perPage = 504 * 2 / columns;
+        int loadedPages = (sourceRows + perPage - 1) / perPage;
+        assertEquals(pagesBefore + loadedPages, destination.numPages());
+
+        sourceTuples.addAll(destinationTuples);
+        SystemTestUtil.matchTuples(destination, sourceTuples);
+    }
+
+    @Test public void testEmptyToEmpty()
+            throws IOException, DbException, TransactionAbortedException {
+        validateBulkInsert(2, 0, 0);
+    }
+
+    @Test public void testOneToOne()
+            throws IOException, DbException, TransactionAbortedException {
+        validateBulkInsert(2, 1, 1);
+    }
+
+    /** Spans several sequential write batches and ends on a partial page */
+    @Test public void testManyPages()
+            throws IOException, DbException, TransactionAbortedException {
+        validateBulkInsert(2, 504 * (HeapFile.BULK_APPEND_PAGES * 2 + 3) + 17, 600);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BulkInsertTest.class);
+    }
+}
@@ -0,0 +1,179 @@
+package simpledb.systemtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+public class ExchangeTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+    private static final int ROWS = 5000;
+
+    /** Read every output of an exchange on a thread of its own */
+    private List<ArrayList<ArrayList<Integer>>> readConcurrently(final Exchange[] outputs)
+            throws InterruptedException {
+        final List<ArrayList<ArrayList<Integer>>> results = new ArrayList<ArrayList<ArrayList<Integer>>>();
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[outputs.length];
+        for (int i = 0; i < outputs.length; i++) {
+            final ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+            results.add(result);
+            final Exchange output = outputs[i];
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        output.open();
+                        while (output.hasNext())
+                            result.add(SystemTestUtil.tupleToList(output.next()));
+                        output.close();
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertNull(failure[0]);
+        return results;
+    }
+
+    private static ArrayList<ArrayList<Integer>> sorted(List<ArrayList<Integer>> rows) {
+        ArrayList<String> keys = new ArrayList<String>();
+        for (ArrayList<Integer> r : rows)
+            keys.add(r.toString());
+        Collections.sort(keys);
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (String k : keys) {
+            ArrayList<Integer> r = new ArrayList<Integer>();
+            for (String v : k.substring(1, k.length() - 1).split(", "))
+                r.add(Integer.valueOf(v));
+            result.add(r);
+        }
+        return result;
+    }
+
+    @Test public void testGather()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        TransactionId tid = new TransactionId();
+        DbIterator[] scans = new DbIterator[3];
+        for (int i = 0; i < scans.length; i++) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples);
+            expected.addAll(tuples);
+            scans[i] = new SeqScan(tid, table.getId(), "");
+        }
+        Exchange gather = Exchange.gather(scans);
+        assertEquals(Exchange.Mode.GATHER, gather.getMode());
+        SystemTestUtil.matchTuples(gather, expected);
+
+        // a rewind reruns the producers
+        gather.open();
+        for (int i = 0; i < 10; i++)
+            gather.next();
+        gather.rewind();
+        int count = 0;
+        while (gather.hasNext()) {
+            gather.next();
+            count++;
+        }
+        gather.close();
+        assertEquals(expected.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** An exchange is Serializable like other operators, and runs after a round trip */
+    @Test public void testSerializable()
+            throws IOException, DbException, TransactionAbortedException, ClassNotFoundException {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        TupleDesc td = Utility.getTupleDesc(COLUMNS);
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = new Tuple(td);
+            for (int j = 0; j < COLUMNS; j++)
+                t.setField(j, new IntField(i + j));
+            rows.add(t);
+            expected.add(SystemTestUtil.tupleToList(t));
+        }
+        Exchange gather = Exchange.gather(new TupleIterator(td, rows));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(gather);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        SystemTestUtil.matchTuples((Exchange) in.readObject(), expected);
+    }
+
+    @Test public void testRepartitionAndBroadcast()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 100, null, tuples);
+        TransactionId tid = new TransactionId();
+
+        Exchange[] parts = Exchange.repartition(
+                new DbIterator[] {new SeqScan(tid, table.getId(), "")}, 1, 4);
+        ArrayList<ArrayList<Integer>> all = new ArrayList<ArrayList<Integer>>();
+        List<ArrayList<ArrayList<Integer>>> results = readConcurrently(parts);
+        for (int i = 0; i < parts.length; i++) {
+            for (ArrayList<Integer> t : results.get(i))
+                assertEquals(i, Exchange.partitionOf(new IntField(t.get(1)), parts.length));
+            all.addAll(results.get(i));
+        }
+        assertEquals(sorted(tuples), sorted(all));
+
+        Exchange[] copies = Exchange.broadcast(
+                new DbIterator[] {new SeqScan(tid, table.getId(), "")}, 3);
+        for (ArrayList<ArrayList<Integer>> copy : readConcurrently(copies))
+            assertEquals(tuples, copy);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The planner runs joins and aggregates through exchanges */
+    @Test public void testParallelPlan()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(COLUMNS, 1000, 200, null, null, "c");
+        HeapFile right = SystemTestUtil.createRandomHeapFile(COLUMNS, 300, 200, null, null, "c");
+        Database.getCatalog().addTable(left, "lefttable");
+        Database.getCatalog().addTable(right, "righttable");
+        TableStats.computeStatistics();
+        String sql = "SELECT lefttable.c1, COUNT(righttable.c1), SUM(lefttable.c0) "
+                + "FROM lefttable, righttable WHERE lefttable.c0 = righttable.c0 "
+                + "AND lefttable.c1 < 150 GROUP BY lefttable.c1;";
+        TransactionId tid = new TransactionId();
+        Parser parser = new Parser();
+
+        LogicalPlan lp = parser.generateLogicalPlan(tid, sql);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        DbIterator serial = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        serial.open();
+        while (serial.hasNext())
+            expected.add(SystemTestUtil.tupleToList(serial.next()));
+        serial.close();
+        assertFalse(expected.isEmpty());
+
+        lp = parser.generateLogicalPlan(tid, sql);
+        lp.setParallelism(4);
+        DbIterator parallel = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) parallel).getChildren()[0] instanceof Exchange);
+        SystemTestUtil.matchTuples(parallel, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 import org.junit.Test;
+import static org.junit.Assert.assertTrue;
 
 import simpledb.*;
 
@@ -69,6 +70,69 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * A build side larger than the memory budget is partitioned to disk;
+     * a skewed key forces partitions to be split again
+     */
+    @Test public void testSpilling()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 3000, 200, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 2000, 200, null, t2Tuples);
+        for (int i = 0; i < 500; i++)
+            t1Tuples.get(i).set(0, 7);
+
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+        // the skewed rows only exist in the expectation; load them for real
+        TransactionId tid = new TransactionId();
+        TupleDesc td = table1.getTupleDesc();
+        table1 = loadTable(t1Tuples);
+
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin joinOp = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""));
+        joinOp.setMemoryBudget(100 * td.getHeapSize());
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        joinOp.open();
+        assertTrue(joinOp.hasNext()); // the build side is read on first use
+        assertTrue(joinOp.isSpilling());
+        joinOp.close();
+
+        HashEquiJoin batchOp = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""));
+        batchOp.setMemoryBudget(100 * td.getHeapSize());
+        SystemTestUtil.matchTuples(new BatchTupleIterator(batchOp), expectedResults);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private HeapFile loadTable(ArrayList<ArrayList<Integer>> tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile copy = SystemTestUtil.createRandomHeapFile(COLUMNS, 0, null, null);
+        TupleDesc td = copy.getTupleDesc();
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (ArrayList<Integer> values : tuples) {
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < COLUMNS; i++)
+                t.setField(i, new IntField(values.get(i)));
+            rows.add(t);
+        }
+        TupleIterator it = new TupleIterator(td, rows);
+        it.open();
+        copy.bulkAppend(it);
+        it.close();
+        return copy;
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(HashEquiJoinTest.class);
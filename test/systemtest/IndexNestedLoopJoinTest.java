@@ -0,0 +1,119 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private static ArrayList<ArrayList<Integer>> expectedJoin(ArrayList<ArrayList<Integer>> left,
+            ArrayList<ArrayList<Integer>> right, Predicate.Op op, int maxRight1) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : left) {
+            for (ArrayList<Integer> t2 : right) {
+                if (t2.get(1) <= maxRight1
+                        && new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    result.add(out);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test public void testEquals()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 2000, 1000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 3000, 1000, null, t2Tuples, 0);
+        ArrayList<ArrayList<Integer>> expected = expectedJoin(t1Tuples, t2Tuples,
+                Predicate.Op.EQUALS, Integer.MAX_VALUE);
+
+        TransactionId tid = new TransactionId();
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), ""), tid, table2.getId(), "t2");
+        SystemTestUtil.matchTuples(join, expected);
+
+        join.open();
+        for (int i = 0; i < 10 && join.hasNext(); i++)
+            join.next();
+        join.rewind();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        assertEquals(expected.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Range probes, with a filter on the table moved into the join */
+    @Test public void testRangesAndFilters()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 100, 200, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 500, 200, null, t2Tuples, 0);
+
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ}) {
+            DbIterator inner = new Filter(new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(50)),
+                    new SeqScan(tid, table2.getId(), "t2"));
+            IndexNestedLoopJoin join = IndexNestedLoopJoin.overScan(new JoinPredicate(0, op, 0),
+                    new SeqScan(tid, table1.getId(), ""), inner);
+            assertNotNull(join);
+            SystemTestUtil.matchTuples(join, expectedJoin(t1Tuples, t2Tuples, op, 50));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPlannerChoice()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null, "c");
+        File f = File.createTempFile("table_index", ".dat");
+        f.deleteOnExit();
+        BTreeFile table2 = new BTreeFile(f, 0, Utility.getTupleDesc(COLUMNS, "c"));
+        Database.getCatalog().addTable(table2);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; i++)
+            Database.getBufferPool().insertTuple(tid, table2.getId(), Utility.getHeapTuple(i, COLUMNS));
+        DbIterator scan1 = new SeqScan(tid, table1.getId(), "a");
+        DbIterator scan2 = new SeqScan(tid, table2.getId(), "b");
+
+        // a few outer tuples probe a large table
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(eq, scan1, scan2, 10, 100000, 1000, 400000)
+                instanceof IndexNestedLoopJoin);
+        // the B+ tree is probed whichever side of the join it is on
+        LogicalJoinNode swapped = eq.swapInnerOuter();
+        // and the output still holds the fields of scan2 first
+        DbIterator j = JoinOptimizer.instantiateJoin(swapped, scan2, scan1, 100000, 10, 400000, 1000);
+        assertTrue(j instanceof Project);
+        assertEquals(TupleDesc.merge(scan2.getTupleDesc(), scan1.getTupleDesc()), j.getTupleDesc());
+        j = ((Project) j).getChildren()[0];
+        assertTrue(j instanceof IndexNestedLoopJoin);
+        assertSame(scan1, ((IndexNestedLoopJoin) j).getChildren()[0]);
+        // inputs of equal size are cheaper to hash than to probe
+        assertTrue(JoinOptimizer.instantiateJoin(eq, scan1, scan2) instanceof HashEquiJoin);
+        // a heap file cannot be probed
+        assertNull(IndexNestedLoopJoin.overScan(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                scan1, scan2));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
@@ -8,6 +8,8 @@ import org.junit.Test;
 
 import simpledb.*;
 
+import static org.junit.Assert.*;
+
 public class JoinTest extends SimpleDbTestBase {
     private static final int COLUMNS = 2;
     public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
@@ -69,6 +71,46 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /** An inner relation larger than the memory budget is joined block by block */
+    @Test public void testSpilledInner()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 200, 100, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 100, 100, null, t2Tuples);
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(0) < t2.get(0)) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        Join joinOp = new Join(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+        // room for 50 inner tuples and blocks of 50 outer tuples
+        joinOp.setMemoryBudget(100 * table2.getTupleDesc().getHeapSize());
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+        joinOp.open();
+        assertTrue(joinOp.isSpilling());
+        for (int i = 0; i < 10; i++)
+            joinOp.next();
+        joinOp.rewind();
+        int count = 0;
+        while (joinOp.hasNext()) {
+            joinOp.next();
+            count++;
+        }
+        joinOp.close();
+        assertEquals(expectedResults.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
@@ -0,0 +1,97 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+public class LimitTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+    private static final int ROWS = 1000;
+
+    private ArrayList<ArrayList<Integer>> readAll(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    @Test public void testLimit()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples);
+        TransactionId tid = new TransactionId();
+
+        assertEquals(tuples.subList(0, 10),
+                readAll(new Limit(10, new SeqScan(tid, table.getId(), ""))));
+        assertEquals(tuples, readAll(new Limit(ROWS + 1, new SeqScan(tid, table.getId(), ""))));
+        assertTrue(readAll(new Limit(0, new SeqScan(tid, table.getId(), ""))).isEmpty());
+
+        Limit limit = new Limit(3, new SeqScan(tid, table.getId(), ""));
+        limit.open();
+        while (limit.hasNext())
+            limit.next();
+        limit.rewind();
+        assertEquals(tuples.get(0), SystemTestUtil.tupleToList(limit.next()));
+        limit.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * LIMIT is parsed and planned: alone as a Limit operator, and with an
+     * ORDER BY fused into the OrderBy
+     */
+    @Test public void testParsedLimit()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples, "c");
+        Database.getCatalog().addTable(table, "limited");
+        TransactionId tid = new TransactionId();
+        Parser parser = new Parser();
+
+        LogicalPlan lp = parser.generateLogicalPlan(tid,
+                "SELECT limited.c0, limited.c1 FROM limited LIMIT 7;");
+        DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertEquals(tuples.subList(0, 7), readAll(plan));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(expected, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                return b.get(1).compareTo(a.get(1));
+            }
+        });
+        lp = parser.generateLogicalPlan(tid,
+                "SELECT limited.c0, limited.c1 FROM limited ORDER BY limited.c1 DESC limit 5;");
+        plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        OrderBy orderBy = (OrderBy) ((Operator) plan).getChildren()[0];
+        assertEquals(5, orderBy.getLimit());
+        assertEquals(expected.subList(0, 5), readAll(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A DELETE with a LIMIT is rejected rather than deleting every row */
+    @Test public void testDeleteLimitRejected()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, null, "c");
+        Database.getCatalog().addTable(table, "limitdelete");
+        new Parser().processNextStatement("DELETE FROM limitdelete LIMIT 1;");
+
+        TransactionId tid = new TransactionId();
+        assertEquals(ROWS, readAll(new SeqScan(tid, table.getId(), "")).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LimitTest.class);
+    }
+}
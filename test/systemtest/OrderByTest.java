@@ -0,0 +1,132 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+    private static final int ROWS = 5000;
+
+    private ArrayList<ArrayList<Integer>> readAll(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        return result;
+    }
+
+    private void validateOrderBy(boolean asc, long budget, boolean spills)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 300, null, tuples);
+
+        // a stable sort of the tuples in scan order
+        final int sign = asc ? 1 : -1;
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(expected, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                return sign * a.get(0).compareTo(b.get(0));
+            }
+        });
+
+        TransactionId tid = new TransactionId();
+        OrderBy op = new OrderBy(0, asc, new SeqScan(tid, table.getId(), ""));
+        op.setMemoryBudget(budget);
+        op.open();
+        assertEquals(spills, op.isSpilling());
+        assertEquals(expected, readAll(op));
+        op.rewind();
+        assertEquals(expected, readAll(op));
+        op.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testInMemory()
+            throws IOException, DbException, TransactionAbortedException {
+        validateOrderBy(true, OrderBy.DEFAULT_MEMORY_BUDGET, false);
+        validateOrderBy(false, OrderBy.DEFAULT_MEMORY_BUDGET, false);
+    }
+
+    /**
+     * Fifty runs merged two at a time take several merge passes
+     */
+    @Test public void testExternal()
+            throws IOException, DbException, TransactionAbortedException {
+        long budget = 100 * Utility.getTupleDesc(COLUMNS).getHeapSize();
+        validateOrderBy(true, budget, true);
+        validateOrderBy(false, budget, true);
+    }
+
+    /**
+     * ORDER BY with a limit returns a prefix of the full ordering, whether
+     * it runs as a bounded heap or on top of the external sort
+     */
+    @Test public void testTopK()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 300, null, tuples);
+        TransactionId tid = new TransactionId();
+        long smallBudget = 100 * Utility.getTupleDesc(COLUMNS).getHeapSize();
+        for (boolean asc : new boolean[] {true, false}) {
+            OrderBy full = new OrderBy(0, asc, new SeqScan(tid, table.getId(), ""));
+            full.open();
+            ArrayList<ArrayList<Integer>> sorted = readAll(full);
+            full.close();
+            for (int k : new int[] {0, 1, 37, ROWS + 10}) {
+                OrderBy top = new OrderBy(0, asc, k, new SeqScan(tid, table.getId(), ""));
+                if (k > 100)
+                    top.setMemoryBudget(smallBudget);
+                top.open();
+                ArrayList<ArrayList<Integer>> expected =
+                        new ArrayList<ArrayList<Integer>>(sorted.subList(0, Math.min(k, ROWS)));
+                assertEquals(expected, readAll(top));
+                top.rewind();
+                assertEquals(expected, readAll(top));
+                top.close();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testStringKeys()
+            throws DbException, TransactionAbortedException {
+        TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            String key = "k" + ((i * 7919) % 997);
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(key, Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            rows.add(t);
+            expected.add(key);
+        }
+        Collections.sort(expected, Collections.<String>reverseOrder());
+
+        ExternalSort sort = new ExternalSort(td, 0, false, 64 * td.getHeapSize());
+        for (Tuple t : rows)
+            sort.add(t);
+        DbIterator it = sort.finish();
+        assertTrue(sort.numRuns() > 0);
+        it.open();
+        ArrayList<String> actual = new ArrayList<String>();
+        while (it.hasNext())
+            actual.add(((StringField) it.next().getField(0)).getValue());
+        it.close();
+        sort.delete();
+        assertEquals(expected, actual);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OrderByTest.class);
+    }
+}
@@ -0,0 +1,185 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+public class ParallelHashJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private static ArrayList<ArrayList<Integer>> expectedJoin(
+            ArrayList<ArrayList<Integer>> build, ArrayList<ArrayList<Integer>> probe) {
+        HashMap<Integer, List<ArrayList<Integer>>> byKey = new HashMap<Integer, List<ArrayList<Integer>>>();
+        for (ArrayList<Integer> t : build) {
+            if (!byKey.containsKey(t.get(0)))
+                byKey.put(t.get(0), new ArrayList<ArrayList<Integer>>());
+            byKey.get(t.get(0)).add(t);
+        }
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t2 : probe) {
+            List<ArrayList<Integer>> matches = byKey.get(t2.get(0));
+            if (matches == null)
+                continue;
+            for (ArrayList<Integer> t1 : matches) {
+                ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                out.addAll(t2);
+                result.add(out);
+            }
+        }
+        return result;
+    }
+
+    /** A build side too large for one cache-sized partition */
+    @Test public void testIntKeys()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 40000, 20000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10000, 20000, null, t2Tuples);
+        ArrayList<ArrayList<Integer>> expected = expectedJoin(t1Tuples, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        ParallelHashJoin join = new ParallelHashJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""), 2);
+        SystemTestUtil.matchTuples(join, expected);
+        // more partitions than workers, so that each fits in the cache
+        assertEquals(4, join.getNumPartitions());
+
+        // a rewind reads the probe side again, a batch at a time
+        join.open();
+        join.next();
+        join.rewind();
+        int count = 0;
+        TupleBatch batch;
+        while ((batch = join.nextBatch()) != null)
+            count += batch.size();
+        join.close();
+        assertEquals(expected.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A probe side larger than a quarter of the memory budget is joined a
+     * chunk at a time; a build side larger than the budget is joined by a
+     * HashEquiJoin
+     */
+    @Test public void testMemoryBudget()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 1000, 2000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 20000, 2000, null, t2Tuples);
+        ArrayList<ArrayList<Integer>> expected = expectedJoin(t1Tuples, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        ParallelHashJoin chunked = new ParallelHashJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""), 2);
+        chunked.setMemoryBudget(200 << 10);
+        SystemTestUtil.matchTuples(chunked, expected);
+        chunked.open();
+        assertFalse(chunked.isSpilling());
+        chunked.close();
+
+        ParallelHashJoin spilling = new ParallelHashJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""), 2);
+        spilling.setMemoryBudget(8 << 10);
+        SystemTestUtil.matchTuples(spilling, expected);
+        spilling.open();
+        assertTrue(spilling.isSpilling());
+        spilling.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean containsJoin(DbIterator plan) {
+        if (plan instanceof ParallelHashJoin)
+            return true;
+        if (plan instanceof Operator) {
+            for (DbIterator child : ((Operator) plan).getChildren()) {
+                if (containsJoin(child))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** A parallel plan joins an input that fits in memory with a ParallelHashJoin */
+    @Test public void testPlanner()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(COLUMNS, 2000, 300, null, null, "c");
+        HeapFile right = SystemTestUtil.createRandomHeapFile(COLUMNS, 500, 300, null, null, "c");
+        Database.getCatalog().addTable(left, "phjleft");
+        Database.getCatalog().addTable(right, "phjright");
+        TableStats.computeStatistics();
+        String sql = "SELECT phjleft.c1, phjright.c1 FROM phjleft, phjright "
+                + "WHERE phjleft.c0 = phjright.c0;";
+        TransactionId tid = new TransactionId();
+        Parser parser = new Parser();
+
+        DbIterator serial = parser.generateLogicalPlan(tid, sql)
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        serial.open();
+        while (serial.hasNext())
+            expected.add(SystemTestUtil.tupleToList(serial.next()));
+        serial.close();
+        assertFalse(expected.isEmpty());
+
+        LogicalPlan lp = parser.generateLogicalPlan(tid, sql);
+        lp.setParallelism(2);
+        DbIterator parallel = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(containsJoin(parallel));
+        SystemTestUtil.matchTuples(parallel, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testStringKeys() throws DbException, TransactionAbortedException {
+        TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+        ArrayList<Tuple> left = new ArrayList<Tuple>();
+        ArrayList<Tuple> right = new ArrayList<Tuple>();
+        for (int i = 0; i < 3000; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("key" + (i % 500), Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            left.add(t);
+        }
+        for (int i = 0; i < 1000; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("key" + (i * 7 % 1000), Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            right.add(t);
+        }
+        int expected = 0;
+        for (Tuple r : right) {
+            for (Tuple l : left) {
+                if (l.getField(0).equals(r.getField(0)))
+                    expected++;
+            }
+        }
+
+        ParallelHashJoin join = new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new TupleIterator(td, left), new TupleIterator(td, right), 3);
+        join.open();
+        int count = 0;
+        while (join.hasNext()) {
+            Tuple t = join.next();
+            assertEquals(t.getField(0), t.getField(2));
+            count++;
+        }
+        join.close();
+        assertEquals(expected, count);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelHashJoinTest.class);
+    }
+}
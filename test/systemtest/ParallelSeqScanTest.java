@@ -0,0 +1,91 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+public class ParallelSeqScanTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+    private static final int ROWS = 20000;
+
+    private ArrayList<ArrayList<Integer>> readAll(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    /** An ordered parallel scan returns the tuples of a SeqScan, in order */
+    @Test public void testOrdered()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples);
+        TransactionId tid = new TransactionId();
+
+        ArrayList<ArrayList<Integer>> expected = readAll(new SeqScan(tid, table.getId(), ""));
+        for (int parallelism : new int[] {1, 4}) {
+            ParallelSeqScan scan = new ParallelSeqScan(tid, table.getId(), "", parallelism, true);
+            assertEquals(expected, readAll(scan));
+            // read again after a rewind, batch at a time
+            scan.open();
+            scan.nextBatch();
+            scan.rewind();
+            ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+            TupleBatch batch;
+            while ((batch = scan.nextBatch()) != null) {
+                for (int i = 0; i < batch.size(); i++)
+                    rows.add(SystemTestUtil.tupleToList(batch.getTuple(i)));
+            }
+            scan.close();
+            assertEquals(expected, rows);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Workers filter and project; the unordered merge returns the same set */
+    @Test public void testFilterProjectUnordered()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 1000, null, tuples, "c");
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 500 && t.get(1) >= 100) {
+                ArrayList<Integer> row = new ArrayList<Integer>();
+                row.add(t.get(2));
+                row.add(t.get(0));
+                expected.add(row);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        ParallelSeqScan scan = new ParallelSeqScan(tid, table.getId(), "t", 4, false);
+        scan.addFilter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(500)));
+        scan.addFilter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(100)));
+        scan.setProjection(new int[] {2, 0});
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals("t.c0", scan.getTupleDesc().getFieldName(1));
+        SystemTestUtil.matchTuples(scan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testEmptyTable()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 0, null, null);
+        TransactionId tid = new TransactionId();
+        assertTrue(readAll(new ParallelSeqScan(tid, table.getId(), "")).isEmpty());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelSeqScanTest.class);
+    }
+}
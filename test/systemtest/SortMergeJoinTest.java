@@ -0,0 +1,130 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private static ArrayList<ArrayList<Integer>> expectedJoin(ArrayList<ArrayList<Integer>> left,
+            ArrayList<ArrayList<Integer>> right, Predicate.Op op) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : left) {
+            for (ArrayList<Integer> t2 : right) {
+                if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    result.add(out);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Unordered inputs are sorted, in memory or in runs on disk */
+    @Test public void testEqualsSortsInputs()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 3000, 500, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 1000, 500, null, t2Tuples);
+        ArrayList<ArrayList<Integer>> expected = expectedJoin(t1Tuples, t2Tuples, Predicate.Op.EQUALS);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        SortMergeJoin join = new SortMergeJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""));
+        SystemTestUtil.matchTuples(join, expected);
+
+        join.setMemoryBudget(4096);
+        join.open();
+        assertTrue(join.isSorting1());
+        assertTrue(join.isSorting2());
+        int count = 0;
+        int last = Integer.MIN_VALUE;
+        while (join.hasNext()) {
+            int key = ((IntField) join.next().getField(0)).getValue();
+            assertTrue(key >= last);
+            last = key;
+            count++;
+        }
+        join.rewind();
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        assertEquals(2 * expected.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Scans of B+ trees keyed on the join fields are merged as they come */
+    @Test public void testEqualsOverBTreeScans()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table1 = BTreeUtility.createRandomBTreeFile(COLUMNS, 3000, 500, null, t1Tuples, 0);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 1000, 500, null, t2Tuples, 0);
+        ArrayList<ArrayList<Integer>> expected = expectedJoin(t1Tuples, t2Tuples, Predicate.Op.EQUALS);
+
+        TransactionId tid = new TransactionId();
+        BTreeScan scan1 = new BTreeScan(tid, table1.getId(), "t1", null);
+        BTreeScan scan2 = new BTreeScan(tid, table2.getId(), "t2", null);
+        assertTrue(SortMergeJoin.isSortedOn(scan1, 0));
+        assertFalse(SortMergeJoin.isSortedOn(scan1, 1));
+        SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, scan2);
+        join.open();
+        assertFalse(join.isSorting1());
+        assertFalse(join.isSorting2());
+        join.close();
+        SystemTestUtil.matchTuples(join, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testRangePredicates()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 200, 100, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 150, 100, null, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ}) {
+            SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            SystemTestUtil.matchTuples(join, expectedJoin(t1Tuples, t2Tuples, op));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPlannerChoice()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null, "c");
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null, "c");
+        TransactionId tid = new TransactionId();
+        DbIterator scan1 = new SeqScan(tid, table1.getId(), "a");
+        DbIterator scan2 = new SeqScan(tid, table2.getId(), "b");
+
+        LogicalJoinNode range = new LogicalJoinNode("a", "b", "c0", "c1", Predicate.Op.GREATER_THAN);
+        assertTrue(JoinOptimizer.instantiateJoin(range, scan1, scan2) instanceof SortMergeJoin);
+        // an equality of unordered inputs is not worth sorting for
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "c0", "c1", Predicate.Op.EQUALS);
+        assertFalse(JoinOptimizer.instantiateJoin(eq, scan1, scan2) instanceof SortMergeJoin);
+        DbIterator sorted1 = new OrderBy(0, true, scan1);
+        DbIterator sorted2 = new OrderBy(1, true, scan2);
+        assertTrue(JoinOptimizer.instantiateJoin(eq, sorted1, sorted2) instanceof SortMergeJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}